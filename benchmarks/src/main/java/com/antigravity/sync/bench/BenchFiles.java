@@ -0,0 +1,121 @@
+package com.antigravity.sync.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Temp directory and test file helpers shared by the benchmarks.
+ */
+final class BenchFiles {
+
+    private static final Path DROP_CACHES = Paths.get("/proc/sys/vm/drop_caches");
+
+    private BenchFiles() {
+    }
+
+    /**
+     * Creates a fresh directory below -Dsync.bench.dir, or the system temp
+     * dir. Point it at the disk or share you want to measure.
+     */
+    static Path createTempDir(String prefix) throws IOException {
+        String base = System.getProperty("sync.bench.dir");
+        if (base == null)
+            return Files.createTempDirectory(prefix);
+        Path dir = Paths.get(base);
+        Files.createDirectories(dir);
+        return Files.createTempDirectory(dir, prefix);
+    }
+
+    /**
+     * Parses sizes like 1KB, 64MB or 4GB.
+     */
+    static long parseSize(String size) {
+        String s = size.trim().toUpperCase();
+        long unit = 1;
+        if (s.endsWith("KB")) {
+            unit = 1024L;
+        } else if (s.endsWith("MB")) {
+            unit = 1024L * 1024;
+        } else if (s.endsWith("GB")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit > 1)
+            s = s.substring(0, s.length() - 2);
+        return Long.parseLong(s) * unit;
+    }
+
+    /**
+     * Writes size bytes of incompressible data.
+     */
+    static void writeRandomFile(Path file, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+        ThreadLocalRandom.current().nextBytes(buf.array());
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            while (written < size) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), size - written));
+                while (buf.hasRemaining()) {
+                    written += ch.write(buf);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the whole file once so it sits in the page cache.
+     */
+    static void warm(Path file) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (ch.read(buf) != -1) {
+                buf.clear();
+            }
+        }
+    }
+
+    /**
+     * Drops the OS page cache. Only possible on Linux when running as root;
+     * there is no portable way to do this from Java.
+     */
+    static void dropCaches() throws IOException {
+        if (!Files.isWritable(DROP_CACHES))
+            throw new IllegalStateException("cache=cold needs Linux and root (" + DROP_CACHES + " not writable)");
+        // Dirty pages are not dropped, flush them first
+        try {
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Files.write(DROP_CACHES, "3".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir))
+            return;
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,149 @@
+package com.antigravity.sync.bench;
+
+import com.antigravity.sync.core.CompressedTransfer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU versus bandwidth for compressed transfers. pack is what the sender
+ * pays per file, unpack what the receiver on the file server pays.
+ *
+ * "sourceMB" is MB/s of source data processed, "wireMB" the MB/s that
+ * would cross the network. Compression pays off for links slower than
+ * wireMB / sourceMB times the pack rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressBenchmark {
+
+    @Param({ "1", "6" })
+    public int level;
+
+    /**
+     * csv: log-like text that compresses well. random: incompressible, the
+     * chunks end up stored.
+     */
+    @Param({ "csv", "random" })
+    public String data;
+
+    @Param({ "64MB" })
+    public String size;
+
+    @Param({ "0" })
+    public int threads; // 0: one per core
+
+    private Path root;
+    private Path source;
+    private Path target;
+    private Path packed;
+    private ExecutorService compressors;
+    private int window;
+    private long sourceBytes;
+    private long packedBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchFiles.createTempDir("sync-bench-compress");
+        source = root.resolve("source." + data);
+        if ("csv".equals(data)) {
+            writeCsv(source, BenchFiles.parseSize(size));
+        } else {
+            BenchFiles.writeRandomFile(source, BenchFiles.parseSize(size));
+        }
+        sourceBytes = Files.size(source);
+        target = root.resolve("target." + data);
+
+        int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        compressors = Executors.newFixedThreadPool(n);
+        window = n * 2;
+
+        // A staging file for unpack to start from
+        CompressedTransfer.Stats stats = CompressedTransfer.pack(source, target, 0, compressors, window, level, false);
+        packedBytes = stats.packedSize;
+        packed = root.resolve("packed.bin");
+        Files.move(CompressedTransfer.stagingFor(target), packed);
+        BenchFiles.warm(source);
+    }
+
+    @Setup(Level.Invocation)
+    public void restoreStaging() throws IOException {
+        Files.copy(packed, CompressedTransfer.stagingFor(target), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        compressors.shutdownNow();
+        BenchFiles.deleteTree(root);
+    }
+
+    @Benchmark
+    public long pack(Counters counters) throws IOException {
+        CompressedTransfer.Stats stats = CompressedTransfer.pack(source, target, 0, compressors, window, level,
+                false);
+        counters.sourceMB += stats.sourceSize / (1024.0 * 1024.0);
+        counters.wireMB += stats.packedSize / (1024.0 * 1024.0);
+        return stats.packedSize;
+    }
+
+    @Benchmark
+    public long unpack(Counters counters) throws IOException {
+        long size = CompressedTransfer.unpack(CompressedTransfer.stagingFor(target), false);
+        counters.sourceMB += size / (1024.0 * 1024.0);
+        counters.wireMB += packedBytes / (1024.0 * 1024.0);
+        return size;
+    }
+
+    private static void writeCsv(Path file, long size) throws IOException {
+        Random random = new Random(42);
+        long written = 0;
+        try (BufferedWriter w = Files.newBufferedWriter(file)) {
+            while (written < size) {
+                String line = String.format("2024-03-%02d %02d:%02d:%02d,sensor-%03d,%.3f,%s%n",
+                        1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60),
+                        random.nextInt(200), random.nextDouble() * 100, random.nextInt(50) == 0 ? "WARN" : "OK");
+                w.write(line);
+                written += line.length();
+            }
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public double sourceMB;
+        public double wireMB;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            sourceMB = 0;
+            wireMB = 0;
+        }
+    }
+}
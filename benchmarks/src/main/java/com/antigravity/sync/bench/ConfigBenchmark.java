@@ -0,0 +1,103 @@
+package com.antigravity.sync.bench;
+
+import com.antigravity.sync.core.ConfigManager;
+import com.antigravity.sync.core.ProfileStore;
+import com.antigravity.sync.core.SyncIndex;
+import com.antigravity.sync.core.SyncProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading and saving the configuration with thousands of destination
+ * lines: ConfigManager.load() plus reading the profile, saving one profile,
+ * and the sync index that holds one line per destination file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfigBenchmark {
+
+    @Param({ "1000", "10000" })
+    public int lines;
+
+    private Path root;
+    private ConfigManager config;
+    private SyncProfile profile;
+    private SyncIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchFiles.createTempDir("sync-bench-config");
+        config = new ConfigManager(root.toString());
+        config.load();
+        config.save();
+
+        List<String> dests = new ArrayList<>();
+        for (int i = 0; i < lines; i++) {
+            dests.add(root.resolve("share" + (i % 16)).resolve("dest" + i).toString());
+        }
+        profile = config.getProfileStore().create("bench", root.resolve("source.bin").toString(), dests);
+
+        index = new SyncIndex(config.getConfigDir());
+        for (String dest : dests) {
+            index.put(new File(dest, "source.bin"), new SyncIndex.Entry(1024, 1700000000000L, "deadbeef", 1024,
+                    1700000000000L));
+        }
+        index.save();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchFiles.deleteTree(root);
+    }
+
+    @Benchmark
+    public SyncProfile loadConfig() {
+        ConfigManager c = new ConfigManager(root.toString());
+        c.load();
+        ProfileStore store = c.getProfileStore();
+        return store.get(store.getId(0));
+    }
+
+    @Benchmark
+    public void saveProfile() {
+        config.getProfileStore().save(profile);
+    }
+
+    @Benchmark
+    public SyncIndex loadIndex() {
+        SyncIndex i = new SyncIndex(config.getConfigDir());
+        i.load();
+        return i;
+    }
+
+    @Benchmark
+    public void saveIndex() {
+        // save() skips a clean index, touch one entry to force the write
+        File first = new File(profile.getDestPaths().get(0), "source.bin");
+        index.put(first, index.get(first));
+        index.save();
+    }
+}
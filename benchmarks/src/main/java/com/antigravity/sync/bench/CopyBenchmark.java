@@ -0,0 +1,134 @@
+package com.antigravity.sync.bench;
+
+import com.antigravity.sync.core.CopyEngine;
+import com.antigravity.sync.core.SyncIndex;
+import com.antigravity.sync.core.SyncProfile;
+import com.antigravity.sync.core.SyncResult;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full copies of one source to N destinations through CopyEngine, the same
+ * path a sync from the GUI or the daemon takes. Every invocation copies, the
+ * skip-unchanged check is off.
+ *
+ * In thrpt mode the "megabytes" counter is MB/s of source data synced and
+ * "destinations" is destinations/s; in avgt mode "destinations" is the
+ * latency per destination.
+ *
+ * The defaults stay within a laptop's temp dir. The full matrix is
+ * -p size=1KB,1MB,64MB,1GB,4GB -p destinations=1,8,64 -p cache=warm,cold
+ * and needs up to 256 GB of free space.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CopyBenchmark {
+
+    @Param({ "1KB", "1MB", "64MB" })
+    public String size;
+
+    @Param({ "1", "8", "64" })
+    public int destinations;
+
+    /**
+     * warm: source in the page cache. cold: page cache dropped before every
+     * invocation (Linux, root only).
+     */
+    @Param({ "warm" })
+    public String cache;
+
+    @Param({ "8" })
+    public int threads;
+
+    @Param({ "2" })
+    public int perVolume;
+
+    private Path root;
+    private CopyEngine engine;
+    private SyncIndex index;
+    private List<SyncProfile> profiles;
+    private long sizeBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        sizeBytes = BenchFiles.parseSize(size);
+        root = BenchFiles.createTempDir("sync-bench-copy");
+        Path source = root.resolve("source.bin");
+        BenchFiles.writeRandomFile(source, sizeBytes);
+
+        List<String> dests = new ArrayList<>();
+        for (int i = 0; i < destinations; i++) {
+            Path dest = Files.createDirectories(root.resolve("dest" + i));
+            dests.add(dest.toString());
+        }
+        profiles = Collections.singletonList(new SyncProfile("1", "bench", source.toString(), dests));
+
+        Path configDir = Files.createDirectories(root.resolve("config"));
+        index = new SyncIndex(configDir.toFile());
+        engine = new CopyEngine(index, threads, perVolume);
+        if ("warm".equals(cache))
+            BenchFiles.warm(source);
+    }
+
+    @Setup(Level.Invocation)
+    public void dropCache() throws IOException {
+        if ("cold".equals(cache))
+            BenchFiles.dropCaches();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        engine.shutdown();
+        BenchFiles.deleteTree(root);
+    }
+
+    @Benchmark
+    public SyncResult syncProfile(Counters counters) {
+        Map<SyncProfile, SyncResult> results = engine.syncAll(profiles, false);
+        SyncResult result = results.get(profiles.get(0));
+        if (result.getFailed() > 0)
+            throw new IllegalStateException("copy failed: " + result);
+        counters.megabytes += sizeBytes / (1024.0 * 1024.0);
+        counters.destinations += destinations;
+        return result;
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public double megabytes;
+        public long destinations;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+            destinations = 0;
+        }
+    }
+}
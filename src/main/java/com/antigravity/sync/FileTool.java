@@ -1,44 +1,95 @@
 package com.antigravity.sync;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.SashForm;
 import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Group;
 import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.MessageBox;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.widgets.Spinner;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.TableItem;
+import org.eclipse.swt.widgets.Text;
 
+import com.antigravity.sync.core.ConfigManager;
+import com.antigravity.sync.core.ProfileStore;
+import com.antigravity.sync.core.RateLimit;
+import com.antigravity.sync.core.RateLimits;
+import com.antigravity.sync.core.SourceWatcher;
+import com.antigravity.sync.core.SyncProfile;
+import com.antigravity.sync.core.SyncPlan;
+import com.antigravity.sync.core.SyncResult;
+import com.antigravity.sync.core.SyncScheduler;
+import com.antigravity.sync.core.SyncService;
+
+import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class FileTool {
 
+    private static final long MB = 1024 * 1024;
+
     private Shell shell;
     private ConfigManager configManager;
-    private SyncPanel syncPanel1;
-    private SyncPanel syncPanel2;
-    private SyncPanel syncPanel3;
+    private SyncService syncService;
+    private SyncScheduler scheduler;
+    private SourceWatcher sourceWatcher;
+    private ProfileStore profileStore;
+    private Table profileTable;
+    private SyncPanel syncPanel;
+    // Last sync result per profile id, only touched on the UI thread
+    private Map<String, String> profileStatus = new HashMap<>();
     private Spinner intervalSpinner;
     private Button btnAutoSync;
+    private Button btnIncremental;
+    private Button btnWatch;
+    private Spinner limitSpinner;
+    private Spinner fileLimitSpinner;
     private Label statusLabel;
+    // Text the throughput is appended to while a sync runs, null otherwise
+    private String runningStatus;
+    private int runningSyncs;
 
-    private Timer autoSyncTimer;
     private boolean isAutoSyncRunning = false;
 
     public FileTool(String rootDir) {
         configManager = new ConfigManager(rootDir);
         configManager.load();
+        syncService = new SyncService(configManager);
+        profileStore = syncService.getProfileStore();
+        if (profileStore.size() == 0) {
+            profileStore.create("Sync Profile 1", "", new ArrayList<>());
+        }
+
+        // Remove temp files of copies that were interrupted last time
+        syncService.cleanupTempFiles();
     }
 
     public void open() {
         Display display = Display.getDefault();
         createContents(display);
+        scheduler = new SyncScheduler(syncService.getEngine(), this::snapshotProfiles, new StatusUpdater());
+        scheduler.setIncremental(btnIncremental.getSelection());
+        sourceWatcher = new SourceWatcher(scheduler::sourceChanged, configManager.getWatchQuiet());
+        updateWatcher();
+        // Profiles whose sync was cut off last time are finished right away
+        List<SyncProfile> interrupted = syncService.getInterruptedProfiles();
+        if (!interrupted.isEmpty())
+            scheduler.resume(interrupted);
         shell.open();
         shell.layout();
 
@@ -52,39 +103,33 @@ public class FileTool {
                 display.sleep();
             }
         }
-        if (autoSyncTimer != null) {
-            autoSyncTimer.cancel();
-        }
+        sourceWatcher.shutdown();
+        scheduler.shutdown();
+        syncService.shutdown();
     }
 
     protected void createContents(Display display) {
         shell = new Shell(display);
-        shell.setSize(600, 900); // Increased height for three panels
-        shell.setText("File Sync Tool - Dual Mode");
+        shell.setSize(900, 700);
+        shell.setText("File Sync Tool");
         shell.setLayout(new GridLayout(1, false));
 
-        // --- Sync Panel 1 ---
-        syncPanel1 = new SyncPanel(shell, SWT.NONE, "Sync Profile 1");
-        syncPanel1.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true));
-        syncPanel1.setSourcePath(configManager.getSourcePath1());
-        syncPanel1.setDestPaths(configManager.getDestPaths1());
+        SashForm sash = new SashForm(shell, SWT.HORIZONTAL);
+        sash.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true));
 
-        // --- Sync Panel 2 ---
-        syncPanel2 = new SyncPanel(shell, SWT.NONE, "Sync Profile 2");
-        syncPanel2.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true));
-        syncPanel2.setSourcePath(configManager.getSourcePath2());
-        syncPanel2.setDestPaths(configManager.getDestPaths2());
+        createProfileList(sash);
 
-        // --- Sync Panel 3 ---
-        syncPanel3 = new SyncPanel(shell, SWT.NONE, "Sync Profile 3");
-        syncPanel3.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true));
-        syncPanel3.setSourcePath(configManager.getSourcePath3());
-        syncPanel3.setDestPaths(configManager.getDestPaths3());
+        // --- Editor for the selected profile ---
+        syncPanel = new SyncPanel(sash, SWT.NONE, "Selected Profile");
+        syncPanel.addChangeListener(this::saveSelectedProfile);
+        syncPanel.setPreviewService(syncService.getPreviewService());
+        syncPanel.setSyncService(syncService);
+        sash.setWeights(new int[] { 2, 3 });
 
         // --- Actions ---
         Group grpActions = new Group(shell, SWT.NONE);
         grpActions.setText("Global Actions");
-        grpActions.setLayout(new GridLayout(4, false));
+        grpActions.setLayout(new GridLayout(11, false));
         grpActions.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false, 1, 1));
 
         Button btnSyncNow = new Button(grpActions, SWT.NONE);
@@ -96,6 +141,16 @@ public class FileTool {
             }
         });
 
+        Button btnPlan = new Button(grpActions, SWT.NONE);
+        btnPlan.setText("Plan...");
+        btnPlan.setToolTipText("Show what a sync would copy and how long it would take, without writing anything");
+        btnPlan.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                performPlan();
+            }
+        });
+
         // Auto Sync Controls
         Label lblInterval = new Label(grpActions, SWT.NONE);
         lblInterval.setText("Interval (min):");
@@ -114,38 +169,278 @@ public class FileTool {
             }
         });
 
+        btnIncremental = new Button(grpActions, SWT.CHECK);
+        btnIncremental.setText("Skip unchanged");
+        btnIncremental.setToolTipText("Only copy when the source differs from what was last written");
+        btnIncremental.setSelection(configManager.isIncremental());
+        btnIncremental.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                scheduler.setIncremental(btnIncremental.getSelection());
+            }
+        });
+
+        btnWatch = new Button(grpActions, SWT.CHECK);
+        btnWatch.setText("Watch sources");
+        btnWatch.setToolTipText("Sync as soon as a source file has changed. The interval timer stays as a fallback.");
+        btnWatch.setSelection(configManager.isWatch());
+        btnWatch.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                updateWatcher();
+            }
+        });
+
+        // Rate limits for all profiles together, changed while a sync runs they apply right away
+        RateLimit global = syncService.getEngine().getRateLimits().getGlobal();
+        new Label(grpActions, SWT.NONE).setText("Limit MB/s:");
+        limitSpinner = new Spinner(grpActions, SWT.BORDER);
+        limitSpinner.setDigits(1);
+        limitSpinner.setMaximum(1000000);
+        limitSpinner.setSelection((int) Math.round(global.getBytesPerSec() * 10.0 / MB));
+        limitSpinner.setToolTipText("Global write limit in MB per second, 0 for unlimited");
+        limitSpinner.addListener(SWT.Modify, e -> applyGlobalLimit());
+
+        new Label(grpActions, SWT.NONE).setText("files/s:");
+        fileLimitSpinner = new Spinner(grpActions, SWT.BORDER);
+        fileLimitSpinner.setMaximum(1000000);
+        fileLimitSpinner.setSelection((int) global.getFilesPerSec());
+        fileLimitSpinner.setToolTipText("Global limit of files written per second, 0 for unlimited");
+        fileLimitSpinner.addListener(SWT.Modify, e -> applyGlobalLimit());
+
         // Status Bar
         statusLabel = new Label(shell, SWT.NONE);
         statusLabel.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false, 1, 1));
         statusLabel.setText("Ready");
+
+        if (profileStore.size() > 0) {
+            profileTable.setSelection(0);
+            syncPanel.setProfile(profileStore.get(profileStore.getId(0)));
+        } else {
+            syncPanel.setProfile(null);
+        }
     }
 
-    private void saveConfigFromUI() {
-        // Save Panel 1
-        configManager.setSourcePath1(syncPanel1.getSourcePath());
-        configManager.setDestPaths1(syncPanel1.getDestPaths());
+    private void createProfileList(Composite parent) {
+        Group grpProfiles = new Group(parent, SWT.NONE);
+        grpProfiles.setText("Profiles");
+        grpProfiles.setLayout(new GridLayout(2, false));
+
+        // Virtual: rows are only filled in when they become visible
+        profileTable = new Table(grpProfiles, SWT.VIRTUAL | SWT.BORDER | SWT.FULL_SELECTION | SWT.SINGLE);
+        profileTable.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true, 2, 1));
+        profileTable.setHeaderVisible(true);
+        String[] titles = { "Name", "Dest.", "Last Sync" };
+        int[] widths = { 140, 50, 160 };
+        for (int i = 0; i < titles.length; i++) {
+            TableColumn col = new TableColumn(profileTable, SWT.NONE);
+            col.setText(titles[i]);
+            col.setWidth(widths[i]);
+        }
+        profileTable.addListener(SWT.SetData, event -> {
+            TableItem item = (TableItem) event.item;
+            String id = profileStore.getId(profileTable.indexOf(item));
+            if (id == null)
+                return;
+            String status = profileStatus.get(id);
+            item.setText(new String[] { profileStore.getName(id), String.valueOf(profileStore.getDestCount(id)),
+                    status == null ? "" : status });
+        });
+        profileTable.setItemCount(profileStore.size());
+        profileTable.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                String id = profileStore.getId(profileTable.getSelectionIndex());
+                syncPanel.setProfile(id == null ? null : profileStore.get(id));
+                if (id != null && profileStatus.containsKey(id))
+                    syncPanel.setStatus(profileStatus.get(id));
+            }
+        });
+
+        Button btnNew = new Button(grpProfiles, SWT.NONE);
+        btnNew.setText("New Profile");
+        btnNew.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                SyncProfile created = profileStore.create("Sync Profile " + (profileStore.size() + 1), "",
+                        new ArrayList<>());
+                scheduler.profilesChanged();
+                profileTable.setItemCount(profileStore.size());
+                int index = profileStore.indexOf(created.getId());
+                profileTable.setSelection(index);
+                syncPanel.setProfile(created);
+            }
+        });
+
+        Button btnDelete = new Button(grpProfiles, SWT.NONE);
+        btnDelete.setText("Delete Profile");
+        btnDelete.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                String id = syncPanel.getProfileId();
+                if (id == null)
+                    return;
+                MessageBox mb = new MessageBox(shell, SWT.ICON_QUESTION | SWT.YES | SWT.NO);
+                mb.setText("Delete Profile");
+                mb.setMessage("Delete profile '" + profileStore.getName(id) + "'? Files already copied are kept.");
+                if (mb.open() != SWT.YES)
+                    return;
+                profileStore.delete(id);
+                scheduler.profilesChanged();
+                profileStatus.remove(id);
+                profileTable.setItemCount(profileStore.size());
+                profileTable.clearAll();
+                profileTable.deselectAll();
+                syncPanel.setProfile(null);
+                updateWatcher();
+            }
+        });
+    }
+
+    private void applyGlobalLimit() {
+        syncService.getEngine().getRateLimits().setGlobal(
+                new RateLimit(limitSpinner.getSelection() * MB / 10, fileLimitSpinner.getSelection()));
+    }
 
-        // Save Panel 2
-        configManager.setSourcePath2(syncPanel2.getSourcePath());
-        configManager.setDestPaths2(syncPanel2.getDestPaths());
+    private void saveSelectedProfile() {
+        SyncProfile profile = syncPanel.toProfile();
+        if (profile.getId() == null)
+            return;
+        profileStore.save(profile);
+        scheduler.profilesChanged();
+        // Takes effect in a sync that is already running
+        syncService.getEngine().getRateLimits().apply(profile);
+        int index = profileStore.indexOf(profile.getId());
+        if (index >= 0)
+            profileTable.clear(index);
+        updateWatcher();
+    }
 
-        // Save Panel 3
-        configManager.setSourcePath3(syncPanel3.getSourcePath());
-        configManager.setDestPaths3(syncPanel3.getDestPaths());
+    private void saveConfigFromUI() {
+        // Profiles are saved as they are edited, only catch a pending name edit
+        if (syncPanel.getProfileId() != null) {
+            profileStore.save(syncPanel.toProfile());
+            scheduler.profilesChanged();
+        }
 
         configManager.setInterval(intervalSpinner.getSelection());
+        configManager.setIncremental(btnIncremental.getSelection());
+        configManager.setWatch(btnWatch.getSelection());
+        RateLimit global = syncService.getEngine().getRateLimits().getGlobal();
+        configManager.setMaxBytesPerSec(global.getBytesPerSec());
+        configManager.setMaxFilesPerSec(global.getFilesPerSec());
         configManager.save();
     }
 
     private void performSync() {
-        int success1 = syncPanel1.performSync();
-        int success2 = syncPanel2.performSync();
-        int success3 = syncPanel3.performSync();
+        if (!scheduler.trigger())
+            statusLabel.setText("All profiles are already waiting to be synced.");
+    }
 
-        String time = new SimpleDateFormat("HH:mm:ss").format(new Date());
-        statusLabel.setText(
-                "Sync finished at " + time + ". Profile 1 Files: " + success1 + ", Profile 2 Files: " + success2
-                        + ", Profile 3 Files: " + success3);
+    /**
+     * Plans a sync of all profiles in the background and shows the result.
+     */
+    private void performPlan() {
+        statusLabel.setText("Planning...");
+        List<SyncProfile> profiles = snapshotProfiles();
+        boolean incremental = btnIncremental.getSelection();
+        Display display = shell.getDisplay();
+        CompletableFuture.supplyAsync(() -> syncService.getPlanner().plan(profiles, incremental))
+                .whenComplete((plan, e) -> {
+                    if (display.isDisposed())
+                        return;
+                    display.asyncExec(() -> {
+                        if (shell.isDisposed())
+                            return;
+                        if (e != null) {
+                            statusLabel.setText("Planning failed: " + e.getMessage());
+                            return;
+                        }
+                        statusLabel.setText("Plan: " + plan.getFilesToCopy() + " copies, "
+                                + SyncResult.formatBytes(plan.getBytesToWrite()) + ", about "
+                                + SyncPlan.formatSeconds(plan.getEstimatedSeconds()));
+                        showPlan(plan);
+                    });
+                });
+    }
+
+    private void showPlan(SyncPlan plan) {
+        Shell dialog = new Shell(shell, SWT.DIALOG_TRIM | SWT.RESIZE | SWT.APPLICATION_MODAL);
+        dialog.setText("Sync Plan");
+        dialog.setLayout(new GridLayout(2, false));
+
+        Text text = new Text(dialog, SWT.MULTI | SWT.READ_ONLY | SWT.BORDER | SWT.V_SCROLL | SWT.H_SCROLL);
+        GridData gd = new GridData(SWT.FILL, SWT.FILL, true, true, 2, 1);
+        gd.widthHint = 640;
+        gd.heightHint = 360;
+        text.setLayoutData(gd);
+        text.setText(plan.describe());
+
+        Button sync = new Button(dialog, SWT.PUSH);
+        sync.setText("Synchronize Now");
+        sync.setToolTipText("Runs the planned copies; files found up to date are not checked again");
+        sync.setLayoutData(new GridData(SWT.RIGHT, SWT.CENTER, true, false));
+        sync.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                dialog.close();
+                performSync();
+            }
+        });
+        Button close = new Button(dialog, SWT.PUSH);
+        close.setText("Close");
+        close.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                dialog.close();
+            }
+        });
+        dialog.setDefaultButton(close);
+        dialog.pack();
+        dialog.open();
+    }
+
+    private void updateWatcher() {
+        if (btnWatch.isDisposed())
+            return;
+        // Profiles scheduled on change are always watched, the others with the checkbox
+        List<String> sources = syncService.getWatchedSources(btnWatch.getSelection());
+        if (sources.isEmpty()) {
+            sourceWatcher.stop();
+            return;
+        }
+        try {
+            sourceWatcher.watch(sources);
+        } catch (IOException e) {
+            statusLabel.setText("Could not watch sources: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Called on the sync thread; edits are saved to the store right away
+    private List<SyncProfile> snapshotProfiles() {
+        return profileStore.getAll();
+    }
+
+    private void showProfileStatus(SyncProfile profile, String status) {
+        profileStatus.put(profile.getId(), status);
+        int index = profileStore.indexOf(profile.getId());
+        if (index >= 0 && index < profileTable.getItemCount())
+            profileTable.clear(index);
+        if (profile.getId().equals(syncPanel.getProfileId()))
+            syncPanel.setStatus(status);
+    }
+
+    /**
+     * Shows the current throughput once a second while a sync runs.
+     */
+    private void showThroughput() {
+        if (runningStatus == null || statusLabel.isDisposed())
+            return;
+        RateLimits limits = syncService.getEngine().getRateLimits();
+        statusLabel.setText(runningStatus + " " + SyncResult.formatBytes((long) limits.getBytesPerSec()) + "/s, "
+                + Math.round(limits.getFilesPerSec()) + " files/s");
+        statusLabel.getDisplay().timerExec(1000, this::showThroughput);
     }
 
     private void toggleAutoSync() {
@@ -155,15 +450,7 @@ public class FileTool {
             if (minutes < 1)
                 minutes = 1;
 
-            long period = minutes * 60 * 1000L;
-
-            autoSyncTimer = new Timer(true);
-            autoSyncTimer.scheduleAtFixedRate(new TimerTask() {
-                @Override
-                public void run() {
-                    Display.getDefault().asyncExec(() -> performSync());
-                }
-            }, 0, period);
+            scheduler.start(minutes * 60 * 1000L);
 
             isAutoSyncRunning = true;
             btnAutoSync.setText("Stop Auto-Sync");
@@ -172,10 +459,7 @@ public class FileTool {
 
         } else {
             // Stop
-            if (autoSyncTimer != null) {
-                autoSyncTimer.cancel();
-                autoSyncTimer = null;
-            }
+            scheduler.stop();
             isAutoSyncRunning = false;
             btnAutoSync.setText("Start Auto-Sync");
             intervalSpinner.setEnabled(true);
@@ -183,6 +467,69 @@ public class FileTool {
         }
     }
 
+    /**
+     * Receives progress from the sync thread and posts it to the UI without
+     * blocking either side.
+     */
+    private class StatusUpdater implements SyncScheduler.Listener {
+
+        @Override
+        public void syncStarted(List<SyncProfile> profiles) {
+            ui(() -> {
+                boolean showing = runningStatus != null;
+                runningSyncs++;
+                runningStatus = "Synchronizing " + profiles.size() + " profiles...";
+                statusLabel.setText(runningStatus);
+                if (!showing)
+                    statusLabel.getDisplay().timerExec(1000, FileTool.this::showThroughput);
+                for (SyncProfile profile : profiles) {
+                    showProfileStatus(profile, "Synchronizing...");
+                }
+            });
+        }
+
+        @Override
+        public void profileFinished(SyncProfile profile, SyncResult result) {
+            String time = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            ui(() -> showProfileStatus(profile, time + ": " + result));
+        }
+
+        @Override
+        public void syncFinished(Map<SyncProfile, SyncResult> results, long millis) {
+            SyncResult total = new SyncResult();
+            for (SyncResult r : results.values()) {
+                total.add(r);
+            }
+            String time = new SimpleDateFormat("HH:mm:ss").format(new Date());
+            long perSec = millis > 0 ? total.getBytesWritten() * 1000 / millis : 0;
+            ui(() -> {
+                // Other batches may still be running, the throughput display keeps going for them
+                if (--runningSyncs == 0)
+                    runningStatus = null;
+                statusLabel.setText("Sync finished at " + time + " in " + millis + " ms: " + total
+                        + ". Written: " + SyncResult.formatBytes(total.getBytesWritten()) + " of "
+                        + SyncResult.formatBytes(total.getBytesCopied()) + " ("
+                        + SyncResult.formatBytes(perSec) + "/s), avoided: "
+                        + SyncResult.formatBytes(total.getBytesSkipped()));
+            });
+        }
+
+        @Override
+        public void syncDropped() {
+            // performSync() reports it itself
+        }
+
+        private void ui(Runnable r) {
+            Display display = Display.getDefault();
+            if (display.isDisposed())
+                return;
+            display.asyncExec(() -> {
+                if (!shell.isDisposed())
+                    r.run();
+            });
+        }
+    }
+
     public static void main(String[] args) {
         String rootDir = null;
         if (args.length > 0) {
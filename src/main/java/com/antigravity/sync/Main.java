@@ -0,0 +1,21 @@
+package com.antigravity.sync;
+
+import com.antigravity.sync.cli.SyncDaemon;
+
+/**
+ * Jar entry point. Starts the headless daemon when --headless is given,
+ * otherwise the SWT application. Kept free of SWT references so the
+ * headless path never loads SWT.
+ */
+public class Main {
+
+    public static void main(String[] args) throws Exception {
+        for (String arg : args) {
+            if ("--headless".equals(arg)) {
+                SyncDaemon.main(args);
+                return;
+            }
+        }
+        FileTool.main(args);
+    }
+}
@@ -3,26 +3,45 @@ package com.antigravity.sync;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
+import org.eclipse.swt.graphics.Font;
+import org.eclipse.swt.graphics.FontData;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.DirectoryDialog;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.swt.widgets.Group;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.List;
 import org.eclipse.swt.widgets.MessageBox;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.Spinner;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
 
+import com.antigravity.sync.agent.AgentUrl;
+import com.antigravity.sync.core.PreviewService;
+import com.antigravity.sync.core.RateLimit;
+import com.antigravity.sync.core.Schedule;
+import com.antigravity.sync.core.SourceWalker;
+import com.antigravity.sync.core.SyncProfile;
+import com.antigravity.sync.core.SyncResult;
+import com.antigravity.sync.core.SyncService;
+import com.antigravity.sync.core.VersionStore;
+
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class SyncPanel extends Composite {
 
@@ -30,6 +49,17 @@ public class SyncPanel extends Composite {
     private List destList;
     private Shell shell;
     private Label statusLabel; // Optional, might use parent's status or local
+    private Text nameText;
+    private String profileId;
+    private boolean updating = false;
+    private java.util.List<Runnable> changeListeners = new ArrayList<>();
+    private PreviewService previewService;
+    private SyncService syncService;
+    private RateLimit limit = RateLimit.NONE;
+    private Map<String, RateLimit> destLimits = new LinkedHashMap<>();
+    private Text scheduleText;
+    private Spinner prioritySpinner;
+    private Schedule schedule = Schedule.DEFAULT;
 
     public SyncPanel(Composite parent, int style, String title) {
         super(parent, style);
@@ -42,22 +72,102 @@ public class SyncPanel extends Composite {
         group.setLayout(new GridLayout(1, false));
         group.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true));
 
+        createNameSection(group);
         createSourceSection(group);
+        createScheduleSection(group);
         createDestSection(group);
+
+        statusLabel = new Label(group, SWT.NONE);
+        statusLabel.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+        statusLabel.setText("Not synced yet");
     }
 
-    private void createSourceSection(Composite parent) {
+    private void createNameSection(Composite parent) {
         Composite comp = new Composite(parent, SWT.NONE);
         comp.setLayout(new GridLayout(3, false));
         comp.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
 
+        new Label(comp, SWT.NONE).setText("Name:");
+
+        nameText = new Text(comp, SWT.BORDER);
+        nameText.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false, 1, 1));
+        // Save the name when editing is done, not on every keystroke
+        nameText.addListener(SWT.FocusOut, e -> fireChanged());
+        nameText.addListener(SWT.DefaultSelection, e -> fireChanged());
+
+        Button btnLimit = new Button(comp, SWT.NONE);
+        btnLimit.setText("Limit...");
+        btnLimit.setToolTipText("Rate limit for all destinations of this profile together");
+        btnLimit.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                RateLimit l = promptLimit("Profile Limit", limit);
+                if (l != null) {
+                    limit = l;
+                    fireChanged();
+                }
+            }
+        });
+    }
+
+    private void createScheduleSection(Composite parent) {
+        Composite comp = new Composite(parent, SWT.NONE);
+        comp.setLayout(new GridLayout(4, false));
+        comp.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+
+        new Label(comp, SWT.NONE).setText("Schedule:");
+
+        scheduleText = new Text(comp, SWT.BORDER);
+        scheduleText.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false, 1, 1));
+        scheduleText.setMessage("default interval");
+        scheduleText.setToolTipText("Empty for the Auto-Sync interval, \"every 30s\", \"every 5m\", \"every 2h\",\n"
+                + "\"cron 0 2 * * 1-5\" (minute hour day month weekday) or \"change\" to sync when the source changes");
+        scheduleText.addListener(SWT.FocusOut, e -> applySchedule());
+        scheduleText.addListener(SWT.DefaultSelection, e -> applySchedule());
+
+        new Label(comp, SWT.NONE).setText("Priority:");
+
+        prioritySpinner = new Spinner(comp, SWT.BORDER);
+        prioritySpinner.setMinimum(-100);
+        prioritySpinner.setMaximum(100);
+        prioritySpinner.setToolTipText("Profiles with a higher priority are synced first when several are due");
+        prioritySpinner.addListener(SWT.Selection, e -> fireChanged());
+    }
+
+    private void applySchedule() {
+        if (updating || profileId == null)
+            return;
+        String spec = scheduleText.getText().trim();
+        if (spec.equals(schedule.toString()))
+            return;
+        try {
+            schedule = Schedule.parse(spec);
+            fireChanged();
+        } catch (IllegalArgumentException ex) {
+            MessageBox mb = new MessageBox(shell, SWT.ICON_ERROR | SWT.OK);
+            mb.setText("Schedule");
+            mb.setMessage(ex.getMessage());
+            mb.open();
+            scheduleText.setText(schedule.toString());
+        }
+    }
+
+    private void createSourceSection(Composite parent) {
+        Composite comp = new Composite(parent, SWT.NONE);
+        comp.setLayout(new GridLayout(4, false));
+        comp.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+
         new Label(comp, SWT.NONE).setText("Source:");
 
-        sourcePathText = new Text(comp, SWT.BORDER | SWT.READ_ONLY);
+        // A file, a folder or a pattern such as C:\data\*.csv, typed or picked
+        sourcePathText = new Text(comp, SWT.BORDER);
         sourcePathText.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false, 1, 1));
+        sourcePathText.setToolTipText("File, folder or pattern (*.csv, **/*.log)");
+        sourcePathText.addListener(SWT.FocusOut, e -> fireChanged());
+        sourcePathText.addListener(SWT.DefaultSelection, e -> fireChanged());
 
         Button btnSelect = new Button(comp, SWT.NONE);
-        btnSelect.setText("Browse...");
+        btnSelect.setText("File...");
         btnSelect.addSelectionListener(new SelectionAdapter() {
             @Override
             public void widgetSelected(SelectionEvent e) {
@@ -65,6 +175,21 @@ public class SyncPanel extends Composite {
                 String selected = fd.open();
                 if (selected != null) {
                     sourcePathText.setText(selected);
+                    fireChanged();
+                }
+            }
+        });
+
+        Button btnFolder = new Button(comp, SWT.NONE);
+        btnFolder.setText("Folder...");
+        btnFolder.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                DirectoryDialog dd = new DirectoryDialog(shell);
+                String selected = dd.open();
+                if (selected != null) {
+                    sourcePathText.setText(selected);
+                    fireChanged();
                 }
             }
         });
@@ -101,10 +226,58 @@ public class SyncPanel extends Composite {
                 String path = dd.open();
                 if (path != null) {
                     destList.add(path);
+                    fireChanged();
                 }
             }
         });
 
+        Button btnAgent = new Button(btnComp, SWT.NONE);
+        btnAgent.setText("Agent...");
+        btnAgent.setToolTipText("A folder on a host running the sync agent");
+        btnAgent.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+        btnAgent.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                String url = promptAgentUrl();
+                if (url != null) {
+                    destList.add(url);
+                    fireChanged();
+                }
+            }
+        });
+
+        Button btnDestLimit = new Button(btnComp, SWT.NONE);
+        btnDestLimit.setText("Limit...");
+        btnDestLimit.setToolTipText("Rate limit for the selected destination");
+        btnDestLimit.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+        btnDestLimit.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                String[] selection = destList.getSelection();
+                if (selection.length == 0)
+                    return;
+                RateLimit l = promptLimit("Destination Limit",
+                        destLimits.getOrDefault(selection[0], RateLimit.NONE));
+                if (l != null) {
+                    destLimits.put(selection[0], l);
+                    fireChanged();
+                }
+            }
+        });
+
+        Button btnRestore = new Button(btnComp, SWT.NONE);
+        btnRestore.setText("Restore...");
+        btnRestore.setToolTipText("Roll the selected destination back to an earlier time from its kept versions");
+        btnRestore.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+        btnRestore.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                String[] selection = destList.getSelection();
+                if (selection.length > 0)
+                    restoreDestination(selection[0]);
+            }
+        });
+
         Button btnRemove = new Button(btnComp, SWT.NONE);
         btnRemove.setText("Remove");
         btnRemove.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
@@ -114,9 +287,185 @@ public class SyncPanel extends Composite {
                 int[] selection = destList.getSelectionIndices();
                 if (selection.length > 0) {
                     destList.remove(selection);
+                    fireChanged();
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks for an agent://host:port/path destination. Returns null if
+     * cancelled.
+     */
+    private String promptAgentUrl() {
+        Shell dialog = new Shell(shell, SWT.DIALOG_TRIM | SWT.APPLICATION_MODAL);
+        dialog.setText("Agent Destination");
+        dialog.setLayout(new GridLayout(2, false));
+
+        Label label = new Label(dialog, SWT.NONE);
+        label.setText("URL:");
+        Text urlText = new Text(dialog, SWT.BORDER);
+        GridData gd = new GridData(SWT.FILL, SWT.CENTER, true, false);
+        gd.widthHint = 320;
+        urlText.setLayoutData(gd);
+        urlText.setText(AgentUrl.SCHEME);
+        urlText.setSelection(urlText.getText().length());
+
+        Button ok = new Button(dialog, SWT.PUSH);
+        ok.setText("OK");
+        ok.setLayoutData(new GridData(SWT.RIGHT, SWT.CENTER, true, false, 2, 1));
+        String[] result = new String[1];
+        ok.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                String url = urlText.getText().trim();
+                try {
+                    AgentUrl.parse(url);
+                } catch (IllegalArgumentException ex) {
+                    MessageBox mb = new MessageBox(dialog, SWT.ICON_ERROR | SWT.OK);
+                    mb.setText("Agent Destination");
+                    mb.setMessage(ex.getMessage() + "\n\nExpected agent://host:port/folder");
+                    mb.open();
+                    return;
+                }
+                result[0] = url;
+                dialog.close();
+            }
+        });
+        dialog.setDefaultButton(ok);
+
+        dialog.pack();
+        dialog.open();
+        while (!dialog.isDisposed()) {
+            if (!dialog.getDisplay().readAndDispatch())
+                dialog.getDisplay().sleep();
+        }
+        return result[0];
+    }
+
+    /**
+     * Asks for bytes and files per second. Returns null if cancelled.
+     */
+    private RateLimit promptLimit(String title, RateLimit current) {
+        Shell dialog = new Shell(shell, SWT.DIALOG_TRIM | SWT.APPLICATION_MODAL);
+        dialog.setText(title);
+        dialog.setLayout(new GridLayout(2, false));
+
+        new Label(dialog, SWT.NONE).setText("MB/s (0 = unlimited):");
+        Spinner mbSpinner = new Spinner(dialog, SWT.BORDER);
+        mbSpinner.setDigits(1);
+        mbSpinner.setMaximum(1000000);
+        mbSpinner.setSelection((int) Math.round(current.getBytesPerSec() * 10.0 / (1024 * 1024)));
+
+        new Label(dialog, SWT.NONE).setText("Files/s (0 = unlimited):");
+        Spinner filesSpinner = new Spinner(dialog, SWT.BORDER);
+        filesSpinner.setMaximum(1000000);
+        filesSpinner.setSelection((int) current.getFilesPerSec());
+
+        Button ok = new Button(dialog, SWT.PUSH);
+        ok.setText("OK");
+        ok.setLayoutData(new GridData(SWT.RIGHT, SWT.CENTER, true, false, 2, 1));
+        RateLimit[] result = new RateLimit[1];
+        ok.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                result[0] = new RateLimit(mbSpinner.getSelection() * 1024L * 1024 / 10, filesSpinner.getSelection());
+                dialog.close();
+            }
+        });
+        dialog.setDefaultButton(ok);
+
+        dialog.pack();
+        dialog.open();
+        while (!dialog.isDisposed()) {
+            if (!dialog.getDisplay().readAndDispatch())
+                dialog.getDisplay().sleep();
+        }
+        return result[0];
+    }
+
+    /**
+     * Asks for a time and rolls the destination back to it in the
+     * background.
+     */
+    private void restoreDestination(String destDir) {
+        if (syncService == null)
+            return;
+        if (AgentUrl.isAgent(destDir)) {
+            MessageBox mb = new MessageBox(shell, SWT.ICON_INFORMATION | SWT.OK);
+            mb.setText("Restore");
+            mb.setMessage("Versions are only kept for local and share destinations, not for agents.");
+            mb.open();
+            return;
+        }
+
+        Shell dialog = new Shell(shell, SWT.DIALOG_TRIM | SWT.APPLICATION_MODAL);
+        dialog.setText("Restore Destination");
+        dialog.setLayout(new GridLayout(2, false));
+
+        Label info = new Label(dialog, SWT.WRAP);
+        info.setText("Every file in " + destDir + " that was replaced since then gets back the version it had "
+                + "at that time. What it holds now is kept as a version too.");
+        GridData gd = new GridData(SWT.FILL, SWT.CENTER, true, false, 2, 1);
+        gd.widthHint = 360;
+        info.setLayoutData(gd);
+        new Label(dialog, SWT.NONE).setText("Time (or e.g. 2h ago):");
+        Text timeText = new Text(dialog, SWT.BORDER);
+        timeText.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+        timeText.setText(new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(System.currentTimeMillis()
+                - 60 * 60 * 1000L)));
+
+        Button ok = new Button(dialog, SWT.PUSH);
+        ok.setText("Restore");
+        ok.setLayoutData(new GridData(SWT.RIGHT, SWT.CENTER, true, false, 2, 1));
+        long[] result = new long[1];
+        ok.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                String text = timeText.getText().trim();
+                try {
+                    result[0] = VersionStore.parseTime(text.endsWith(" ago") ? text.substring(0, text.length() - 4)
+                            : text);
+                } catch (IllegalArgumentException ex) {
+                    MessageBox mb = new MessageBox(dialog, SWT.ICON_ERROR | SWT.OK);
+                    mb.setText("Restore Destination");
+                    mb.setMessage(ex.getMessage());
+                    mb.open();
+                    return;
                 }
+                dialog.close();
             }
         });
+        dialog.setDefaultButton(ok);
+
+        dialog.pack();
+        dialog.open();
+        while (!dialog.isDisposed()) {
+            if (!dialog.getDisplay().readAndDispatch())
+                dialog.getDisplay().sleep();
+        }
+        if (result[0] == 0)
+            return;
+
+        Display display = getDisplay();
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return syncService.restore(destDir, result[0]);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((restored, e) -> display.asyncExec(() -> {
+            if (shell.isDisposed())
+                return;
+            MessageBox mb = new MessageBox(shell, (e != null ? SWT.ICON_ERROR : SWT.ICON_INFORMATION) | SWT.OK);
+            mb.setText("Restore Destination");
+            if (e != null)
+                mb.setMessage("Restore failed: " + e.getCause().getMessage());
+            else
+                mb.setMessage("Restored " + restored + " files in " + destDir + ".\n\nThe next sync copies the source "
+                        + "over them again unless it was fixed.");
+            mb.open();
+        }));
     }
 
     private void showDestinationDetails() {
@@ -129,38 +478,193 @@ public class SyncPanel extends Composite {
         if (sourcePath.isEmpty())
             return;
 
+        if (AgentUrl.isAgent(destDir)) {
+            MessageBox mb = new MessageBox(shell, SWT.ICON_INFORMATION | SWT.OK);
+            mb.setText("Destination");
+            mb.setMessage("Agent: " + destDir + "\n\nFiles are pushed to the sync agent on that host; "
+                    + "they can be viewed there.");
+            mb.open();
+            return;
+        }
+
+        if (SourceWalker.isTree(sourcePath)) {
+            MessageBox mb = new MessageBox(shell, SWT.ICON_INFORMATION | SWT.OK);
+            mb.setText("Destination");
+            mb.setMessage("Folder: " + new File(destDir).getAbsolutePath() + "\n\nThe source is a folder or pattern; "
+                    + "its files are synced into this folder keeping their relative paths.");
+            mb.open();
+            return;
+        }
+
         File sourceFile = new File(sourcePath);
         File destFile = new File(destDir, sourceFile.getName());
+        if (previewService != null)
+            new DetailsWindow(sourceFile, destFile).open();
+    }
 
-        String content = "File not found in destination.";
-        String dateInfo = "";
+    /**
+     * Source and destination side by side plus a preview of the destination.
+     * Everything is read by the PreviewService in the background and filled
+     * in as it arrives; closing the window stops the comparison.
+     */
+    private class DetailsWindow {
+        private final File sourceFile;
+        private final File destFile;
+        private final Shell window;
+        private final Table table;
+        private final Label statusLabel;
+        private final Label previewLabel;
+        private final Text previewText;
+        private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+        DetailsWindow(File sourceFile, File destFile) {
+            this.sourceFile = sourceFile;
+            this.destFile = destFile;
+
+            window = new Shell(shell, SWT.DIALOG_TRIM | SWT.RESIZE | SWT.MODELESS);
+            window.setText("File Details");
+            window.setLayout(new GridLayout(1, false));
+            window.setSize(720, 520);
+
+            table = new Table(window, SWT.BORDER | SWT.FULL_SELECTION);
+            table.setHeaderVisible(true);
+            table.setLinesVisible(true);
+            table.setLayoutData(new GridData(SWT.FILL, SWT.TOP, true, false));
+            for (String title : new String[] { "", "Source", "Destination" }) {
+                TableColumn col = new TableColumn(table, SWT.NONE);
+                col.setText(title);
+                col.setWidth(title.isEmpty() ? 90 : 300);
+            }
+            row("Path", sourceFile.getAbsolutePath(), destFile.getAbsolutePath());
+            row("Size", "", "");
+            row("Modified", "", "");
+            row("Checksum", "", "");
+
+            statusLabel = new Label(window, SWT.NONE);
+            statusLabel.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+            statusLabel.setText("Comparing...");
+
+            previewLabel = new Label(window, SWT.NONE);
+            previewLabel.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+            previewLabel.setText("Loading preview...");
+
+            previewText = new Text(window, SWT.BORDER | SWT.MULTI | SWT.READ_ONLY | SWT.V_SCROLL | SWT.H_SCROLL);
+            previewText.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true));
+            // Monospace so hex dumps and columns line up; disposed with the window
+            FontData fd = previewText.getFont().getFontData()[0];
+            Font mono = new Font(window.getDisplay(), "Courier New", fd.getHeight(), SWT.NORMAL);
+            previewText.setFont(mono);
+            window.addListener(SWT.Dispose, e -> mono.dispose());
+        }
 
-        if (destFile.exists()) {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            dateInfo = "Last Modified: " + sdf.format(new Date(destFile.lastModified())) + "\n\n";
-            try {
-                byte[] bytes = Files.readAllBytes(destFile.toPath());
-                content = new String(bytes);
-                if (content.length() > 2000)
-                    content = content.substring(0, 2000) + "... (truncated)";
-            } catch (IOException e) {
-                content = "Error reading file: " + e.getMessage();
+        void open() {
+            window.open();
+            Display display = window.getDisplay();
+
+            previewService.preview(destFile.toPath()).whenComplete((p, e) -> display.asyncExec(() -> {
+                if (!window.isDisposed())
+                    showPreview(p, e);
+            }));
+
+            boolean[] pending = { false };
+            previewService.compare(sourceFile.toPath(), destFile.toPath(), window::isDisposed, (c, done, total) -> {
+                // Drop updates while the UI has not caught up with the last one
+                synchronized (pending) {
+                    if (pending[0] && done < total)
+                        return;
+                    pending[0] = true;
+                }
+                String progress = total > 0 && done < total ? "Checksum " + done * 100 / total + "%..." : null;
+                long sourceSize = c.sourceSize;
+                long destSize = c.destSize;
+                display.asyncExec(() -> {
+                    synchronized (pending) {
+                        pending[0] = false;
+                    }
+                    if (window.isDisposed())
+                        return;
+                    table.getItem(1).setText(1, sourceSize < 0 ? "missing" : SyncResult.formatBytes(sourceSize));
+                    table.getItem(1).setText(2, destSize < 0 ? "missing" : SyncResult.formatBytes(destSize));
+                    table.getItem(2).setText(1, sourceSize < 0 ? "" : sdf.format(new Date(c.sourceModified)));
+                    table.getItem(2).setText(2, destSize < 0 ? "" : sdf.format(new Date(c.destModified)));
+                    if (progress != null)
+                        statusLabel.setText(progress);
+                });
+            }).whenComplete((c, e) -> display.asyncExec(() -> {
+                if (!window.isDisposed())
+                    showComparison(c, e);
+            }));
+        }
+
+        private void showComparison(PreviewService.Comparison c, Throwable e) {
+            if (e != null) {
+                statusLabel.setText("Could not compare: " + rootCause(e).getMessage());
+                return;
             }
+            table.getItem(3).setText(1, c.sourceHash == null ? "" : c.sourceHash);
+            table.getItem(3).setText(2, c.destHash == null ? "" : c.destHash);
+            if (c.destSize < 0)
+                statusLabel.setText("Not in destination yet");
+            else if (c.sourceSize < 0)
+                statusLabel.setText("Source not found");
+            else if (c.sourceSize != c.destSize)
+                statusLabel.setText("Different: sizes differ");
+            else
+                statusLabel.setText(c.isIdentical() ? "Identical content" : "Different: checksums differ");
         }
 
-        MessageBox mb = new MessageBox(shell, SWT.ICON_INFORMATION | SWT.OK);
-        mb.setText("File Details");
-        mb.setMessage("File: " + destFile.getAbsolutePath() + "\n" + dateInfo + "Content Preview:\n" + content);
-        mb.open();
+        private void showPreview(PreviewService.Preview p, Throwable e) {
+            if (e != null) {
+                previewLabel.setText("Error reading file: " + rootCause(e).getMessage());
+                return;
+            }
+            if (!p.exists) {
+                previewLabel.setText("File not found in destination.");
+                return;
+            }
+            if (p.binary) {
+                previewLabel.setText("Binary content, first bytes:");
+                previewText.setText(p.head);
+                return;
+            }
+            previewLabel.setText("Content preview (" + p.encoding + (p.tail != null ? ", start and end" : "") + "):");
+            long hidden = p.size - PreviewService.HEAD_BYTES - PreviewService.TAIL_BYTES;
+            if (p.tail == null)
+                previewText.setText(p.head);
+            else if (hidden <= 0)
+                previewText.setText(p.head + p.tail);
+            else
+                previewText.setText(p.head + "\n\n... " + SyncResult.formatBytes(hidden) + " not shown ...\n\n" + p.tail);
+        }
+
+        private void row(String name, String source, String dest) {
+            TableItem item = new TableItem(table, SWT.NONE);
+            item.setText(new String[] { name, source, dest });
+        }
+
+        private Throwable rootCause(Throwable e) {
+            while (e.getCause() != null)
+                e = e.getCause();
+            return e;
+        }
     }
 
-    public String getSourcePath() {
-        return sourcePathText.getText();
+    /**
+     * Used for the details window; without one the window is not shown.
+     */
+    public void setPreviewService(PreviewService previewService) {
+        this.previewService = previewService;
     }
 
-    public void setSourcePath(String path) {
-        if (path != null)
-            sourcePathText.setText(path);
+    /**
+     * Used to restore destinations; without one Restore does nothing.
+     */
+    public void setSyncService(SyncService syncService) {
+        this.syncService = syncService;
+    }
+
+    public String getSourcePath() {
+        return sourcePathText.getText();
     }
 
     public java.util.List<String> getDestPaths() {
@@ -171,38 +675,60 @@ public class SyncPanel extends Composite {
         return list;
     }
 
-    public void setDestPaths(java.util.List<String> paths) {
-        destList.removeAll();
-        for (String s : paths) {
-            destList.add(s);
-        }
+    public String getProfileId() {
+        return profileId;
     }
 
-    public int performSync() {
-        String sourcePath = getSourcePath();
-        if (sourcePath.isEmpty())
-            return 0; // Or throw error?
+    /**
+     * Shows the given profile for editing, or clears the panel for null.
+     */
+    public void setProfile(SyncProfile profile) {
+        updating = true;
+        try {
+            profileId = profile == null ? null : profile.getId();
+            nameText.setText(profile == null ? "" : profile.getName());
+            sourcePathText.setText(profile == null ? "" : profile.getSourcePath());
+            destList.removeAll();
+            limit = profile == null ? RateLimit.NONE : profile.getLimit();
+            destLimits = profile == null ? new LinkedHashMap<>() : new LinkedHashMap<>(profile.getDestLimits());
+            schedule = profile == null ? Schedule.DEFAULT : profile.getSchedule();
+            scheduleText.setText(schedule.isDefault() ? "" : schedule.toString());
+            prioritySpinner.setSelection(profile == null ? 0 : profile.getPriority());
+            if (profile != null) {
+                for (String s : profile.getDestPaths()) {
+                    destList.add(s);
+                }
+            }
+            statusLabel.setText(profile == null ? "" : "Not synced yet");
+            setEnabled(profile != null);
+        } finally {
+            updating = false;
+        }
+    }
 
-        File sourceFile = new File(sourcePath);
-        if (!sourceFile.exists())
-            return 0;
+    /**
+     * Called whenever the user changed the name, source or destinations.
+     */
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
 
-        String[] dests = destList.getItems();
-        int success = 0;
+    private void fireChanged() {
+        if (updating || profileId == null)
+            return;
+        for (Runnable r : changeListeners) {
+            r.run();
+        }
+    }
 
-        for (String destPath : dests) {
-            File destDir = new File(destPath);
-            if (!destDir.exists())
-                destDir.mkdirs();
+    public void setStatus(String status) {
+        if (!statusLabel.isDisposed())
+            statusLabel.setText(status);
+    }
 
-            File destFile = new File(destDir, sourceFile.getName());
-            try {
-                Files.copy(sourceFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                success++;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        return success;
+    public SyncProfile toProfile() {
+        // Limits of removed destinations are dropped by SyncProfile
+        return new SyncProfile(profileId, nameText.getText().trim(), getSourcePath().trim(), getDestPaths(), limit,
+                destLimits, schedule, prioritySpinner.getSelection());
     }
 }
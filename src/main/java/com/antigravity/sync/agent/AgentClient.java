@@ -0,0 +1,278 @@
+package com.antigravity.sync.agent;
+
+import com.antigravity.sync.core.Throttle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * One persistent connection to an AgentServer. Thread-safe: any number of
+ * pushes can run at once and their frames are interleaved on the
+ * connection. Data is streamed without waiting for acknowledgements, only
+ * the start and the end of a push wait for a reply.
+ *
+ * Once the connection broke every call fails; open a new client.
+ */
+public class AgentClient implements Closeable {
+
+    public static class Stat {
+        public final boolean exists;
+        public final long size;
+        public final long modified;
+
+        Stat(boolean exists, long size, long modified) {
+            this.exists = exists;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Outcome of a push: bytes actually sent and the CRC32C of the whole
+     * source, in SyncIndex.hash() format.
+     */
+    public static class Pushed {
+        public final long sent;
+        public final String hash;
+
+        Pushed(long sent, String hash) {
+            this.sent = sent;
+            this.hash = hash;
+        }
+    }
+
+    private final String authority;
+    private final SocketChannel channel;
+    private final Object writeLock = new Object();
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<Long, CompletableFuture<AgentProtocol.Frame>> pending = new ConcurrentHashMap<>();
+    private volatile IOException broken;
+
+    private AgentClient(String authority, SocketChannel channel) {
+        this.authority = authority;
+        this.channel = channel;
+    }
+
+    /**
+     * Connects and authenticates with the token (empty if the agent has
+     * none). A timeout of 0 waits forever.
+     */
+    public static AgentClient connect(String host, int port, String token, long timeoutMillis) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        AgentClient client;
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+            channel.socket().setTcpNoDelay(true);
+            client = new AgentClient(host + ":" + port, channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        Thread reader = new Thread(client::readLoop, "sync-agent-client-" + client.authority);
+        reader.setDaemon(true);
+        reader.start();
+
+        String t = token == null ? "" : token;
+        long id = client.ids.incrementAndGet();
+        ByteBuffer hello = AgentProtocol.begin(AgentProtocol.HELLO, id, 4 + AgentProtocol.sizeOf(t));
+        hello.putInt(AgentProtocol.VERSION);
+        AgentProtocol.putString(hello, t);
+        try {
+            client.await(client.request(id, AgentProtocol.finish(hello)), timeoutMillis);
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    public boolean isOpen() {
+        return broken == null && channel.isOpen();
+    }
+
+    public Stat stat(String path, long timeoutMillis) throws IOException {
+        long id = ids.incrementAndGet();
+        ByteBuffer buf = AgentProtocol.begin(AgentProtocol.STAT, id, AgentProtocol.sizeOf(path));
+        AgentProtocol.putString(buf, path);
+        AgentProtocol.Frame reply = call(id, AgentProtocol.finish(buf), timeoutMillis);
+        return new Stat(reply.payload.get() != 0, reply.payload.getLong(), reply.payload.getLong());
+    }
+
+    /**
+     * Pushes source to path on the agent, resuming an earlier push of the
+     * same size and mtime that was cut off. The agent checks the CRC32C of
+     * the whole file before it is put in place.
+     */
+    public Pushed push(Path source, String path, long size, long modified, long timeoutMillis) throws IOException {
+        return push(source, path, size, modified, timeoutMillis, Throttle.NONE);
+    }
+
+    /**
+     * Like push(...), waiting for the throttle before each chunk is sent.
+     */
+    public Pushed push(Path source, String path, long size, long modified, long timeoutMillis, Throttle throttle)
+            throws IOException {
+        long id = ids.incrementAndGet();
+        ByteBuffer offer = AgentProtocol.begin(AgentProtocol.OFFER, id, AgentProtocol.sizeOf(path) + 16);
+        AgentProtocol.putString(offer, path);
+        offer.putLong(size).putLong(modified);
+        long offset = call(id, AgentProtocol.finish(offer), timeoutMillis).payload.getLong();
+
+        // The reply to END comes after all data, register for it before sending any
+        CompletableFuture<AgentProtocol.Frame> done = new CompletableFuture<>();
+        pending.put(id, done);
+        long sent = 0;
+        CRC32C crc = new CRC32C();
+        ByteBuffer buf = ByteBuffer.allocate(AgentProtocol.HEADER + 8 + AgentProtocol.CHUNK_SIZE);
+        try {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+                // The part the agent already has is only read locally, for the checksum
+                long position = 0;
+                while (position < offset) {
+                    buf.clear();
+                    buf.limit((int) Math.min(buf.capacity(), offset - position));
+                    int n = in.read(buf, position);
+                    if (n < 0)
+                        throw new IOException("Source shrank while pushing: " + source);
+                    buf.flip();
+                    crc.update(buf);
+                    position += n;
+                }
+
+                while (position < size) {
+                    buf.clear();
+                    buf.putInt(0).put(AgentProtocol.DATA).putLong(id).putLong(position);
+                    buf.limit(buf.position() + (int) Math.min(AgentProtocol.CHUNK_SIZE, size - position));
+                    int n = in.read(buf, position);
+                    if (n < 0)
+                        throw new IOException("Source shrank while pushing: " + source);
+                    while (buf.hasRemaining()) {
+                        int k = in.read(buf, position + n);
+                        if (k < 0)
+                            throw new IOException("Source shrank while pushing: " + source);
+                        n += k;
+                    }
+                    crc.update(buf.array(), AgentProtocol.HEADER + 8, n);
+                    throttle.acquireBytes(n);
+                    send(AgentProtocol.finish(buf));
+                    position += n;
+                    sent += n;
+                }
+            }
+
+            ByteBuffer end = AgentProtocol.begin(AgentProtocol.END, id, 8);
+            end.putLong(crc.getValue());
+            send(AgentProtocol.finish(end));
+            await(done, timeoutMillis);
+        } finally {
+            // Gone already if the agent replied, still there after an error or timeout
+            pending.remove(id);
+        }
+        return new Pushed(sent, Long.toHexString(crc.getValue()));
+    }
+
+    /**
+     * Sends a request and waits for its reply, which is no longer waited for
+     * after an error or timeout.
+     */
+    private AgentProtocol.Frame call(long id, ByteBuffer frame, long timeoutMillis) throws IOException {
+        try {
+            return await(request(id, frame), timeoutMillis);
+        } finally {
+            pending.remove(id);
+        }
+    }
+
+    private CompletableFuture<AgentProtocol.Frame> request(long id, ByteBuffer frame) throws IOException {
+        CompletableFuture<AgentProtocol.Frame> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        try {
+            send(frame);
+        } catch (IOException e) {
+            pending.remove(id);
+            throw e;
+        }
+        return reply;
+    }
+
+    private void send(ByteBuffer frame) throws IOException {
+        if (broken != null)
+            throw new IOException("Connection to agent " + authority + " is broken", broken);
+        synchronized (writeLock) {
+            try {
+                AgentProtocol.writeFully(channel, frame);
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            }
+        }
+    }
+
+    private AgentProtocol.Frame await(CompletableFuture<AgentProtocol.Frame> reply, long timeoutMillis)
+            throws IOException {
+        try {
+            return timeoutMillis > 0 ? reply.get(timeoutMillis, TimeUnit.MILLISECONDS) : reply.get();
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("No reply from agent " + authority + " for "
+                    + timeoutMillis / 1000 + " s");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                AgentProtocol.Frame frame = AgentProtocol.read(channel);
+                CompletableFuture<AgentProtocol.Frame> reply = pending.remove(frame.id);
+                if (reply == null)
+                    continue;
+                if (frame.op == AgentProtocol.ERROR)
+                    reply.completeExceptionally(new IOException("Agent " + authority + ": " + frame.getString()));
+                else
+                    reply.complete(frame);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (broken == null)
+            broken = e;
+        for (Long id : pending.keySet()) {
+            CompletableFuture<AgentProtocol.Frame> reply = pending.remove(id);
+            if (reply != null)
+                reply.completeExceptionally(e);
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // already closed
+        }
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("Connection to agent " + authority + " closed"));
+    }
+}
@@ -0,0 +1,122 @@
+package com.antigravity.sync.agent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format shared by AgentClient and AgentServer. Every message is a
+ * frame: int length, byte op, long id, payload. The length counts op, id
+ * and payload. Replies carry the id of the request they answer.
+ *
+ * A push is OFFER (path, size, mtime), answered with the offset to resume
+ * from, then any number of DATA frames (offset, bytes) that are not
+ * answered, then END (CRC32C of the whole file), answered with OK or
+ * ERROR. Pushes of several files may be interleaved on one connection.
+ */
+class AgentProtocol {
+
+    static final int DEFAULT_PORT = 7077;
+    static final int VERSION = 1;
+
+    static final byte HELLO = 1; // int version, string token
+    static final byte STAT = 2; // string path
+    static final byte OFFER = 3; // string path, long size, long mtime
+    static final byte DATA = 4; // long offset, bytes
+    static final byte END = 5; // long crc
+
+    static final byte OK = 10;
+    static final byte ERROR = 11; // string message
+    static final byte STAT_REPLY = 12; // boolean exists, long size, long mtime
+    static final byte OFFSET = 13; // long offset
+
+    static final int HEADER = 4 + 1 + 8;
+    static final int CHUNK_SIZE = 256 * 1024;
+    static final int MAX_FRAME = CHUNK_SIZE + 1024;
+
+    /**
+     * A frame as read from the channel.
+     */
+    static class Frame {
+        final byte op;
+        final long id;
+        final ByteBuffer payload;
+
+        Frame(byte op, long id, ByteBuffer payload) {
+            this.op = op;
+            this.id = id;
+            this.payload = payload;
+        }
+
+        String getString() {
+            byte[] bytes = new byte[payload.getInt()];
+            payload.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Starts a frame; put the payload and pass it to finish().
+     */
+    static ByteBuffer begin(byte op, long id, int payloadSize) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + payloadSize);
+        buf.putInt(0).put(op).putLong(id);
+        return buf;
+    }
+
+    static ByteBuffer finish(ByteBuffer buf) {
+        buf.putInt(0, buf.position() - 4);
+        buf.flip();
+        return buf;
+    }
+
+    static int sizeOf(String s) {
+        return 4 + s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buf.putInt(bytes.length).put(bytes);
+    }
+
+    static ByteBuffer error(long id, String message) {
+        String m = message == null ? "error" : message;
+        ByteBuffer buf = begin(ERROR, id, sizeOf(m));
+        putString(buf, m);
+        return finish(buf);
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Blocks until a whole frame was read. Throws EOFException when the
+     * other side closed the connection between frames.
+     */
+    static Frame read(SocketChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HEADER);
+        readFully(channel, head);
+        head.flip();
+        int length = head.getInt();
+        if (length < HEADER - 4 || length > MAX_FRAME)
+            throw new IOException("Invalid frame length " + length);
+        byte op = head.get();
+        long id = head.getLong();
+        ByteBuffer payload = ByteBuffer.allocate(length - (HEADER - 4));
+        readFully(channel, payload);
+        payload.flip();
+        return new Frame(op, id, payload);
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0)
+                throw new EOFException("Connection closed");
+        }
+    }
+}
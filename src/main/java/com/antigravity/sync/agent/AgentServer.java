@@ -0,0 +1,342 @@
+package com.antigravity.sync.agent;
+
+import com.antigravity.sync.core.AtomicWrite;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Receives pushes from AgentClient into a folder on this host. Files are
+ * written to a hidden .name.size-mtime.agentpart file that is renamed over
+ * the target once its checksum matched, and given the source's
+ * modification time. A push that was cut off resumes from what the part
+ * file already holds.
+ *
+ * One thread per connection; frames of a connection are handled in order.
+ * There is no encryption, use a token and run it on trusted networks only.
+ * Without a bind address the agent only listens on loopback, and it does
+ * not listen on any other address without a token.
+ */
+public class AgentServer {
+
+    public static final String PART_SUFFIX = ".agentpart";
+
+    // Parts this old are from a version that will not be resumed any more
+    private static final long STALE_PART_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final Path root;
+    private final String host;
+    private final int port;
+    private final String token;
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    private ServerSocketChannel server;
+
+    /**
+     * Listens on loopback only. Port 0 picks a free port, see getPort(). An
+     * empty token accepts any client.
+     */
+    public AgentServer(Path root, int port, String token) throws IOException {
+        this(root, null, port, token);
+    }
+
+    /**
+     * @param host address to listen on, e.g. 0.0.0.0 for all interfaces;
+     *             null or empty for loopback only
+     */
+    public AgentServer(Path root, String host, int port, String token) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.host = host == null ? "" : host;
+        this.port = port;
+        this.token = token == null ? "" : token;
+        Files.createDirectories(this.root);
+    }
+
+    public void start() throws IOException {
+        InetSocketAddress address = host.isEmpty() ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : new InetSocketAddress(host, port);
+        if (address.isUnresolved())
+            throw new IOException("Unknown address " + host);
+        // Anyone who can connect may write below the root
+        if (token.isEmpty() && !address.getAddress().isLoopbackAddress())
+            throw new IOException("Refusing to listen on " + host + " without a token");
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        Thread cleanup = new Thread(() -> AtomicWrite.cleanup(root, true, PART_SUFFIX, STALE_PART_MILLIS),
+                "sync-agent-cleanup");
+        cleanup.setDaemon(true);
+        cleanup.start();
+        Thread accept = new Thread(this::acceptLoop, "sync-agent-accept");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public void stop() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (SocketChannel c : connections) {
+            closeQuietly(c);
+        }
+    }
+
+    private void acceptLoop() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.socket().setTcpNoDelay(true);
+                connections.add(channel);
+                Thread t = new Thread(() -> serve(channel), "sync-agent-" + channel.getRemoteAddress());
+                t.setDaemon(true);
+                t.start();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        Map<Long, Transfer> transfers = new HashMap<>();
+        boolean authenticated = false;
+        try {
+            while (true) {
+                AgentProtocol.Frame frame = AgentProtocol.read(channel);
+                if (!authenticated) {
+                    if (frame.op != AgentProtocol.HELLO) {
+                        reply(channel, AgentProtocol.error(frame.id, "Expected HELLO"));
+                        return;
+                    }
+                    int version = frame.payload.getInt();
+                    String clientToken = frame.getString();
+                    if (version != AgentProtocol.VERSION) {
+                        reply(channel, AgentProtocol.error(frame.id, "Unsupported protocol version " + version));
+                        return;
+                    }
+                    if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                            clientToken.getBytes(StandardCharsets.UTF_8))) {
+                        reply(channel, AgentProtocol.error(frame.id, "Invalid token"));
+                        return;
+                    }
+                    authenticated = true;
+                    reply(channel, ok(frame.id));
+                    continue;
+                }
+
+                try {
+                    handle(channel, frame, transfers);
+                } catch (IOException | RuntimeException e) {
+                    // Fails this request only, the connection stays usable
+                    Transfer t = transfers.get(frame.id);
+                    if (frame.op == AgentProtocol.DATA && t != null) {
+                        // DATA is not answered, the error is reported on END
+                        t.failed(e);
+                    } else {
+                        if (t != null)
+                            transfers.remove(frame.id).close();
+                        reply(channel, AgentProtocol.error(frame.id, e.toString()));
+                    }
+                }
+            }
+        } catch (EOFException | ClosedChannelException e) {
+            // client went away, part files are kept for a resume
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (Transfer t : transfers.values()) {
+                t.close();
+            }
+            connections.remove(channel);
+            closeQuietly(channel);
+        }
+    }
+
+    private void handle(SocketChannel channel, AgentProtocol.Frame frame, Map<Long, Transfer> transfers)
+            throws IOException {
+        switch (frame.op) {
+        case AgentProtocol.STAT: {
+            Path file = resolve(frame.getString());
+            ByteBuffer buf = AgentProtocol.begin(AgentProtocol.STAT_REPLY, frame.id, 1 + 8 + 8);
+            if (Files.isRegularFile(file)) {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                buf.put((byte) 1).putLong(attrs.size()).putLong(attrs.lastModifiedTime().toMillis());
+            } else {
+                buf.put((byte) 0).putLong(0).putLong(0);
+            }
+            reply(channel, AgentProtocol.finish(buf));
+            break;
+        }
+        case AgentProtocol.OFFER: {
+            Path target = resolve(frame.getString());
+            long size = frame.payload.getLong();
+            long modified = frame.payload.getLong();
+            // The error path below closes the transfer that holds the id
+            if (transfers.containsKey(frame.id))
+                throw new IOException("Transfer " + frame.id + " is already open");
+            Transfer t = new Transfer(target, size, modified);
+            transfers.put(frame.id, t);
+            ByteBuffer buf = AgentProtocol.begin(AgentProtocol.OFFSET, frame.id, 8);
+            buf.putLong(t.offset);
+            reply(channel, AgentProtocol.finish(buf));
+            break;
+        }
+        case AgentProtocol.DATA: {
+            Transfer t = transfers.get(frame.id);
+            if (t != null && t.error == null) {
+                long offset = frame.payload.getLong();
+                t.write(offset, frame.payload);
+            }
+            break;
+        }
+        case AgentProtocol.END: {
+            Transfer t = transfers.remove(frame.id);
+            if (t == null)
+                throw new IOException("Unknown transfer " + frame.id);
+            t.commit(frame.payload.getLong());
+            reply(channel, ok(frame.id));
+            break;
+        }
+        default:
+            throw new IOException("Unknown op " + frame.op);
+        }
+    }
+
+    /**
+     * Resolves a client path below the root; anything that would leave it
+     * is refused.
+     */
+    Path resolve(String path) throws IOException {
+        Path p = root.resolve(path.replace('\\', '/').replaceAll("^/+", "")).normalize();
+        if (!p.startsWith(root) || p.equals(root))
+            throw new IOException("Path outside of the agent folder: " + path);
+        return p;
+    }
+
+    private static ByteBuffer ok(long id) {
+        return AgentProtocol.finish(AgentProtocol.begin(AgentProtocol.OK, id, 0));
+    }
+
+    private static void reply(SocketChannel channel, ByteBuffer buf) throws IOException {
+        AgentProtocol.writeFully(channel, buf);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    static Path partFor(Path target, long size, long modified) {
+        return target.resolveSibling("." + target.getFileName() + "." + size + "-" + modified + PART_SUFFIX);
+    }
+
+    private static class Transfer {
+        final Path target;
+        final Path part;
+        final long size;
+        final long modified;
+        final long offset;
+        final FileChannel out;
+        IOException error;
+
+        Transfer(Path target, long size, long modified) throws IOException {
+            this.target = target;
+            this.size = size;
+            this.modified = modified;
+            this.part = partFor(target, size, modified);
+            Files.createDirectories(target.getParent());
+            this.out = FileChannel.open(part, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE);
+            // Resume from what an earlier, interrupted push of the same version left
+            long existing = out.size();
+            if (existing > size) {
+                out.truncate(0);
+                existing = 0;
+            }
+            this.offset = existing;
+        }
+
+        void write(long position, ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                position += out.write(data, position);
+            }
+        }
+
+        void failed(Exception e) {
+            error = e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+
+        void commit(long crc) throws IOException {
+            try {
+                if (error != null)
+                    throw error;
+                if (out.size() != size)
+                    throw new IOException("Expected " + size + " bytes but got " + out.size() + " for " + target);
+                if (checksum() != crc) {
+                    // Start over next time
+                    out.truncate(0);
+                    throw new IOException("Checksum mismatch for " + target);
+                }
+            } finally {
+                close();
+            }
+            Files.setLastModifiedTime(part, FileTime.fromMillis(modified));
+            AtomicWrite.commit(part, target, false);
+        }
+
+        private long checksum() throws IOException {
+            CRC32C crc = new CRC32C();
+            ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024);
+            long position = 0;
+            while (true) {
+                int n = out.read(buf, position);
+                if (n < 0)
+                    break;
+                position += n;
+                buf.flip();
+                crc.update(buf);
+                buf.clear();
+            }
+            return crc.getValue();
+        }
+
+        void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
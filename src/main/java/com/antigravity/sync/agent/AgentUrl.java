@@ -0,0 +1,104 @@
+package com.antigravity.sync.agent;
+
+/**
+ * A destination on a sync agent: agent://host:port/path. The path is
+ * relative to the folder the agent serves.
+ */
+public class AgentUrl {
+
+    public static final String SCHEME = "agent://";
+
+    private final String host;
+    private final int port;
+    private final String path;
+
+    private AgentUrl(String host, int port, String path) {
+        this.host = host;
+        this.port = port;
+        this.path = path;
+    }
+
+    public static boolean isAgent(String dest) {
+        return dest != null && dest.regionMatches(true, 0, SCHEME, 0, SCHEME.length());
+    }
+
+    /**
+     * Throws IllegalArgumentException if dest is not a valid agent URL.
+     */
+    public static AgentUrl parse(String dest) {
+        if (!isAgent(dest))
+            throw new IllegalArgumentException("Not an agent URL: " + dest);
+        String rest = dest.substring(SCHEME.length());
+        int slash = rest.indexOf('/');
+        String hostPort = slash < 0 ? rest : rest.substring(0, slash);
+        String path = slash < 0 ? "" : rest.substring(slash + 1);
+
+        int colon = hostPort.lastIndexOf(':');
+        String host = colon < 0 ? hostPort : hostPort.substring(0, colon);
+        int port = AgentProtocol.DEFAULT_PORT;
+        if (colon >= 0) {
+            try {
+                port = Integer.parseInt(hostPort.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in " + dest);
+            }
+        }
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+        if (host.isEmpty() || port <= 0 || port > 65535)
+            throw new IllegalArgumentException("Invalid agent URL: " + dest);
+        return new AgentUrl(host, port, trimSlashes(path.replace('\\', '/')));
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Path below the agent's folder, without leading or trailing slashes.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * The path of a file below this destination.
+     */
+    public String resolve(String relativePath) {
+        String rel = trimSlashes(relativePath.replace('\\', '/'));
+        return path.isEmpty() ? rel : path + "/" + rel;
+    }
+
+    /**
+     * The full URL of a path on the same agent, e.g. one from resolve().
+     */
+    public String toUrl(String agentPath) {
+        return SCHEME + getAuthority() + "/" + agentPath;
+    }
+
+    /**
+     * host:port, identifies the connection.
+     */
+    public String getAuthority() {
+        return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+    }
+
+    private static String trimSlashes(String s) {
+        int start = 0;
+        int end = s.length();
+        while (start < end && s.charAt(start) == '/')
+            start++;
+        while (end > start && s.charAt(end - 1) == '/')
+            end--;
+        return s.substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return toUrl(path);
+    }
+}
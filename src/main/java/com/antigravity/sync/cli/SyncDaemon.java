@@ -0,0 +1,312 @@
+package com.antigravity.sync.cli;
+
+import com.antigravity.sync.agent.AgentServer;
+import com.antigravity.sync.core.CompressedTransfer;
+import com.antigravity.sync.core.ConfigManager;
+import com.antigravity.sync.core.LeaseManager;
+import com.antigravity.sync.core.SourceWatcher;
+import com.antigravity.sync.core.SyncProfile;
+import com.antigravity.sync.core.SyncResult;
+import com.antigravity.sync.core.SyncScheduler;
+import com.antigravity.sync.core.SyncService;
+import com.antigravity.sync.core.VersionStore;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Headless entry point for servers. Reads the same config as the GUI and
+ * runs the same sync core, but never loads any SWT class.
+ */
+public class SyncDaemon {
+
+    private final SyncService service;
+    private final ConfigManager config;
+
+    public SyncDaemon(String rootDir) {
+        config = new ConfigManager(rootDir);
+        config.load();
+        service = new SyncService(config);
+    }
+
+    public int runOnce() {
+        service.cleanupTempFiles().join();
+        logInterrupted();
+        logLeases();
+        long start = System.currentTimeMillis();
+        Map<SyncProfile, SyncResult> results = service.syncOnce();
+        SyncResult total = logResults(results, System.currentTimeMillis() - start);
+        service.shutdown();
+        return total.getFailed() > 0 ? 1 : 0;
+    }
+
+    /**
+     * Prints what a sync would do, without writing anything. Does not start
+     * a SyncService, which would replay the journal and join the other
+     * instances.
+     */
+    static void runPlan(String rootDir) {
+        ConfigManager config = new ConfigManager(rootDir);
+        config.load();
+        log("Planning " + config.getProfileStore().size() + " profiles");
+        System.out.println(SyncService.planOnly(config).describe());
+    }
+
+    /**
+     * Rolls a destination back to what it held at the given time. Returns
+     * the exit code.
+     */
+    public int runRestore(String destPath, long time) {
+        log("Restoring " + destPath + " to " + new Date(time));
+        try {
+            log("Restored " + service.restore(destPath, time) + " files");
+            return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    public void runForever(int intervalMinutes, boolean watch) throws InterruptedException {
+        service.cleanupTempFiles();
+        // The first run starts right away and also finishes the interrupted profiles
+        logInterrupted();
+
+        SyncScheduler scheduler = new SyncScheduler(service.getEngine(), service::getProfiles, new LogListener());
+        scheduler.setIncremental(config.isIncremental());
+        SourceWatcher watcher = new SourceWatcher(scheduler::sourceChanged, config.getWatchQuiet());
+        // Profiles scheduled on change are watched even without --watch
+        List<String> sources = service.getWatchedSources(watch);
+        if (!sources.isEmpty()) {
+            try {
+                watcher.watch(sources);
+            } catch (IOException e) {
+                log("Could not watch sources: " + e.getMessage());
+            }
+        }
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            log("Stopping");
+            watcher.shutdown();
+            scheduler.shutdown();
+            service.shutdown();
+            stopped.countDown();
+        }, "sync-shutdown"));
+
+        log("Auto-sync every " + intervalMinutes + " min" + (watch ? ", watching sources" : ""));
+        logLeases();
+        if (service.getMetricsServer() != null)
+            log("Metrics at http://127.0.0.1:" + service.getMetricsServer().getPort() + "/metrics");
+        scheduler.start(intervalMinutes * 60 * 1000L);
+        stopped.await();
+    }
+
+    private void logLeases() {
+        LeaseManager leases = service.getLeases();
+        if (leases != null)
+            log("Sharing work as node " + leases.getNodeId() + " via " + leases.getDir() + ", nodes alive: "
+                    + leases.getLiveNodes());
+    }
+
+    private void logInterrupted() {
+        List<SyncProfile> interrupted = service.getInterruptedProfiles();
+        if (!interrupted.isEmpty())
+            log("Resuming " + interrupted.size() + " profiles interrupted by the last run");
+    }
+
+    /**
+     * Receiver for compressed transfers: unpacks the staging files below dir
+     * into their targets, once or every few seconds until stopped.
+     */
+    static void runUnpack(Path dir, boolean forever) throws InterruptedException {
+        if (forever)
+            log("Unpacking compressed transfers in " + dir.toAbsolutePath());
+        do {
+            int unpacked = CompressedTransfer.unpackAll(dir, false);
+            if (unpacked > 0 || !forever)
+                log("Unpacked " + unpacked + " files");
+            if (forever)
+                Thread.sleep(5000);
+        } while (forever);
+    }
+
+    /**
+     * Serves dir as a sync agent for agent:// destinations until stopped.
+     */
+    static void runAgent(Path dir, String bind, int port, String token) throws IOException, InterruptedException {
+        AgentServer server = new AgentServer(dir, bind, port, token);
+        server.start();
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            log("Stopping");
+            server.stop();
+            stopped.countDown();
+        }, "sync-shutdown"));
+        log("Sync agent for " + server.getRoot() + " listening on "
+                + (bind == null ? "loopback" : bind) + " port " + server.getPort()
+                + (token == null || token.isEmpty() ? ", no token set" : ""));
+        stopped.await();
+    }
+
+    private SyncResult logResults(Map<SyncProfile, SyncResult> results, long millis) {
+        SyncResult total = new SyncResult();
+        for (Map.Entry<SyncProfile, SyncResult> e : results.entrySet()) {
+            total.add(e.getValue());
+            log(e.getKey().getName() + ": " + e.getValue());
+        }
+        log("Sync finished in " + millis + " ms: " + total + ". Written: "
+                + SyncResult.formatBytes(total.getBytesWritten()) + " of "
+                + SyncResult.formatBytes(total.getBytesCopied()) + ", avoided: "
+                + SyncResult.formatBytes(total.getBytesSkipped()));
+        return total;
+    }
+
+    static void log(String message) {
+        System.out.println(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + " " + message);
+    }
+
+    private class LogListener implements SyncScheduler.Listener {
+
+        @Override
+        public void syncStarted(List<SyncProfile> profiles) {
+            log("Synchronizing " + profiles.size() + " profiles");
+        }
+
+        @Override
+        public void profileFinished(SyncProfile profile, SyncResult result) {
+        }
+
+        @Override
+        public void syncFinished(Map<SyncProfile, SyncResult> results, long millis) {
+            logResults(results, millis);
+        }
+
+        @Override
+        public void syncDropped() {
+            log("All profiles already waiting, trigger ignored");
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java -jar file-sync-tool.jar --headless [options]");
+        System.out.println("  --root <dir>       folder that holds config/config.csv (default: current folder)");
+        System.out.println("  --once             sync all profiles once and exit (default)");
+        System.out.println("  --plan             show what a sync would copy and how long it would take, then exit");
+        System.out.println("  --restore <dest>   roll the destination folder back to the versions of --to, then exit");
+        System.out.println("  --to <time>        yyyy-MM-dd HH:mm (local time) or how long ago, e.g. 30m, 2h, 1d");
+        System.out.println("  --daemon           keep running and sync every interval");
+        System.out.println("  --interval <min>   override the interval from config.csv for profiles without");
+        System.out.println("                     their own schedule");
+        System.out.println("  --watch            with --daemon, also sync as soon as a source changes");
+        System.out.println("  --unpack <dir>     receiver for compressed transfers: unpack staging files below dir,");
+        System.out.println("                     with --daemon keep doing so every 5 s");
+        System.out.println("  --agent <dir>      run a sync agent that receives agent:// destinations into dir");
+        System.out.println("  --port <port>      port for --agent (default 7077)");
+        System.out.println("  --bind <address>   address for --agent, e.g. 0.0.0.0 (default: loopback only;");
+        System.out.println("                     any other address needs --token)");
+        System.out.println("  --token <secret>   token clients of --agent must send (agentToken in config.csv)");
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        String rootDir = null;
+        boolean daemon = false;
+        boolean plan = false;
+        boolean watch = false;
+        Integer interval = null;
+        String unpackDir = null;
+        String agentDir = null;
+        int agentPort = 7077;
+        String agentBind = null;
+        String token = null;
+        String restoreDir = null;
+        Long restoreTime = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--root".equals(arg) && i + 1 < args.length) {
+                rootDir = args[++i];
+            } else if ("--once".equals(arg)) {
+                daemon = false;
+            } else if ("--plan".equals(arg)) {
+                plan = true;
+            } else if ("--restore".equals(arg) && i + 1 < args.length) {
+                restoreDir = args[++i];
+            } else if ("--to".equals(arg) && i + 1 < args.length) {
+                try {
+                    restoreTime = VersionStore.parseTime(args[++i]);
+                } catch (IllegalArgumentException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(2);
+                }
+            } else if ("--daemon".equals(arg)) {
+                daemon = true;
+            } else if ("--watch".equals(arg)) {
+                watch = true;
+            } else if ("--interval".equals(arg) && i + 1 < args.length) {
+                try {
+                    interval = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                    System.exit(2);
+                }
+            } else if ("--unpack".equals(arg) && i + 1 < args.length) {
+                unpackDir = args[++i];
+            } else if ("--agent".equals(arg) && i + 1 < args.length) {
+                agentDir = args[++i];
+            } else if ("--port".equals(arg) && i + 1 < args.length) {
+                try {
+                    agentPort = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                    System.exit(2);
+                }
+            } else if ("--bind".equals(arg) && i + 1 < args.length) {
+                agentBind = args[++i];
+            } else if ("--token".equals(arg) && i + 1 < args.length) {
+                token = args[++i];
+            } else if ("--headless".equals(arg)) {
+                // passed through by the launcher
+            } else {
+                usage();
+                System.exit("--help".equals(arg) ? 0 : 2);
+            }
+        }
+
+        if (agentDir != null) {
+            runAgent(Paths.get(agentDir), agentBind, agentPort, token);
+            return;
+        }
+        if (unpackDir != null) {
+            runUnpack(Paths.get(unpackDir), daemon);
+            return;
+        }
+
+        if (restoreDir != null && restoreTime == null) {
+            usage();
+            System.exit(2);
+        }
+
+        if (plan && restoreDir == null) {
+            runPlan(rootDir);
+            return;
+        }
+        SyncDaemon syncDaemon = new SyncDaemon(rootDir);
+        if (restoreDir != null) {
+            System.exit(syncDaemon.runRestore(restoreDir, restoreTime));
+        }
+        if (!daemon) {
+            System.exit(syncDaemon.runOnce());
+        }
+        int minutes = interval != null ? interval : syncDaemon.config.getInterval();
+        syncDaemon.runForever(Math.max(1, minutes), watch || syncDaemon.config.isWatch());
+    }
+}
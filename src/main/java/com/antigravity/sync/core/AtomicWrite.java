@@ -0,0 +1,115 @@
+package com.antigravity.sync.core;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Helpers for writing a destination through a temp file in the same
+ * directory that is renamed over the target once complete, so readers never
+ * see a half-written file.
+ */
+public class AtomicWrite {
+
+    public static final String TEMP_SUFFIX = ".synctmp";
+
+    // Temp files younger than this may belong to a copy that is still running
+    private static final long STALE_MILLIS = 5 * 60 * 1000L;
+
+    public static Path tempFor(Path target) {
+        String random = Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+        return target.resolveSibling("." + target.getFileName() + "." + random + TEMP_SUFFIX);
+    }
+
+    public static boolean isTemp(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(".") && name.endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * Optionally flushes the temp file to disk and moves it over the target.
+     */
+    public static void commit(Path temp, Path target, boolean fsync) throws IOException {
+        if (fsync) {
+            try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ch.force(true);
+            }
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (fsync) {
+            syncDirectory(target.getParent());
+        }
+    }
+
+    public static void discard(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            // left for cleanup() on the next start
+        }
+    }
+
+    /**
+     * Deletes temp files left behind by an interrupted run, in dir only or
+     * in the whole tree below it. Returns the number of files removed.
+     */
+    public static int cleanup(Path dir, boolean recursive) {
+        return cleanup(dir, recursive, TEMP_SUFFIX, STALE_MILLIS);
+    }
+
+    /**
+     * Same for other hidden work files: .name...suffix files that were not
+     * touched for staleMillis.
+     */
+    public static int cleanup(Path dir, boolean recursive, String suffix, long staleMillis) {
+        if (!Files.isDirectory(dir))
+            return 0;
+        long cutoff = System.currentTimeMillis() - staleMillis;
+        int[] removed = { 0 };
+        SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = file.getFileName().toString();
+                if (name.startsWith(".") && name.endsWith(suffix) && attrs.lastModifiedTime().toMillis() < cutoff
+                        && Files.deleteIfExists(file))
+                    removed[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        };
+        try {
+            Files.walkFileTree(dir, Collections.emptySet(), recursive ? Integer.MAX_VALUE : 1, visitor);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return removed[0];
+    }
+
+    private static void syncDirectory(Path dir) {
+        if (dir == null)
+            return;
+        // Makes the rename itself durable; not supported on every platform
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.antigravity.sync.core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed transfer for slow links. The source is split into chunks that
+ * are deflated in parallel and written, in order, to a staging file next to
+ * the target (.name.synczip). A receiver on the destination host unpacks it
+ * into the target with unpack() or unpackAll(), so only compressed bytes
+ * cross the wire.
+ *
+ * Format: magic, original size, source mtime, then frames of
+ * (type, raw length, data length, CRC32C of the raw chunk, data) and an end
+ * frame followed by the CRC32C of the whole file.
+ */
+public class CompressedTransfer {
+
+    public static final String MODE_OFF = "off";
+    // Only destinations given as UNC paths or on a network file system
+    public static final String MODE_NETWORK = "network";
+    public static final String MODE_ALL = "all";
+
+    public static final String STAGING_SUFFIX = ".synczip";
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final byte[] MAGIC = "SYNCZIP1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte FRAME_END = 0;
+    private static final byte FRAME_DEFLATE = 1;
+    private static final byte FRAME_STORED = 2;
+    private static final int FRAME_HEADER = 1 + 4 + 4 + 4;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<>();
+
+    private static final String[] NETWORK_TYPES = { "cifs", "smb", "nfs", "fuse.sshfs", "9p", "davfs", "afpfs",
+            "webdav" };
+
+    public static class Stats {
+        public long sourceSize;
+        public long packedSize;
+        public String sourceHash;
+    }
+
+    public static boolean isMode(String mode) {
+        return MODE_OFF.equals(mode) || MODE_NETWORK.equals(mode) || MODE_ALL.equals(mode);
+    }
+
+    /**
+     * True for a volume key (root|store|type, see CopyEngine) of a network
+     * share: a UNC path or a network file system type. A share mapped to a
+     * drive letter reports the file system of the server (NTFS, FAT) and is
+     * not recognized; use its UNC path or mode all for it.
+     */
+    static boolean isNetworkVolume(String volumeKey) {
+        if (volumeKey.startsWith("\\\\") || volumeKey.startsWith("//"))
+            return true;
+        String type = volumeKey.substring(volumeKey.lastIndexOf('|') + 1).toLowerCase();
+        for (String t : NETWORK_TYPES) {
+            if (type.startsWith(t))
+                return true;
+        }
+        return false;
+    }
+
+    public static Path stagingFor(Path target) {
+        return target.resolveSibling("." + target.getFileName() + STAGING_SUFFIX);
+    }
+
+    public static boolean isStaging(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(".") && name.endsWith(STAGING_SUFFIX) && name.length() > STAGING_SUFFIX.length() + 1;
+    }
+
+    /**
+     * Compresses source into the staging file for target. Chunks are
+     * compressed on the given executor, at most window of them at a time.
+     * The staging file appears atomically once complete.
+     */
+    public static Stats pack(Path source, Path target, long sourceModified, Executor compressors, int window,
+            int level, boolean fsync) throws IOException {
+        return pack(source, target, sourceModified, compressors, window, level, fsync, Throttle.NONE);
+    }
+
+    /**
+     * Like pack(...), waiting for the throttle before each frame, so limits
+     * apply to the compressed bytes that cross the link.
+     */
+    public static Stats pack(Path source, Path target, long sourceModified, Executor compressors, int window,
+            int level, boolean fsync, Throttle throttle) throws IOException {
+        Path staging = stagingFor(target);
+        Path temp = AtomicWrite.tempFor(staging);
+        Stats stats = new Stats();
+        CRC32C total = new CRC32C();
+        Queue<CompletableFuture<byte[]>> inflight = new ArrayDeque<>();
+
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 16);
+            header.put(MAGIC).putLong(size).putLong(sourceModified).flip();
+            writeFully(out, header);
+
+            boolean eof = false;
+            while (!eof || !inflight.isEmpty()) {
+                // Keep the compressors busy while frames are written in order
+                while (!eof && inflight.size() < Math.max(1, window)) {
+                    byte[] chunk = readChunk(in);
+                    if (chunk == null) {
+                        eof = true;
+                        break;
+                    }
+                    total.update(chunk, 0, chunk.length);
+                    stats.sourceSize += chunk.length;
+                    inflight.add(CompletableFuture.supplyAsync(() -> frame(chunk, level), compressors));
+                }
+                CompletableFuture<byte[]> next = inflight.poll();
+                if (next != null) {
+                    byte[] frame = next.join();
+                    throttle.acquireBytes(frame.length);
+                    writeFully(out, ByteBuffer.wrap(frame));
+                }
+            }
+            // The header promises size bytes, the receiver would reject anything else
+            if (stats.sourceSize != size || in.size() != size)
+                throw new IOException("Source changed while it was packed: " + source);
+
+            ByteBuffer end = ByteBuffer.allocate(1 + 8);
+            end.put(FRAME_END).putLong(total.getValue()).flip();
+            writeFully(out, end);
+            stats.packedSize = out.size();
+        } catch (IOException | RuntimeException e) {
+            for (CompletableFuture<byte[]> f : inflight) {
+                f.cancel(false);
+            }
+            AtomicWrite.discard(temp);
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+
+        AtomicWrite.commit(temp, staging, fsync);
+        stats.sourceHash = Long.toHexString(total.getValue());
+        return stats;
+    }
+
+    private static byte[] readChunk(FileChannel in) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+        while (buf.hasRemaining()) {
+            if (in.read(buf) == -1)
+                break;
+        }
+        if (buf.position() == 0)
+            return null;
+        return buf.position() == CHUNK_SIZE ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    /**
+     * Builds one frame. Chunks that do not shrink are stored as they are.
+     */
+    static byte[] frame(byte[] raw, int level) {
+        Deflater deflater = deflaters.get();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            deflaters.set(deflater);
+        }
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(raw);
+        deflater.finish();
+
+        byte[] frame = new byte[FRAME_HEADER + raw.length];
+        int packed = 0;
+        while (!deflater.finished() && packed < raw.length) {
+            packed += deflater.deflate(frame, FRAME_HEADER + packed, raw.length - packed);
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(raw, 0, raw.length);
+        ByteBuffer head = ByteBuffer.wrap(frame, 0, FRAME_HEADER);
+        if (deflater.finished() && packed < raw.length) {
+            head.put(FRAME_DEFLATE).putInt(raw.length).putInt(packed).putInt((int) crc.getValue());
+            return Arrays.copyOf(frame, FRAME_HEADER + packed);
+        }
+        head.put(FRAME_STORED).putInt(raw.length).putInt(raw.length).putInt((int) crc.getValue());
+        System.arraycopy(raw, 0, frame, FRAME_HEADER, raw.length);
+        return frame;
+    }
+
+    /**
+     * Unpacks a staging file into its target and deletes it. Runs on the
+     * destination host. Returns the size of the unpacked file.
+     */
+    public static long unpack(Path staging, boolean fsync) throws IOException {
+        String name = staging.getFileName().toString();
+        Path target = staging.resolveSibling(name.substring(1, name.length() - STAGING_SUFFIX.length()));
+        Path temp = AtomicWrite.tempFor(target);
+        long size;
+        long modified;
+
+        try (InputStream raw = Channels.newInputStream(FileChannel.open(staging, StandardOpenOption.READ));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 64 * 1024));
+                FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException("Not a sync staging file: " + staging);
+            size = in.readLong();
+            modified = in.readLong();
+
+            Inflater inflater = new Inflater(true);
+            CRC32C total = new CRC32C();
+            long written = 0;
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    if (type == FRAME_END)
+                        break;
+                    int rawLength = in.readInt();
+                    int dataLength = in.readInt();
+                    int crc = in.readInt();
+                    if (rawLength < 0 || rawLength > CHUNK_SIZE || dataLength < 0 || dataLength > rawLength)
+                        throw new IOException("Corrupt frame in " + staging);
+                    byte[] data = new byte[dataLength];
+                    in.readFully(data);
+
+                    byte[] chunk;
+                    if (type == FRAME_STORED) {
+                        chunk = data;
+                    } else if (type == FRAME_DEFLATE) {
+                        chunk = new byte[rawLength];
+                        inflater.reset();
+                        inflater.setInput(data);
+                        int n = 0;
+                        while (n < rawLength && !inflater.finished()) {
+                            int k = inflater.inflate(chunk, n, rawLength - n);
+                            if (k == 0 && inflater.needsInput())
+                                break;
+                            n += k;
+                        }
+                        if (n != rawLength)
+                            throw new IOException("Corrupt frame in " + staging);
+                    } else {
+                        throw new IOException("Unknown frame type " + type + " in " + staging);
+                    }
+
+                    CRC32C check = new CRC32C();
+                    check.update(chunk, 0, chunk.length);
+                    if ((int) check.getValue() != crc)
+                        throw new IOException("Checksum mismatch in " + staging);
+                    total.update(chunk, 0, chunk.length);
+                    writeFully(out, ByteBuffer.wrap(chunk));
+                    written += chunk.length;
+                }
+                if (in.readLong() != total.getValue() || written != size)
+                    throw new IOException("Incomplete staging file " + staging);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt frame in " + staging, e);
+            } finally {
+                inflater.end();
+            }
+        } catch (EOFException e) {
+            AtomicWrite.discard(temp);
+            throw new IOException("Truncated staging file " + staging, e);
+        } catch (IOException e) {
+            AtomicWrite.discard(temp);
+            throw e;
+        }
+
+        // The sender's index expects the target to carry the source mtime
+        Files.setLastModifiedTime(temp, FileTime.fromMillis(modified));
+        AtomicWrite.commit(temp, target, fsync);
+        Files.deleteIfExists(staging);
+        return size;
+    }
+
+    /**
+     * Unpacks every staging file below dir. Returns the number unpacked.
+     */
+    public static int unpackAll(Path dir, boolean fsync) {
+        int[] count = { 0 };
+        if (!Files.isDirectory(dir))
+            return 0;
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (isStaging(file)) {
+                        try {
+                            unpack(file, fsync);
+                            count[0]++;
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return count[0];
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+}
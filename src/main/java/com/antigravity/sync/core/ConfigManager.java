@@ -0,0 +1,483 @@
+package com.antigravity.sync.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ConfigManager {
+
+    public static final String KEY_INTERVAL = "interval";
+    public static final String KEY_INCREMENTAL = "incremental";
+    public static final String KEY_THREADS = "threads";
+    public static final String KEY_PER_VOLUME = "perVolume";
+    public static final String KEY_WATCH = "watch";
+    public static final String KEY_WATCH_QUIET = "watchQuiet";
+    public static final String KEY_DELTA = "delta";
+    public static final String KEY_DELTA_MIN_SIZE = "deltaMinSize";
+    public static final String KEY_ATOMIC = "atomic";
+    public static final String KEY_FSYNC = "fsync";
+    public static final String KEY_METRICS_PORT = "metricsPort";
+    public static final String KEY_TIMEOUT = "timeout";
+    public static final String KEY_COMPRESS = "compress";
+    public static final String KEY_COMPRESS_LEVEL = "compressLevel";
+    public static final String KEY_AGENT_TOKEN = "agentToken";
+    public static final String KEY_DEDUP = "dedup";
+    public static final String KEY_MAX_BYTES_PER_SEC = "maxBytesPerSec";
+    public static final String KEY_MAX_FILES_PER_SEC = "maxFilesPerSec";
+    public static final String KEY_VERIFY = "verify";
+    public static final String KEY_SCRUB_BYTES_PER_SEC = "scrubBytesPerSec";
+    public static final String KEY_COORDINATION_DIR = "coordinationDir";
+    public static final String KEY_NODE_ID = "nodeId";
+    public static final String KEY_LEASE_SECONDS = "leaseSeconds";
+    public static final String KEY_KEEP_VERSIONS = "keepVersions";
+    public static final String KEY_KEEP_VERSION_DAYS = "keepVersionDays";
+    // Legacy keys, profiles are now kept in ProfileStore
+    public static final String KEY_SOURCE = "source";
+    public static final String KEY_DEST = "dest";
+    public static final String KEY_SOURCE_1 = "source1";
+    public static final String KEY_DEST_1 = "dest1";
+    public static final String KEY_SOURCE_2 = "source2";
+    public static final String KEY_DEST_2 = "dest2";
+    public static final String KEY_SOURCE_3 = "source3";
+    public static final String KEY_DEST_3 = "dest3";
+
+    private File configDir;
+    private File configFile;
+    private int interval = 15; // default 15 mins
+    private boolean incremental = true;
+    private int threads = 8;
+    private int perVolume = 2; // concurrent copies per disk/share
+    private boolean watch = false;
+    private int watchQuiet = (int) SourceWatcher.DEFAULT_QUIET_MILLIS;
+    private boolean delta = false;
+    private long deltaMinSize = 8L * 1024 * 1024; // smaller files are just copied
+    private boolean atomic = false;
+    private boolean fsync = false;
+    private int metricsPort = 0; // local /metrics endpoint, 0 = off
+    private int timeout = 60; // seconds without progress before a destination fails
+    private String compress = CompressedTransfer.MODE_OFF; // off, network or all
+    private int compressLevel = 1; // Deflate level, 1 is fastest
+    private String agentToken = ""; // shared secret for agent:// destinations
+    private boolean dedup = false; // hard link destinations on the same file system
+    private long maxBytesPerSec = 0; // global write limit, 0 = unlimited
+    private long maxFilesPerSec = 0;
+    private boolean verify = false; // read back and compare every copy
+    private long scrubBytesPerSec = 0; // read budget of the background scrubber, 0 = off
+    private String coordinationDir = ""; // shared folder for leases between instances, empty = off
+    private String nodeId = ""; // empty = host name and process id
+    private int leaseSeconds = 30;
+    private int keepVersions = 0; // replaced destination versions kept per file, 0 = off
+    private int keepVersionDays = 0; // 0 = no age limit
+
+    private ProfileStore profileStore;
+
+    public ConfigManager(String rootInfo) {
+        String rootDir = ".";
+        if (rootInfo != null && !rootInfo.isEmpty()) {
+            rootDir = rootInfo;
+        }
+
+        this.configDir = new File(rootDir, "config");
+        if (!configDir.exists()) {
+            configDir.mkdirs();
+        }
+        this.configFile = new File(configDir, "config.csv");
+        this.profileStore = new ProfileStore(configDir);
+    }
+
+    public void load() {
+        profileStore.loadIndex();
+        if (!configFile.exists()) {
+            return;
+        }
+
+        // Profiles from config.csv files written before ProfileStore existed
+        String[] legacySources = { "", "", "" };
+        List<List<String>> legacyDests = Arrays.asList(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+
+        try (BufferedReader br = new BufferedReader(new FileReader(configFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(",", 2);
+                if (parts.length == 2) {
+                    String key = parts[0].trim();
+                    String value = parts[1].trim();
+
+                    if (KEY_INTERVAL.equals(key)) {
+                        try {
+                            this.interval = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            // ignore, keep default
+                        }
+                    } else if (KEY_INCREMENTAL.equals(key)) {
+                        this.incremental = Boolean.parseBoolean(value);
+                    } else if (KEY_THREADS.equals(key)) {
+                        this.threads = parsePositive(value, threads);
+                    } else if (KEY_PER_VOLUME.equals(key)) {
+                        this.perVolume = parsePositive(value, perVolume);
+                    } else if (KEY_WATCH.equals(key)) {
+                        this.watch = Boolean.parseBoolean(value);
+                    } else if (KEY_WATCH_QUIET.equals(key)) {
+                        this.watchQuiet = parsePositive(value, watchQuiet);
+                    } else if (KEY_DELTA.equals(key)) {
+                        this.delta = Boolean.parseBoolean(value);
+                    } else if (KEY_ATOMIC.equals(key)) {
+                        this.atomic = Boolean.parseBoolean(value);
+                    } else if (KEY_FSYNC.equals(key)) {
+                        this.fsync = Boolean.parseBoolean(value);
+                    } else if (KEY_TIMEOUT.equals(key)) {
+                        this.timeout = parsePositive(value, timeout);
+                    } else if (KEY_COMPRESS.equals(key)) {
+                        if (CompressedTransfer.isMode(value))
+                            this.compress = value;
+                    } else if (KEY_COMPRESS_LEVEL.equals(key)) {
+                        this.compressLevel = Math.min(9, parsePositive(value, compressLevel));
+                    } else if (KEY_DEDUP.equals(key)) {
+                        this.dedup = Boolean.parseBoolean(value);
+                    } else if (KEY_MAX_BYTES_PER_SEC.equals(key)) {
+                        this.maxBytesPerSec = parseLimit(value);
+                    } else if (KEY_MAX_FILES_PER_SEC.equals(key)) {
+                        this.maxFilesPerSec = parseLimit(value);
+                    } else if (KEY_VERIFY.equals(key)) {
+                        this.verify = Boolean.parseBoolean(value);
+                    } else if (KEY_SCRUB_BYTES_PER_SEC.equals(key)) {
+                        this.scrubBytesPerSec = parseLimit(value);
+                    } else if (KEY_COORDINATION_DIR.equals(key)) {
+                        this.coordinationDir = value;
+                    } else if (KEY_NODE_ID.equals(key)) {
+                        this.nodeId = value;
+                    } else if (KEY_LEASE_SECONDS.equals(key)) {
+                        this.leaseSeconds = parsePositive(value, leaseSeconds);
+                    } else if (KEY_KEEP_VERSIONS.equals(key)) {
+                        this.keepVersions = parsePositive(value, 0);
+                    } else if (KEY_KEEP_VERSION_DAYS.equals(key)) {
+                        this.keepVersionDays = parsePositive(value, 0);
+                    } else if (KEY_AGENT_TOKEN.equals(key)) {
+                        this.agentToken = value;
+                    } else if (KEY_METRICS_PORT.equals(key)) {
+                        this.metricsPort = parsePositive(value, 0);
+                    } else if (KEY_DELTA_MIN_SIZE.equals(key)) {
+                        try {
+                            this.deltaMinSize = Long.parseLong(value);
+                        } catch (NumberFormatException e) {
+                            // ignore, keep default
+                        }
+                    } else if (KEY_SOURCE.equals(key) || KEY_SOURCE_1.equals(key)) {
+                        legacySources[0] = value;
+                    } else if (KEY_DEST.equals(key) || KEY_DEST_1.equals(key)) {
+                        legacyDests.get(0).add(value);
+                    } else if (KEY_SOURCE_2.equals(key)) {
+                        legacySources[1] = value;
+                    } else if (KEY_DEST_2.equals(key)) {
+                        legacyDests.get(1).add(value);
+                    } else if (KEY_SOURCE_3.equals(key)) {
+                        legacySources[2] = value;
+                    } else if (KEY_DEST_3.equals(key)) {
+                        legacyDests.get(2).add(value);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (!profileStore.exists()) {
+            for (int i = 0; i < 3; i++) {
+                if (!legacySources[i].isEmpty() || !legacyDests.get(i).isEmpty()) {
+                    profileStore.create("Sync Profile " + (i + 1), legacySources[i], legacyDests.get(i));
+                }
+            }
+        }
+    }
+
+    public void save() {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(configFile))) {
+            // Save Interval
+            bw.write(KEY_INTERVAL + "," + interval);
+            bw.newLine();
+            bw.write(KEY_INCREMENTAL + "," + incremental);
+            bw.newLine();
+            bw.write(KEY_THREADS + "," + threads);
+            bw.newLine();
+            bw.write(KEY_PER_VOLUME + "," + perVolume);
+            bw.newLine();
+            bw.write(KEY_WATCH + "," + watch);
+            bw.newLine();
+            bw.write(KEY_WATCH_QUIET + "," + watchQuiet);
+            bw.newLine();
+            bw.write(KEY_DELTA + "," + delta);
+            bw.newLine();
+            bw.write(KEY_DELTA_MIN_SIZE + "," + deltaMinSize);
+            bw.newLine();
+            bw.write(KEY_ATOMIC + "," + atomic);
+            bw.newLine();
+            bw.write(KEY_FSYNC + "," + fsync);
+            bw.newLine();
+            bw.write(KEY_METRICS_PORT + "," + metricsPort);
+            bw.newLine();
+            bw.write(KEY_TIMEOUT + "," + timeout);
+            bw.newLine();
+            bw.write(KEY_COMPRESS + "," + compress);
+            bw.newLine();
+            bw.write(KEY_COMPRESS_LEVEL + "," + compressLevel);
+            bw.newLine();
+            bw.write(KEY_AGENT_TOKEN + "," + agentToken);
+            bw.newLine();
+            bw.write(KEY_DEDUP + "," + dedup);
+            bw.newLine();
+            bw.write(KEY_MAX_BYTES_PER_SEC + "," + maxBytesPerSec);
+            bw.newLine();
+            bw.write(KEY_MAX_FILES_PER_SEC + "," + maxFilesPerSec);
+            bw.newLine();
+            bw.write(KEY_VERIFY + "," + verify);
+            bw.newLine();
+            bw.write(KEY_SCRUB_BYTES_PER_SEC + "," + scrubBytesPerSec);
+            bw.newLine();
+            bw.write(KEY_COORDINATION_DIR + "," + coordinationDir);
+            bw.newLine();
+            bw.write(KEY_NODE_ID + "," + nodeId);
+            bw.newLine();
+            bw.write(KEY_LEASE_SECONDS + "," + leaseSeconds);
+            bw.newLine();
+            bw.write(KEY_KEEP_VERSIONS + "," + keepVersions);
+            bw.newLine();
+            bw.write(KEY_KEEP_VERSION_DAYS + "," + keepVersionDays);
+            bw.newLine();
+
+            // Profiles are saved one at a time by ProfileStore
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public void setInterval(int interval) {
+        this.interval = interval;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getPerVolume() {
+        return perVolume;
+    }
+
+    public void setPerVolume(int perVolume) {
+        this.perVolume = perVolume;
+    }
+
+    public boolean isWatch() {
+        return watch;
+    }
+
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
+    public int getWatchQuiet() {
+        return watchQuiet;
+    }
+
+    public void setWatchQuiet(int watchQuiet) {
+        this.watchQuiet = watchQuiet;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    public long getDeltaMinSize() {
+        return deltaMinSize;
+    }
+
+    public void setDeltaMinSize(long deltaMinSize) {
+        this.deltaMinSize = deltaMinSize;
+    }
+
+    public boolean isAtomic() {
+        return atomic;
+    }
+
+    public void setAtomic(boolean atomic) {
+        this.atomic = atomic;
+    }
+
+    public boolean isFsync() {
+        return fsync;
+    }
+
+    public void setFsync(boolean fsync) {
+        this.fsync = fsync;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public String getCompress() {
+        return compress;
+    }
+
+    public void setCompress(String compress) {
+        this.compress = compress;
+    }
+
+    public int getCompressLevel() {
+        return compressLevel;
+    }
+
+    public void setCompressLevel(int compressLevel) {
+        this.compressLevel = compressLevel;
+    }
+
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    public void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    public long getMaxBytesPerSec() {
+        return maxBytesPerSec;
+    }
+
+    public void setMaxBytesPerSec(long maxBytesPerSec) {
+        this.maxBytesPerSec = maxBytesPerSec;
+    }
+
+    public long getMaxFilesPerSec() {
+        return maxFilesPerSec;
+    }
+
+    public void setMaxFilesPerSec(long maxFilesPerSec) {
+        this.maxFilesPerSec = maxFilesPerSec;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public long getScrubBytesPerSec() {
+        return scrubBytesPerSec;
+    }
+
+    public void setScrubBytesPerSec(long scrubBytesPerSec) {
+        this.scrubBytesPerSec = scrubBytesPerSec;
+    }
+
+    public String getCoordinationDir() {
+        return coordinationDir;
+    }
+
+    public void setCoordinationDir(String coordinationDir) {
+        this.coordinationDir = coordinationDir;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public int getLeaseSeconds() {
+        return leaseSeconds;
+    }
+
+    public void setLeaseSeconds(int leaseSeconds) {
+        this.leaseSeconds = leaseSeconds;
+    }
+
+    public int getKeepVersions() {
+        return keepVersions;
+    }
+
+    public void setKeepVersions(int keepVersions) {
+        this.keepVersions = keepVersions;
+    }
+
+    public int getKeepVersionDays() {
+        return keepVersionDays;
+    }
+
+    public void setKeepVersionDays(int keepVersionDays) {
+        this.keepVersionDays = keepVersionDays;
+    }
+
+    public String getAgentToken() {
+        return agentToken;
+    }
+
+    public void setAgentToken(String agentToken) {
+        this.agentToken = agentToken;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public File getConfigDir() {
+        return configDir;
+    }
+
+    public ProfileStore getProfileStore() {
+        return profileStore;
+    }
+
+    private static long parseLimit(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int parsePositive(String value, int fallback) {
+        try {
+            int v = Integer.parseInt(value);
+            return v > 0 ? v : fallback;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,1465 @@
+package com.antigravity.sync.core;
+
+import com.antigravity.sync.agent.AgentClient;
+import com.antigravity.sync.agent.AgentUrl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Fans copies for all destinations of all profiles out to a bounded worker
+ * pool. Copies targeting the same volume are additionally limited so a
+ * single disk or share is not swamped. Each source is read only once per
+ * sync, see FanOutCopier.
+ *
+ * Directory and glob sources are walked in parallel (see SourceWalker) and
+ * every file found is synced like a single-file profile. Only a bounded
+ * number of files per profile is in flight at once, the walk waits for
+ * copies to finish before listing more.
+ *
+ * Destinations that fail are tracked in DestinationHealth. A destination
+ * that keeps failing is skipped by regular syncs and retried with backoff
+ * in the background; missed profiles are synced to it as soon as it works
+ * again.
+ *
+ * Destinations on slow links can get a compressed copy instead, see
+ * CompressedTransfer: only a staging file is written and a receiver on the
+ * far side unpacks it into place.
+ *
+ * With dedup on, local destinations are hard links into a content-addressed
+ * store per file system (DedupStore), so the content is written once per
+ * file system however many destinations it has. Files that may be linked
+ * are never written in place.
+ *
+ * Destinations of the form agent://host:port/path are pushed to a sync
+ * agent over one persistent connection per agent, see AgentClient.
+ *
+ * Every write passes the global, profile and destination rate limits in
+ * RateLimits, one file per destination and then chunk by chunk.
+ *
+ * With a LeaseManager, profiles are only synced to the destinations this
+ * instance owns and holds a lease for; other instances take the rest.
+ *
+ * With a SyncPlanner, a sync whose plan is still valid runs just the
+ * planned copies instead of checking every file again.
+ *
+ * With verify on, local copies are read back on their volume queues while
+ * the source is hashed, and a copy that differs fails like any other write.
+ *
+ * With a VersionStore, the file a local copy replaces is kept as a version
+ * first, a hard link where the file system has them. Like with dedup,
+ * destinations are never written in place then.
+ */
+public class CopyEngine {
+
+    private final SyncIndex index;
+    private final ThreadPoolExecutor workers;
+    // Runs tasks on workers while watching for ones stuck on a dead destination
+    private final Executor guarded = task -> runGuarded(task, null);
+    private final Set<Guarded> runningTasks = ConcurrentHashMap.newKeySet();
+    private final int maxStuck;
+    private int stuck = 0;
+    // Readers wait for writers, never the other way round, so they get their own pool
+    private final ExecutorService readers;
+    private final ExecutorService walkers;
+    private final ExecutorService compressors;
+    private final int perVolumeLimit;
+    private final int treeInflight;
+    private final Map<String, VolumeQueue> volumes = new ConcurrentHashMap<>();
+    private final Map<String, String> volumeKeys = new ConcurrentHashMap<>();
+    private final Map<String, AgentClient> agents = new ConcurrentHashMap<>();
+    private final Map<String, Object> agentLocks = new ConcurrentHashMap<>();
+    private final Map<String, DedupStore> dedupStores = new ConcurrentHashMap<>();
+    private final DestinationHealth health = new DestinationHealth();
+    private final RateLimits rateLimits = new RateLimits();
+    private final SyncMetrics metrics = new SyncMetrics(health, rateLimits);
+    // destination -> profiles (by id) that could not be synced to it
+    private final Map<String, Map<String, SyncProfile>> missed = new ConcurrentHashMap<>();
+    private final AtomicInteger activeSubmits = new AtomicInteger();
+    private final ScheduledExecutorService retryTimer;
+    private volatile boolean delta = false;
+    private volatile long deltaMinSize = Long.MAX_VALUE;
+    private volatile boolean atomic = false;
+    private volatile boolean fsync = false;
+    private volatile long timeoutMillis = 60000;
+    private volatile String compress = CompressedTransfer.MODE_OFF;
+    private volatile int compressLevel = 1;
+    private volatile String agentToken = "";
+    private volatile boolean dedup = false;
+    private volatile boolean verify = false;
+    private volatile SyncJournal journal;
+    private volatile LeaseManager leases;
+    private volatile SyncPlanner planner;
+    private volatile VersionStore versions;
+
+    public CopyEngine(SyncIndex index, int threads, int perVolumeLimit) {
+        this.index = index;
+        this.perVolumeLimit = Math.max(1, perVolumeLimit);
+        this.workers = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new WorkerThreadFactory("sync-worker-"));
+        this.maxStuck = Math.max(1, threads) * 4;
+        this.readers = Executors.newFixedThreadPool(Math.max(1, threads), new WorkerThreadFactory("sync-reader-"));
+        this.walkers = Executors.newFixedThreadPool(Math.max(2, threads / 2), new WorkerThreadFactory("sync-walker-"));
+        this.compressors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new WorkerThreadFactory("sync-compress-"));
+        this.treeInflight = Math.max(64, threads * 16);
+        this.retryTimer = Executors.newSingleThreadScheduledExecutor(new WorkerThreadFactory("sync-retry-"));
+        retryTimer.scheduleWithFixedDelay(this::retryDue, 1, 1, TimeUnit.SECONDS);
+        retryTimer.scheduleWithFixedDelay(this::findStuckTasks, 1, 1, TimeUnit.SECONDS);
+        retryTimer.scheduleAtFixedRate(rateLimits::sample, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public SyncMetrics getMetrics() {
+        return metrics;
+    }
+
+    public DestinationHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * Global limit and throughput; profile limits are taken from the
+     * profiles, call apply() on it when one was edited during a sync.
+     */
+    public RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    /**
+     * Fails a destination that makes no progress for this long: checking
+     * it, opening, writing one chunk or committing. 0 disables the timeout.
+     */
+    public void setTimeout(long millis) {
+        this.timeoutMillis = millis;
+    }
+
+    /**
+     * Enables rsync-style delta updates for destinations that already hold a
+     * copy of at least minSize bytes.
+     */
+    public void setDelta(boolean enabled, long minSize) {
+        this.delta = enabled;
+        this.deltaMinSize = minSize;
+    }
+
+    /**
+     * Writes destinations through a temp file that is renamed over the
+     * target, optionally fsynced before the rename.
+     */
+    public void setAtomic(boolean atomic, boolean fsync) {
+        this.atomic = atomic;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Sends compressed staging files instead of plain copies to network
+     * shares (CompressedTransfer.MODE_NETWORK) or to every destination.
+     */
+    public void setCompress(String mode, int level) {
+        this.compress = mode;
+        this.compressLevel = level;
+    }
+
+    /**
+     * Writes each content once per file system and hard links the local
+     * destinations to it, see DedupStore.
+     */
+    public void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    /**
+     * Reads every local copy back after writing it and fails those that do
+     * not match the source.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Token sent to sync agents, must match the one the agent was started
+     * with.
+     */
+    public void setAgentToken(String token) {
+        this.agentToken = token == null ? "" : token;
+    }
+
+    /**
+     * Records runs and destination writes, so a run that was killed can be
+     * resumed on the next start.
+     */
+    public void setJournal(SyncJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Shares the work with other instances through lease files, see
+     * LeaseManager.
+     */
+    public void setLeases(LeaseManager leases) {
+        this.leases = leases;
+    }
+
+    /**
+     * Lets syncs reuse the plans the planner made, see SyncPlanner.
+     */
+    public void setPlanner(SyncPlanner planner) {
+        this.planner = planner;
+    }
+
+    /**
+     * Keeps the versions local destinations had before they were replaced,
+     * or none if null. Versions may be hard links to the old file, so
+     * destinations are always replaced via a temp file while this is set.
+     */
+    public void setVersions(VersionStore versions) {
+        this.versions = versions;
+    }
+
+    public Map<SyncProfile, SyncResult> syncAll(List<SyncProfile> profiles, boolean incremental) {
+        return syncAll(profiles, incremental, (p, r) -> {
+        });
+    }
+
+    /**
+     * Syncs all profiles at once and blocks until every one is done.
+     * onProfileDone is called from a pool thread as each profile finishes.
+     */
+    public Map<SyncProfile, SyncResult> syncAll(List<SyncProfile> profiles, boolean incremental,
+            BiConsumer<SyncProfile, SyncResult> onProfileDone) {
+        SyncJournal journal = this.journal;
+        String run = journal != null ? journal.runStarted(profiles) : null;
+        for (SyncProfile profile : profiles) {
+            rateLimits.apply(profile);
+        }
+        Map<SyncProfile, CompletableFuture<SyncResult>> pending = new LinkedHashMap<>();
+        LeaseManager leases = this.leases;
+        SyncPlanner planner = this.planner;
+        // Checked for all profiles before any of them changes the index
+        Map<String, SyncPlan.ProfilePlan> plans = planner != null && incremental
+                ? planner.takeReusable(profiles)
+                : Collections.emptyMap();
+        for (SyncProfile profile : profiles) {
+            SyncPlan.ProfilePlan plan = plans.get(profile.getId());
+            CompletableFuture<SyncResult> f;
+            if (leases == null) {
+                f = submit(profile, incremental, plan);
+            } else {
+                // Only the destinations this instance holds, the others are synced elsewhere
+                SyncProfile claimed = leases.claim(profile);
+                f = claimed == null ? CompletableFuture.completedFuture(new SyncResult())
+                        : submit(claimed, incremental, plan);
+                if (claimed != null)
+                    f.whenComplete((r, e) -> leases.release(claimed));
+            }
+            f.thenAccept(r -> onProfileDone.accept(profile, r));
+            pending.put(profile, f);
+        }
+
+        Map<SyncProfile, SyncResult> results = new LinkedHashMap<>();
+        for (Map.Entry<SyncProfile, CompletableFuture<SyncResult>> e : pending.entrySet()) {
+            try {
+                SyncResult result = e.getValue().join();
+                results.put(e.getKey(), result);
+                if (result.getFailed() == 0 && result.getDeferred() == 0)
+                    metrics.profileSucceeded(e.getKey().getName());
+            } catch (RuntimeException ex) {
+                SyncResult failed = new SyncResult();
+                failed(failed, null, ex);
+                results.put(e.getKey(), failed);
+            }
+        }
+        if (journal != null) {
+            journal.runFinished(run);
+            // Saves the index as well
+            journal.compact();
+        } else {
+            index.save();
+        }
+        return results;
+    }
+
+    /**
+     * Syncs a profile: a single file, or every file of a directory or glob
+     * source. Completes once all files were synced. Destinations with an
+     * open circuit are skipped and left to the retry loop.
+     */
+    public CompletableFuture<SyncResult> submit(SyncProfile profile, boolean incremental) {
+        return submit(profile, incremental, (SyncPlan.ProfilePlan) null);
+    }
+
+    private CompletableFuture<SyncResult> submit(SyncProfile profile, boolean incremental,
+            SyncPlan.ProfilePlan plan) {
+        // About to be synced in full, failures will add it again
+        for (Map<String, SyncProfile> m : missed.values()) {
+            m.remove(profile.getId());
+        }
+        activeSubmits.incrementAndGet();
+        CompletableFuture<SyncResult> f = plan != null ? submitPlanned(profile, plan, incremental)
+                : submit(profile, incremental, false);
+        f.whenComplete((r, e) -> activeSubmits.decrementAndGet());
+        return f;
+    }
+
+    private CompletableFuture<SyncResult> submit(SyncProfile profile, boolean incremental, boolean probe) {
+        SourceWalker walker;
+        try {
+            walker = SourceWalker.of(profile.getSourcePath());
+        } catch (IllegalArgumentException e) {
+            // invalid glob pattern
+            SyncResult failed = new SyncResult();
+            failed(failed, null, e);
+            return CompletableFuture.completedFuture(failed);
+        }
+        if (walker == null)
+            return CompletableFuture.completedFuture(new SyncResult());
+
+        if (walker.isSingleFile()) {
+            File sourceFile = walker.getBase().toFile();
+            return syncFile(profile, new SourceState(sourceFile, sourceFile.length(), sourceFile.lastModified()),
+                    sourceFile.getName(), incremental, probe);
+        }
+        return submitTree(walker, profile, incremental, probe);
+    }
+
+    private CompletableFuture<SyncResult> submitTree(SourceWalker walker, SyncProfile profile, boolean incremental,
+            boolean probe) {
+        SyncResult total = new SyncResult();
+        CompletableFuture<SyncResult> done = new CompletableFuture<>();
+        Semaphore inflight = new Semaphore(treeInflight);
+        // One for the walk itself, plus one per file still being synced
+        AtomicInteger pending = new AtomicInteger(1);
+        Runnable finishOne = () -> {
+            if (pending.decrementAndGet() == 0)
+                done.complete(total);
+        };
+
+        walker.walk(walkers, (Path file, String relativePath, BasicFileAttributes attrs) -> {
+            inflight.acquire();
+            pending.incrementAndGet();
+            SourceState source = new SourceState(file.toFile(), attrs.size(), attrs.lastModifiedTime().toMillis());
+            syncFile(profile, source, relativePath, incremental, probe).whenComplete((r, ex) -> {
+                synchronized (total) {
+                    if (r != null) {
+                        total.add(r);
+                    } else {
+                        failed(total, null, ex);
+                    }
+                }
+                inflight.release();
+                finishOne.run();
+            });
+        }).whenComplete((v, ex) -> {
+            if (ex != null) {
+                synchronized (total) {
+                    failed(total, null, ex);
+                }
+            }
+            finishOne.run();
+        });
+        return done;
+    }
+
+    /**
+     * Runs the copies of a plan that is still valid. The files the plan found
+     * up to date are counted as skipped without being checked again.
+     * Destinations the plan left out because they were failing get a full
+     * sync, which defers them to the retry loop again if they still fail.
+     */
+    private CompletableFuture<SyncResult> submitPlanned(SyncProfile profile, SyncPlan.ProfilePlan plan,
+            boolean incremental) {
+        SyncResult total = new SyncResult();
+        // The profile may have fewer destinations than planned, e.g. when sharing the work with other nodes
+        Set<String> dests = new HashSet<>(profile.getDestPaths());
+        List<String> unplanned = new ArrayList<>();
+        for (String destPath : profile.getDestPaths()) {
+            SyncPlan.DestPlan d = plan.getDest(AgentUrl.isAgent(destPath) ? destPath : new File(destPath).getPath());
+            if (d == null || d.isDeferred()) {
+                unplanned.add(destPath);
+                dests.remove(destPath);
+            } else {
+                total.addSkipped(d.getFilesUpToDate(), d.getBytesUpToDate());
+                metrics.skipped(d.getFilesUpToDate(), d.getBytesUpToDate());
+            }
+        }
+
+        CompletableFuture<SyncResult> done = new CompletableFuture<>();
+        Semaphore inflight = new Semaphore(treeInflight);
+        AtomicInteger pending = new AtomicInteger(1);
+        Runnable finishOne = () -> {
+            if (pending.decrementAndGet() == 0)
+                done.complete(total);
+        };
+        if (!unplanned.isEmpty()) {
+            pending.incrementAndGet();
+            submit(profile.withDestPaths(unplanned), incremental, false).whenComplete((r, ex) -> {
+                synchronized (total) {
+                    if (r != null) {
+                        total.add(r);
+                    } else {
+                        failed(total, null, ex);
+                    }
+                }
+                finishOne.run();
+            });
+        }
+        walkers.execute(() -> {
+            try {
+                for (SyncPlan.Copy copy : plan.getCopies()) {
+                    List<String> copyDests = new ArrayList<>(copy.dests);
+                    copyDests.retainAll(dests);
+                    if (copyDests.isEmpty())
+                        continue;
+                    inflight.acquire();
+                    pending.incrementAndGet();
+                    syncFile(profile.withDestPaths(copyDests), new SourceState(copy.source, copy.size, copy.modified),
+                            copy.relativePath, incremental, false).whenComplete((r, ex) -> {
+                                synchronized (total) {
+                                    if (r != null) {
+                                        total.add(r);
+                                    } else {
+                                        failed(total, null, ex);
+                                    }
+                                }
+                                inflight.release();
+                                finishOne.run();
+                            });
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finishOne.run();
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Checks every destination of one source file in parallel, then writes
+     * the source once to all destinations that need it.
+     */
+    private CompletableFuture<SyncResult> syncFile(SyncProfile profile, SourceState source, String relativePath,
+            boolean incremental, boolean probe) {
+        List<Destination> dests = new ArrayList<>();
+        List<CompletableFuture<Void>> checks = new ArrayList<>();
+        for (String destPath : profile.getDestPaths()) {
+            Destination d;
+            if (AgentUrl.isAgent(destPath)) {
+                d = new Destination(destPath, null);
+            } else {
+                File destDir = new File(destPath);
+                d = new Destination(destDir.getPath(), new File(destDir, relativePath));
+            }
+            dests.add(d);
+            if (!probe && health.isOpen(d.dest)) {
+                d.deferred = true;
+                continue;
+            }
+            Runnable check = d.file == null ? () -> checkAgent(source, relativePath, d, incremental)
+                    : () -> checkDestination(source, d.file.getParentFile(), d, incremental);
+            checks.add(withTimeout(CompletableFuture.runAsync(check, guarded), d));
+        }
+
+        return CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0])).thenApplyAsync(v -> {
+            List<Destination> toCopy = new ArrayList<>();
+            List<CompletableFuture<Void>> deltaRuns = new ArrayList<>();
+            for (Destination d : dests) {
+                if (d.deferred || d.error != null || d.skip)
+                    continue;
+                d.throttle = rateLimits.throttleFor(profile, d.dest);
+                d.throttle.acquireFile();
+                if (d.delta) {
+                    // Each delta needs its own pass over the source, run them next to the fan-out copy
+                    // A delta over a large file may legitimately run long, so only its check has a timeout
+                    deltaRuns.add(CompletableFuture.runAsync(() -> deltaCopy(source, d), d.volume));
+                } else if (d.agent != null) {
+                    // Pushes to one agent share its connection, the agent queue limits how many
+                    deltaRuns.add(CompletableFuture.runAsync(() -> agentCopy(source, d), d.volume));
+                } else if (d.compress) {
+                    // Same for compression, which is bound by CPU rather than by the shared read
+                    deltaRuns.add(CompletableFuture.runAsync(() -> compressCopy(source, d), d.volume));
+                } else {
+                    toCopy.add(d);
+                }
+                SyncJournal journal = this.journal;
+                if (journal != null)
+                    journal.planned(profile,
+                            d.file != null ? d.file.getAbsolutePath() : d.agent.toUrl(d.remotePath));
+            }
+            boolean dedup = this.dedup;
+            if (dedup)
+                toCopy = dedupCopy(source, toCopy);
+            // A destination may be linked to the store or a version, replace it instead of writing into it
+            copy(source, toCopy, atomic || dedup || versions != null);
+            CompletableFuture.allOf(deltaRuns.toArray(new CompletableFuture<?>[0])).join();
+            if (verify)
+                verify(source, dests);
+
+            SyncResult result = new SyncResult();
+            for (Destination d : dests) {
+                if (d.deferred) {
+                    result.addDeferred();
+                    metrics.deferred(d.dest);
+                    addMissed(d.dest, profile);
+                } else if (d.error != null) {
+                    failed(result, d.dest, d.error);
+                    if (!probe) {
+                        if (health.recordFailure(d.dest))
+                            System.err.println("Destination " + d.dest + " keeps failing, pausing it until it responds");
+                        addMissed(d.dest, profile);
+                    }
+                } else {
+                    if (d.skip) {
+                        result.addSkipped(source.size);
+                        metrics.skipped(source.size);
+                    } else if (d.pushed != null) {
+                        result.addCopied(source.size, d.pushed.sent);
+                        metrics.copied(d.dest, source.size, d.pushed.sent, System.nanoTime() - source.started);
+                    } else if (d.packed != null) {
+                        result.addCopied(d.packed.sourceSize, d.packed.packedSize);
+                        metrics.copied(d.dest, d.packed.sourceSize, d.packed.packedSize,
+                                System.nanoTime() - source.started);
+                    } else if (d.written >= 0) {
+                        result.addCopied(source.size, d.written);
+                        metrics.copied(d.dest, source.size, d.written, System.nanoTime() - source.started);
+                    } else if (d.stats != null) {
+                        result.addCopied(d.stats.fileSize, d.stats.bytesWritten);
+                        metrics.copied(d.dest, d.stats.fileSize, d.stats.bytesWritten,
+                                System.nanoTime() - source.started);
+                    } else {
+                        result.addCopied(source.size);
+                        metrics.copied(d.dest, source.size, source.size, System.nanoTime() - source.started);
+                    }
+                    if (!probe)
+                        health.recordSuccess(d.dest);
+                }
+            }
+            return result;
+        }, readers);
+    }
+
+    /**
+     * Fails the destination if the step does not finish in time. The stuck
+     * thread is left alone, the sync carries on without it.
+     */
+    private CompletableFuture<Void> withTimeout(CompletableFuture<Void> step, Destination d) {
+        long timeout = timeoutMillis;
+        if (timeout > 0)
+            step = step.orTimeout(timeout, TimeUnit.MILLISECONDS);
+        return step.exceptionally(e -> {
+            if (d.error == null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                d.error = cause instanceof TimeoutException ? new DestinationTimeoutException(d.dest, timeout)
+                        : cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Reads back the local copies that were just written and compares them
+     * with the source. All copies are read at once, each on its volume
+     * queue, while the source is hashed here unless the copy already did.
+     * Errors are reported via d.error.
+     */
+    private void verify(SourceState source, List<Destination> dests) {
+        List<Destination> toVerify = new ArrayList<>();
+        for (Destination d : dests) {
+            // Agents and receivers of compressed transfers check every chunk themselves. A link to
+            // an object that was already in the store wrote nothing.
+            if (d.file != null && !d.deferred && !d.skip && d.error == null && d.packed == null && d.written != 0)
+                toVerify.add(d);
+        }
+        if (toVerify.isEmpty())
+            return;
+
+        List<CompletableFuture<Void>> reads = new ArrayList<>();
+        for (Destination d : toVerify) {
+            reads.add(CompletableFuture.runAsync(() -> {
+                try {
+                    // A truncated copy fails without being read
+                    if (d.file.length() == source.size)
+                        d.readBack = SyncIndex.hash(d.file.toPath());
+                } catch (IOException e) {
+                    d.error = e;
+                }
+            }, d.volume));
+        }
+        String expected = null;
+        IOException sourceError = null;
+        try {
+            expected = source.hash();
+        } catch (IOException e) {
+            sourceError = e;
+        }
+        CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).join();
+
+        for (Destination d : toVerify) {
+            if (d.error == null) {
+                long size = d.file.length();
+                if (sourceError != null) {
+                    d.error = sourceError;
+                } else if (size != source.size || !expected.equals(d.readBack)) {
+                    d.error = new VerificationException(d.file.getPath(), size, source.size);
+                } else {
+                    metrics.verified();
+                    continue;
+                }
+            }
+            index.remove(d.file);
+        }
+    }
+
+    /**
+     * True while a sync is running.
+     */
+    public boolean isBusy() {
+        return activeSubmits.get() > 0;
+    }
+
+    /**
+     * Syncs the profile to one of its destinations again in the background,
+     * e.g. after a copy there was found damaged. Only files without a valid
+     * index entry are written.
+     */
+    public void resync(String destPath, SyncProfile profile) {
+        addMissed(new File(destPath).getPath(), profile);
+    }
+
+    public void shutdown() {
+        retryTimer.shutdownNow();
+        walkers.shutdownNow();
+        compressors.shutdownNow();
+        for (AgentClient client : agents.values()) {
+            client.close();
+        }
+        readers.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private void addMissed(String dest, SyncProfile profile) {
+        missed.computeIfAbsent(dest, k -> new ConcurrentHashMap<>()).put(profile.getId(), profile);
+    }
+
+    /**
+     * Runs every second. Probes failing destinations whose backoff expired
+     * and catches up on destinations that were missed but work again,
+     * without waiting for the next full sync.
+     */
+    private void retryDue() {
+        // A running sync covers missed destinations itself
+        if (activeSubmits.get() > 0)
+            return;
+        try {
+            for (String dest : health.takeDueProbes()) {
+                retryDestination(dest, true);
+            }
+            for (String dest : missed.keySet()) {
+                if (health.getFailures(dest) == 0)
+                    retryDestination(dest, false);
+            }
+        } catch (RuntimeException e) {
+            // keep the timer alive
+            e.printStackTrace();
+        }
+    }
+
+    private void retryDestination(String dest, boolean probe) {
+        Map<String, SyncProfile> profiles = missed.remove(dest);
+        List<CompletableFuture<SyncResult>> runs = new ArrayList<>();
+        LeaseManager leases = this.leases;
+        if (profiles != null) {
+            for (SyncProfile p : profiles.values()) {
+                SyncProfile single = p.withDestPaths(Collections.singletonList(dest));
+                if (leases != null) {
+                    // Another instance may have taken the destination over meanwhile
+                    if (leases.claim(single) == null)
+                        continue;
+                    CompletableFuture<SyncResult> run = submit(single, true, probe);
+                    run.whenComplete((r, e) -> leases.release(single));
+                    runs.add(run);
+                } else {
+                    runs.add(submit(single, true, probe));
+                }
+            }
+        }
+        if (runs.isEmpty()) {
+            if (!probe)
+                return;
+            // Nothing to catch up on, just check that the folder is reachable again
+            Destination d = new Destination(dest, new File(dest));
+            runs.add(withTimeout(CompletableFuture.runAsync(() -> {
+                if (AgentUrl.isAgent(dest)) {
+                    try {
+                        agentClient(AgentUrl.parse(dest));
+                    } catch (IOException | IllegalArgumentException e) {
+                        d.error = e instanceof IOException ? (IOException) e : new IOException(e);
+                    }
+                    return;
+                }
+                File dir = new File(dest);
+                if (!dir.isDirectory() && (dir.getParentFile() == null || !dir.getParentFile().isDirectory()))
+                    d.error = new NoSuchFileException(dest);
+            }, guarded), d).thenApply(v -> {
+                SyncResult r = new SyncResult();
+                if (d.error != null)
+                    r.addFailed();
+                return r;
+            }));
+        }
+
+        CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+            boolean ok = e == null;
+            for (CompletableFuture<SyncResult> run : runs) {
+                if (ok && run.join().getFailed() > 0)
+                    ok = false;
+            }
+            if (probe) {
+                if (!ok && profiles != null) {
+                    for (SyncProfile p : profiles.values()) {
+                        addMissed(dest, p);
+                    }
+                }
+                health.endProbe(dest, ok);
+                if (ok)
+                    System.err.println("Destination " + dest + " is back, caught up on missed files");
+            }
+            index.save();
+        });
+    }
+
+    private void checkDestination(SourceState source, File destDir, Destination d, boolean incremental) {
+        try {
+            d.volume = volumeQueue(destDir);
+            File parent = d.file.getParentFile();
+            if (!parent.exists())
+                parent.mkdirs();
+
+            SyncIndex.Entry last = index.get(d.file);
+            if (incremental && last != null && last.sourceSize == source.size && last.matchesDest(d.file))
+                d.skip = unchanged(source, last, d.file.getAbsolutePath());
+            d.delta = !d.skip && delta && source.size >= deltaMinSize && d.file.length() >= deltaMinSize;
+            d.compress = !d.skip && !d.delta && compressFor(d.volume);
+            if (d.compress && last != null && last.sourceSize == source.size
+                    && last.sourceModified == source.modified
+                    && Files.exists(CompressedTransfer.stagingFor(d.file.toPath()))) {
+                // Already sent, waiting for the receiver to unpack it
+                d.skip = true;
+                d.compress = false;
+            }
+            VersionStore versions = this.versions;
+            if (versions != null && !d.skip && d.file.exists()) {
+                // The receiver replaces a compressed target later, it can only be kept as a link
+                d.moveAside = !versions.keep(d.file.toPath()) && !d.compress;
+                // A delta reads the old file, which has to stay where it is then
+                if (d.moveAside)
+                    d.delta = false;
+            }
+        } catch (IOException e) {
+            d.error = e;
+        }
+    }
+
+    // Runs on the destination's volume queue, errors are reported via d.error
+    private void deltaCopy(SourceState source, Destination d) {
+        try {
+            d.stats = DeltaCopier.sync(source.file.toPath(), d.file.toPath(), !atomic && !dedup && versions == null,
+                    fsync, d.throttle);
+            source.setHash(d.stats.sourceHash);
+            index.put(d.file, new SyncIndex.Entry(source.size, source.modified, d.stats.sourceHash,
+                    d.file.length(), d.file.lastModified()));
+        } catch (IOException e) {
+            index.remove(d.file);
+            d.error = e;
+        }
+    }
+
+    private void checkAgent(SourceState source, String relativePath, Destination d, boolean incremental) {
+        try {
+            d.agent = AgentUrl.parse(d.dest);
+            d.remotePath = d.agent.resolve(relativePath);
+            d.volume = volumes.computeIfAbsent("agent|" + d.agent.getAuthority(),
+                    k -> new VolumeQueue(k, perVolumeLimit * 4));
+            AgentClient.Stat stat = agentClient(d.agent).stat(d.remotePath, timeoutMillis);
+
+            String key = d.agent.toUrl(d.remotePath);
+            SyncIndex.Entry last = index.get(key);
+            if (incremental && last != null && last.sourceSize == source.size && stat.exists
+                    && last.matchesDest(stat.size, stat.modified))
+                d.skip = unchanged(source, last, key);
+        } catch (IOException e) {
+            d.error = e;
+        } catch (IllegalArgumentException e) {
+            d.error = new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * True if the source is still what was last written to the destination.
+     */
+    private boolean unchanged(SourceState source, SyncIndex.Entry last, String destKey) throws IOException {
+        if (last.sourceModified == source.modified)
+            return true;
+        if (source.hash().equals(last.sourceHash)) {
+            // Touched but not changed
+            index.put(destKey, last.withSourceModified(source.modified));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Size and date of a file on a sync agent, for SyncPlanner.
+     */
+    AgentClient.Stat agentStat(AgentUrl url, String remotePath) throws IOException {
+        return agentClient(url).stat(remotePath, timeoutMillis);
+    }
+
+    /**
+     * The open connection to an agent, connecting if there is none.
+     */
+    private AgentClient agentClient(AgentUrl url) throws IOException {
+        String key = url.getAuthority();
+        AgentClient client = agents.get(key);
+        if (client != null && client.isOpen())
+            return client;
+        synchronized (agentLocks.computeIfAbsent(key, k -> new Object())) {
+            client = agents.get(key);
+            if (client == null || !client.isOpen()) {
+                client = AgentClient.connect(url.getHost(), url.getPort(), agentToken, timeoutMillis);
+                agents.put(key, client);
+            }
+            return client;
+        }
+    }
+
+    // Runs on the agent's queue, errors are reported via d.error
+    private void agentCopy(SourceState source, Destination d) {
+        String key = d.agent.toUrl(d.remotePath);
+        try {
+            d.pushed = agentClient(d.agent).push(source.file.toPath(), d.remotePath, source.size, source.modified,
+                    timeoutMillis, d.throttle);
+            source.setHash(d.pushed.hash);
+            // The agent gives the file the source's mtime
+            index.put(key, new SyncIndex.Entry(source.size, source.modified, d.pushed.hash, source.size,
+                    source.modified));
+        } catch (IOException e) {
+            index.remove(key);
+            d.error = e;
+        }
+    }
+
+    private boolean compressFor(VolumeQueue volume) {
+        return compressFor(volume.key);
+    }
+
+    private boolean compressFor(String volumeKey) {
+        String mode = compress;
+        return CompressedTransfer.MODE_ALL.equals(mode)
+                || (CompressedTransfer.MODE_NETWORK.equals(mode) && CompressedTransfer.isNetworkVolume(volumeKey));
+    }
+
+    /**
+     * Whether a sync would send a changed source of this size to the
+     * destination file compressed, as checkDestination decides it. For
+     * SyncPlanner.
+     */
+    boolean compresses(File dest, long sourceSize) {
+        if (delta && sourceSize >= deltaMinSize && dest.length() >= deltaMinSize)
+            return false;
+        File destDir = dest.getParentFile();
+        return compressFor(volumeKeys.computeIfAbsent(destDir.getAbsolutePath(), p -> volumeKey(destDir)));
+    }
+
+    // Runs on the destination's volume queue, errors are reported via d.error
+    private void compressCopy(SourceState source, Destination d) {
+        try {
+            d.packed = CompressedTransfer.pack(source.file.toPath(), d.file.toPath(), source.modified, compressors,
+                    Runtime.getRuntime().availableProcessors() * 2, compressLevel, fsync, d.throttle);
+            source.setHash(d.packed.sourceHash);
+            // The receiver gives the target the source's size and mtime
+            index.put(d.file, new SyncIndex.Entry(source.size, source.modified, d.packed.sourceHash, source.size,
+                    source.modified));
+        } catch (IOException e) {
+            index.remove(d.file);
+            d.error = e;
+        }
+    }
+
+    /**
+     * Writes the content into the store of each file system that does not
+     * have it yet, then links the destinations to it. Returns the
+     * destinations that have to be copied normally because their file
+     * system has no hard links. Errors are reported via d.error.
+     */
+    private List<Destination> dedupCopy(SourceState source, List<Destination> toCopy) {
+        Map<DedupStore, List<Destination>> groups = new LinkedHashMap<>();
+        List<Destination> rest = new ArrayList<>();
+        for (Destination d : toCopy) {
+            DedupStore store = null;
+            try {
+                store = dedupStore(d.volume, d.file.getParentFile());
+            } catch (IOException e) {
+                // no place for a store, copy as usual
+            }
+            if (store == null || !store.isLinksSupported())
+                rest.add(d);
+            else
+                groups.computeIfAbsent(store, k -> new ArrayList<>()).add(d);
+        }
+        if (groups.isEmpty())
+            return rest;
+
+        String sha;
+        String crc;
+        try {
+            sha = source.sha256();
+            crc = source.hash();
+        } catch (IOException e) {
+            for (List<Destination> group : groups.values()) {
+                for (Destination d : group) {
+                    d.error = e;
+                }
+            }
+            return rest;
+        }
+
+        // All missing objects are written in one pass over the source
+        Map<DedupStore, Destination> objects = new LinkedHashMap<>();
+        for (Map.Entry<DedupStore, List<Destination>> g : groups.entrySet()) {
+            Path object = g.getKey().objectFor(sha);
+            if (g.getKey().has(object, source.size, crc))
+                continue;
+            Destination first = g.getValue().get(0);
+            Destination o = new Destination(first.dest, object.toFile());
+            o.volume = first.volume;
+            o.throttle = first.throttle;
+            try {
+                Files.createDirectories(object.getParent());
+            } catch (IOException e) {
+                o.error = e;
+            }
+            objects.put(g.getKey(), o);
+        }
+        writeObjects(source, sha, objects);
+
+        List<CompletableFuture<Void>> links = new ArrayList<>();
+        for (Map.Entry<DedupStore, List<Destination>> g : groups.entrySet()) {
+            DedupStore store = g.getKey();
+            Path object = store.objectFor(sha);
+            Destination o = objects.get(store);
+            for (Destination d : g.getValue()) {
+                if (o != null && o.error != null) {
+                    d.error = o.error;
+                    continue;
+                }
+                // The write of a new object is accounted to the first destination
+                long written = o != null && d == g.getValue().get(0) ? source.size : 0;
+                links.add(withTimeout(CompletableFuture.runAsync(() -> link(source, store, object, d, written),
+                        d.volume), d));
+            }
+        }
+        CompletableFuture.allOf(links.toArray(new CompletableFuture<?>[0])).join();
+        return rest;
+    }
+
+    /**
+     * Writes the missing store objects in one pass over the source, hashing
+     * what is read. Each object is committed under the SHA-256 of the bytes
+     * actually written, so a source that changed after sha was computed
+     * can never put content under the wrong name. Its destinations fail
+     * then and are synced again next time. Errors are reported via o.error.
+     */
+    private void writeObjects(SourceState source, String sha, Map<DedupStore, Destination> objects) {
+        List<DedupStore> stores = new ArrayList<>();
+        List<FanOutCopier.Target> targets = new ArrayList<>();
+        for (Map.Entry<DedupStore, Destination> e : objects.entrySet()) {
+            Destination o = e.getValue();
+            if (o.error != null)
+                continue;
+            o.writePath = AtomicWrite.tempFor(o.file.toPath());
+            stores.add(e.getKey());
+            targets.add(new FanOutCopier.Target(o.writePath, o.volume, o.throttle));
+        }
+        if (targets.isEmpty())
+            return;
+
+        String written;
+        try {
+            MessageDigest digest = DedupStore.newDigest();
+            FanOutCopier.copy(source.file.toPath(), targets, timeoutMillis, digest);
+            written = DedupStore.hex(digest.digest());
+        } catch (IOException | RuntimeException e) {
+            IOException error = e instanceof IOException ? (IOException) e : new IOException(e);
+            for (DedupStore store : stores) {
+                Destination o = objects.get(store);
+                AtomicWrite.discard(o.writePath);
+                o.error = error;
+            }
+            return;
+        }
+        IOException changed = written.equals(sha) ? null
+                : new IOException("Source changed while it was synced: " + source.file);
+
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        for (int i = 0; i < stores.size(); i++) {
+            DedupStore store = stores.get(i);
+            Destination o = objects.get(store);
+            FanOutCopier.Target target = targets.get(i);
+            if (target.isFailed()) {
+                o.error = target.getError();
+                AtomicWrite.discard(o.writePath);
+                continue;
+            }
+            Path object = store.objectFor(written);
+            commits.add(withTimeout(CompletableFuture.runAsync(() -> {
+                try {
+                    Files.createDirectories(object.getParent());
+                    AtomicWrite.commit(o.writePath, object, fsync);
+                    store.verified(object);
+                    if (changed != null)
+                        o.error = changed;
+                } catch (IOException e) {
+                    o.error = e;
+                    AtomicWrite.discard(o.writePath);
+                }
+            }, o.volume), o));
+        }
+        CompletableFuture.allOf(commits.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    // Runs on the destination's volume queue, errors are reported via d.error
+    private void link(SourceState source, DedupStore store, Path object, Destination d, long written) {
+        try {
+            moveAside(d);
+            if (store.link(object, d.file.toPath(), fsync)) {
+                d.written = written;
+            } else {
+                // No hard links on this file system after all, copy from the store
+                Path temp = AtomicWrite.tempFor(d.file.toPath());
+                try {
+                    Files.copy(object, temp, StandardCopyOption.REPLACE_EXISTING);
+                    AtomicWrite.commit(temp, d.file.toPath(), fsync);
+                } catch (IOException e) {
+                    AtomicWrite.discard(temp);
+                    throw e;
+                }
+                d.written = source.size;
+            }
+            index.put(d.file, new SyncIndex.Entry(source.size, source.modified, source.hash(), d.file.length(),
+                    d.file.lastModified()));
+        } catch (IOException e) {
+            index.remove(d.file);
+            d.error = e;
+        }
+    }
+
+    private DedupStore dedupStore(VolumeQueue volume, File destDir) throws IOException {
+        DedupStore store = dedupStores.get(volume.key);
+        if (store == null) {
+            store = DedupStore.locate(destDir.toPath());
+            DedupStore existing = dedupStores.putIfAbsent(volume.key, store);
+            if (existing != null)
+                store = existing;
+        }
+        return store;
+    }
+
+    // Errors are reported via d.error
+    private void copy(SourceState source, List<Destination> toCopy, boolean atomic) {
+        if (toCopy.isEmpty())
+            return;
+
+        long timeout = timeoutMillis;
+        List<FanOutCopier.Target> targets = new ArrayList<>();
+        for (Destination d : toCopy) {
+            d.writePath = atomic ? AtomicWrite.tempFor(d.file.toPath()) : d.file.toPath();
+            targets.add(new FanOutCopier.Target(d.writePath, d.volume, d.throttle));
+        }
+
+        try {
+            // transferTo skips the heap but cannot hash, so it is only used if the hash is known already;
+            // otherwise the index would need a second read of the source for it
+            if (toCopy.size() == 1 && source.hasHash()) {
+                Destination d = toCopy.get(0);
+                FanOutCopier.transfer(source.file.toPath(), d.writePath, d.volume, timeout, d.throttle);
+            } else {
+                source.setHash(FanOutCopier.copy(source.file.toPath(), targets, timeout));
+            }
+        } catch (IOException | RuntimeException e) {
+            IOException error = e instanceof IOException ? (IOException) e : new IOException(e);
+            for (Destination d : toCopy) {
+                if (atomic)
+                    AtomicWrite.discard(d.writePath);
+                index.remove(d.file);
+                d.error = error;
+            }
+            return;
+        }
+
+        // Renaming (and fsync) can be slow on a share, so commit all destinations in parallel
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        for (int i = 0; i < toCopy.size(); i++) {
+            Destination d = toCopy.get(i);
+            FanOutCopier.Target target = targets.get(i);
+            if (target.isFailed()) {
+                d.error = target.getError();
+                if (atomic)
+                    AtomicWrite.discard(d.writePath);
+            } else if (atomic) {
+                commits.add(withTimeout(CompletableFuture.runAsync(() -> {
+                    try {
+                        moveAside(d);
+                        AtomicWrite.commit(d.writePath, d.file.toPath(), fsync);
+                    } catch (IOException e) {
+                        d.error = e;
+                        AtomicWrite.discard(d.writePath);
+                    }
+                }, d.volume), d));
+            }
+        }
+        CompletableFuture.allOf(commits.toArray(new CompletableFuture<?>[0])).join();
+
+        for (Destination d : toCopy) {
+            if (d.error != null) {
+                index.remove(d.file);
+                continue;
+            }
+            try {
+                index.put(d.file, new SyncIndex.Entry(source.size, source.modified, source.hash(), d.file.length(),
+                        d.file.lastModified()));
+            } catch (IOException e) {
+                index.remove(d.file);
+            }
+        }
+    }
+
+    /**
+     * Keeps the old file of a destination without hard links as a version by
+     * moving it away, right before the new copy replaces it.
+     */
+    private void moveAside(Destination d) throws IOException {
+        VersionStore versions = this.versions;
+        if (d.moveAside && versions != null) {
+            versions.moveAside(d.file.toPath());
+            d.moveAside = false;
+        }
+    }
+
+    private void failed(SyncResult result, String dest, Throwable e) {
+        result.addFailed();
+        metrics.failed(dest, e);
+        e.printStackTrace();
+    }
+
+    /**
+     * Deletes temp files left in the destination folders of the profiles by a
+     * run that was interrupted. Destinations of directory and glob sources
+     * are searched recursively. With dedup on, store objects no destination
+     * links to any more are deleted as well. Runs in the background, returns
+     * the number removed.
+     */
+    public CompletableFuture<Integer> cleanupTempFiles(List<SyncProfile> profiles) {
+        List<CompletableFuture<Integer>> cleanups = new ArrayList<>();
+        if (dedup)
+            cleanups.add(CompletableFuture.supplyAsync(() -> collectStores(profiles), guarded));
+        for (SyncProfile profile : profiles) {
+            boolean tree = SourceWalker.isTree(profile.getSourcePath());
+            for (String destPath : profile.getDestPaths()) {
+                // Agents clean up after themselves
+                if (AgentUrl.isAgent(destPath))
+                    continue;
+                cleanups.add(CompletableFuture.supplyAsync(
+                        () -> AtomicWrite.cleanup(new File(destPath).toPath(), tree), guarded));
+            }
+        }
+        return CompletableFuture.allOf(cleanups.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            int removed = 0;
+            for (CompletableFuture<Integer> c : cleanups) {
+                removed += c.join();
+            }
+            return removed;
+        });
+    }
+
+    private int collectStores(List<SyncProfile> profiles) {
+        Set<Path> stores = new HashSet<>();
+        int removed = 0;
+        for (SyncProfile profile : profiles) {
+            for (String destPath : profile.getDestPaths()) {
+                if (AgentUrl.isAgent(destPath))
+                    continue;
+                File destDir = new File(destPath);
+                try {
+                    DedupStore store = dedupStore(volumeQueue(destDir), destDir);
+                    if (stores.add(store.getDir()))
+                        removed += AtomicWrite.cleanup(store.getDir(), true) + store.collect();
+                } catch (IOException e) {
+                    // no store there
+                }
+            }
+        }
+        return removed;
+    }
+
+    private VolumeQueue volumeQueue(File destDir) {
+        String key = volumeKeys.computeIfAbsent(destDir.getAbsolutePath(), p -> volumeKey(destDir));
+        return volumes.computeIfAbsent(key, k -> new VolumeQueue(k, perVolumeLimit));
+    }
+
+    static String volumeKey(File dir) {
+        Path path = dir.getAbsoluteFile().toPath();
+        String root = path.getRoot() == null ? "" : path.getRoot().toString();
+        // Destination folders may not exist yet, use the closest existing parent
+        Path existing = path;
+        while (existing != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        if (existing == null)
+            return root;
+        try {
+            FileStore store = Files.getFileStore(existing);
+            return root + "|" + store.name() + "|" + store.type();
+        } catch (IOException e) {
+            return root;
+        }
+    }
+
+    /**
+     * Runs at most limit tasks for one volume at a time. Waiting tasks are
+     * parked here instead of blocking a pool thread.
+     */
+    private class VolumeQueue implements Executor {
+        private final String key;
+        private final int limit;
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private int running = 0;
+
+        VolumeQueue(String key, int limit) {
+            this.key = key;
+            this.limit = limit;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                if (running >= limit) {
+                    waiting.add(task);
+                    metrics.queued(key, 1);
+                    return;
+                }
+                running++;
+            }
+            run(task);
+        }
+
+        private void run(Runnable task) {
+            runGuarded(task, this);
+        }
+
+        /**
+         * Frees the slot of a task that finished or is stuck.
+         */
+        void release() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null)
+                    running--;
+            }
+            if (next != null) {
+                metrics.queued(key, -1);
+                run(next);
+            }
+        }
+    }
+
+    private void runGuarded(Runnable task, VolumeQueue volume) {
+        workers.execute(new Guarded(task, volume));
+    }
+
+    /**
+     * Runs every second. A task that has been running for longer than the
+     * timeout is most likely blocked on a destination that stopped
+     * responding, and blocking I/O cannot be cancelled. Its volume slot is
+     * freed and the pool gets an extra thread until the task returns, so
+     * the other destinations keep going.
+     */
+    private void findStuckTasks() {
+        long timeout = timeoutMillis;
+        if (timeout <= 0)
+            return;
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (Guarded g : runningTasks) {
+            if (g.started < cutoff && g.state.compareAndSet(Guarded.RUNNING, Guarded.STUCK)) {
+                runningTasks.remove(g);
+                resizeForStuck(1);
+                if (g.volume != null)
+                    g.volume.release();
+            }
+        }
+    }
+
+    private synchronized void resizeForStuck(int delta) {
+        int extra = Math.min(stuck + delta, maxStuck) - Math.min(stuck, maxStuck);
+        stuck += delta;
+        if (extra > 0) {
+            workers.setMaximumPoolSize(workers.getMaximumPoolSize() + extra);
+            workers.setCorePoolSize(workers.getCorePoolSize() + extra);
+        } else if (extra < 0) {
+            workers.setCorePoolSize(workers.getCorePoolSize() + extra);
+            workers.setMaximumPoolSize(workers.getMaximumPoolSize() + extra);
+        }
+    }
+
+    private class Guarded implements Runnable {
+        static final int QUEUED = 0;
+        static final int RUNNING = 1;
+        static final int STUCK = 2;
+        static final int DONE = 3;
+
+        final Runnable task;
+        final VolumeQueue volume;
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        volatile long started;
+
+        Guarded(Runnable task, VolumeQueue volume) {
+            this.task = task;
+            this.volume = volume;
+        }
+
+        @Override
+        public void run() {
+            started = System.nanoTime();
+            state.set(RUNNING);
+            runningTasks.add(this);
+            try {
+                task.run();
+            } finally {
+                runningTasks.remove(this);
+                if (state.compareAndSet(RUNNING, DONE)) {
+                    if (volume != null)
+                        volume.release();
+                } else {
+                    // Came back after being written off
+                    resizeForStuck(-1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Source file attributes captured once per sync and shared by all
+     * destination tasks, so the content hash is computed at most once.
+     */
+    private static class SourceState {
+        final File file;
+        final long size;
+        final long modified;
+        final long started = System.nanoTime();
+        private String hash;
+        private String sha256;
+
+        SourceState(File file, long size, long modified) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        synchronized String hash() throws IOException {
+            if (hash == null)
+                hash = SyncIndex.hash(file.toPath());
+            return hash;
+        }
+
+        synchronized void setHash(String hash) {
+            this.hash = hash;
+        }
+
+        synchronized boolean hasHash() {
+            return hash != null;
+        }
+
+        synchronized String sha256() throws IOException {
+            if (sha256 == null) {
+                String[] crc = new String[1];
+                sha256 = DedupStore.sha256(file.toPath(), crc);
+                hash = crc[0];
+            }
+            return sha256;
+        }
+    }
+
+    private static class Destination {
+        final String dest;
+        final File file;
+        volatile VolumeQueue volume;
+        volatile boolean skip;
+        volatile boolean delta;
+        volatile boolean compress;
+        volatile boolean moveAside; // no hard links, the old file is moved to its versions when replaced
+        boolean deferred;
+        Path writePath;
+        volatile DeltaCopier.Stats stats;
+        volatile CompressedTransfer.Stats packed;
+        volatile AgentUrl agent;
+        volatile String remotePath;
+        volatile AgentClient.Pushed pushed;
+        volatile long written = -1; // set for linked destinations
+        volatile Throttle throttle = Throttle.NONE;
+        volatile String readBack; // hash of the copy as read back by verify()
+        volatile IOException error;
+
+        Destination(String dest, File file) {
+            this.dest = dest;
+            this.file = file;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.antigravity.sync.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Content-addressed store for one file system. Every distinct content is
+ * kept once as .synccas/xx/<sha-256> and destinations on the same file
+ * system are hard links to it, so N destinations cost one write.
+ *
+ * The store lives in the highest writable folder above the destinations
+ * that is still on the same file system, but never in the root of the file
+ * system or share itself. An object whose only link left is the store
+ * itself is no longer used and removed by collect().
+ */
+public class DedupStore {
+
+    public static final String DIR_NAME = ".synccas";
+
+    // Objects younger than this may be about to get their first link
+    private static final long COLLECT_AFTER_MILLIS = 10 * 60 * 1000L;
+
+    private final Path dir;
+    private volatile boolean linksSupported = true;
+    // object|size|mtime of objects whose content is known to match their name
+    private final Set<String> verified = ConcurrentHashMap.newKeySet();
+
+    DedupStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * The store for the file system destDir is on; destDir need not exist.
+     * Fails if the closest existing folder is the root of its file system
+     * or share, so there is no folder below the root to put it in.
+     */
+    public static DedupStore locate(Path destDir) throws IOException {
+        Path existing = destDir.toAbsolutePath().normalize();
+        while (existing != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        if (existing == null)
+            throw new IOException("No existing parent for " + destDir);
+
+        FileStore store = Files.getFileStore(existing);
+        Path top = null;
+        for (Path p = existing; p != null; p = p.getParent()) {
+            if (!Files.isWritable(p))
+                break;
+            // Not in a root, where it would mix objects of unrelated trees and be hard to find
+            Path parent = p.getParent();
+            if (parent == null || !store.equals(Files.getFileStore(parent)))
+                break;
+            top = p;
+        }
+        if (top == null)
+            throw new IOException("No folder below the file system root for a dedup store: " + existing);
+        return new DedupStore(top.resolve(DIR_NAME));
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    /**
+     * False once creating a hard link failed, e.g. on FAT or some shares.
+     */
+    public boolean isLinksSupported() {
+        return linksSupported;
+    }
+
+    public Path objectFor(String sha256) {
+        return dir.resolve(sha256.substring(0, 2)).resolve(sha256);
+    }
+
+    /**
+     * True if the store holds object with the given size and CRC32C
+     * (SyncIndex.hash() format). An object is only read the first time it
+     * is checked, or after it changed.
+     */
+    public boolean has(Path object, long size, String crc) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(object, BasicFileAttributes.class);
+            if (!attrs.isRegularFile() || attrs.size() != size)
+                return false;
+            String key = object + "|" + attrs.size() + "|" + attrs.lastModifiedTime().toMillis();
+            if (verified.contains(key))
+                return true;
+            if (!SyncIndex.hash(object).equals(crc))
+                return false;
+            verified.add(key);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Records that object was just written under the hash of its content.
+     */
+    void verified(Path object) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(object, BasicFileAttributes.class);
+            verified.add(object + "|" + attrs.size() + "|" + attrs.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            // checked on first use then
+        }
+    }
+
+    /**
+     * Prepares the folder for an object, returns the temp file to write it
+     * to; commit with AtomicWrite.commit(temp, object, fsync).
+     */
+    public Path tempFor(Path object) throws IOException {
+        Files.createDirectories(object.getParent());
+        return AtomicWrite.tempFor(object);
+    }
+
+    /**
+     * Replaces target by a hard link to object. Returns false if the file
+     * system does not support hard links; the target is unchanged then.
+     */
+    public boolean link(Path object, Path target, boolean fsync) throws IOException {
+        if (Files.exists(target) && Files.isSameFile(object, target))
+            return true;
+        Path temp = AtomicWrite.tempFor(target);
+        try {
+            Files.createLink(temp, object);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            if (!Files.exists(object))
+                throw new NoSuchFileException(object.toString());
+            linksSupported = false;
+            return false;
+        }
+        try {
+            AtomicWrite.commit(temp, target, fsync);
+        } catch (IOException e) {
+            AtomicWrite.discard(temp);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes objects no destination links to any more. Only works where
+     * the link count can be read (not on Windows). Returns the number
+     * removed.
+     */
+    public int collect() {
+        if (!Files.isDirectory(dir))
+            return 0;
+        long cutoff = System.currentTimeMillis() - COLLECT_AFTER_MILLIS;
+        int[] removed = { 0 };
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!AtomicWrite.isTemp(file) && attrs.lastModifiedTime().toMillis() < cutoff
+                            && linkCount(file) == 1 && Files.deleteIfExists(file))
+                        removed[0]++;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return removed[0];
+    }
+
+    /**
+     * Number of hard links to file, or -1 if unknown.
+     */
+    static int linkCount(Path file) {
+        try {
+            return ((Number) Files.getAttribute(file, "unix:nlink")).intValue();
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * SHA-256 of the file as hex, also hands the CRC32C (SyncIndex.hash()
+     * format) to crcHash[0] so the file is read only once.
+     */
+    public static String sha256(Path file, String[] crcHash) throws IOException {
+        MessageDigest digest = newDigest();
+        CRC32C crc = new CRC32C();
+        ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (ch.read(buf) != -1) {
+                buf.flip();
+                crc.update(buf.duplicate());
+                digest.update(buf);
+                buf.clear();
+            }
+        }
+        if (crcHash != null)
+            crcHash[0] = Long.toHexString(crc.getValue());
+        return hex(digest.digest());
+    }
+
+    static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static String hex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
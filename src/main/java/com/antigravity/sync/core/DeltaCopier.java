@@ -0,0 +1,279 @@
+package com.antigravity.sync.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Updates an existing destination file from the source using the rsync
+ * algorithm: the destination is split into blocks, each block gets a weak
+ * rolling checksum and a strong MD5, and the source is scanned with the
+ * rolling checksum to find blocks the destination already has.
+ *
+ * In place mode only rewrites the source ranges that differ from the
+ * destination at the same offset. Otherwise the new file is assembled in a
+ * temp file from source ranges and reused destination blocks and renamed
+ * over the original.
+ */
+public class DeltaCopier {
+
+    public static final int MIN_BLOCK_SIZE = 4 * 1024;
+    public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    public static class Stats {
+        public long fileSize;
+        public long bytesWritten;
+        public long literalBytes;
+        public long matchedBytes;
+        public String sourceHash;
+
+        @Override
+        public String toString() {
+            return "wrote " + SyncResult.formatBytes(bytesWritten) + " of " + SyncResult.formatBytes(fileSize);
+        }
+    }
+
+    public static Stats sync(Path source, Path dest, boolean inPlace, boolean fsync) throws IOException {
+        return sync(source, dest, inPlace, fsync, Throttle.NONE);
+    }
+
+    /**
+     * Like sync(source, dest, inPlace, fsync), waiting for the throttle
+     * before each write.
+     */
+    public static Stats sync(Path source, Path dest, boolean inPlace, boolean fsync, Throttle throttle)
+            throws IOException {
+        long destSize = Files.size(dest);
+        int blockSize = blockSize(destSize);
+        Signature sig = signature(dest, blockSize);
+
+        Stats stats = new Stats();
+        List<long[]> matches = new ArrayList<>(); // {sourceOffset, destBlock}
+        stats.fileSize = scan(source, sig, matches, stats);
+
+        if (inPlace) {
+            applyInPlace(source, dest, stats, matches, blockSize, fsync, throttle);
+        } else {
+            applyToTemp(source, dest, stats, matches, blockSize, fsync, throttle);
+        }
+        return stats;
+    }
+
+    static int blockSize(long size) {
+        // Roughly sqrt(size), like rsync, rounded to a power of two
+        long sqrt = (long) Math.sqrt((double) size);
+        long bs = Long.highestOneBit(Math.max(1, sqrt)) << 1;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, bs));
+    }
+
+    private static class Signature {
+        final int blockSize;
+        final Map<Integer, List<Integer>> byWeak = new HashMap<>();
+        final List<byte[]> strong = new ArrayList<>();
+
+        Signature(int blockSize) {
+            this.blockSize = blockSize;
+        }
+    }
+
+    private static Signature signature(Path dest, int blockSize) throws IOException {
+        Signature sig = new Signature(blockSize);
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+        ByteBuffer buf = ByteBuffer.wrap(block);
+        try (FileChannel ch = FileChannel.open(dest, StandardOpenOption.READ)) {
+            int index = 0;
+            while (true) {
+                buf.clear();
+                while (buf.hasRemaining() && ch.read(buf) != -1) {
+                    // fill the whole block
+                }
+                // Only full blocks are matched, a short tail is simply rewritten
+                if (buf.position() < blockSize)
+                    break;
+                int weak = weak(block, 0, blockSize);
+                sig.byWeak.computeIfAbsent(weak, k -> new ArrayList<>(1)).add(index);
+                sig.strong.add(md5.digest(block));
+                index++;
+            }
+        }
+        return sig;
+    }
+
+    /**
+     * Scans the source with a rolling checksum and records every block that
+     * also exists in the destination. Returns the source size.
+     */
+    private static long scan(Path source, Signature sig, List<long[]> matches, Stats stats) throws IOException {
+        int bs = sig.blockSize;
+        MessageDigest md5 = md5();
+        CRC32C crc = new CRC32C();
+        byte[] buf = new byte[Math.max(READ_BUFFER_SIZE, bs * 4)];
+        int bufLen = 0;
+        long bufStart = 0; // source offset of buf[0]
+        long pos = 0;
+        boolean eof = false;
+        int a = 0;
+        int b = 0;
+        boolean fresh = true;
+
+        try (FileChannel ch = FileChannel.open(source, StandardOpenOption.READ)) {
+            while (true) {
+                int off = (int) (pos - bufStart);
+                // Need the window plus the byte that rolls in
+                if (!eof && off + bs + 1 > bufLen) {
+                    System.arraycopy(buf, off, buf, 0, bufLen - off);
+                    bufLen -= off;
+                    bufStart = pos;
+                    off = 0;
+                    ByteBuffer bb = ByteBuffer.wrap(buf, bufLen, buf.length - bufLen);
+                    while (bb.hasRemaining()) {
+                        int n = ch.read(bb);
+                        if (n == -1) {
+                            eof = true;
+                            break;
+                        }
+                    }
+                    crc.update(buf, bufLen, bb.position() - bufLen);
+                    bufLen = bb.position();
+                }
+                if (off + bs > bufLen)
+                    break;
+
+                if (fresh) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < bs; i++) {
+                        a += buf[off + i] & 0xff;
+                        b += (bs - i) * (buf[off + i] & 0xff);
+                    }
+                    a &= 0xffff;
+                    b &= 0xffff;
+                    fresh = false;
+                }
+
+                int match = -1;
+                List<Integer> candidates = sig.byWeak.get(a | (b << 16));
+                if (candidates != null) {
+                    md5.update(buf, off, bs);
+                    byte[] strong = md5.digest();
+                    long aligned = pos % bs == 0 ? pos / bs : -1;
+                    for (int block : candidates) {
+                        if (Arrays.equals(strong, sig.strong.get(block))) {
+                            match = block;
+                            if (block == aligned)
+                                break;
+                        }
+                    }
+                }
+
+                if (match >= 0) {
+                    matches.add(new long[] { pos, match });
+                    stats.matchedBytes += bs;
+                    pos += bs;
+                    fresh = true;
+                } else if (off + bs < bufLen) {
+                    int out = buf[off] & 0xff;
+                    int in = buf[off + bs] & 0xff;
+                    a = (a - out + in) & 0xffff;
+                    b = (b - bs * out + a) & 0xffff;
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            long size = bufStart + bufLen;
+            stats.literalBytes = size - stats.matchedBytes;
+            stats.sourceHash = Long.toHexString(crc.getValue());
+            return size;
+        }
+    }
+
+    private static void applyInPlace(Path source, Path dest, Stats stats, List<long[]> matches, int bs,
+            boolean fsync, Throttle throttle) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(dest, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long cursor = 0;
+            for (long[] m : matches) {
+                // Only blocks that sit at the same offset can be left untouched
+                if (m[0] != m[1] * bs)
+                    continue;
+                stats.bytesWritten += transfer(in, cursor, m[0] - cursor, out, cursor, throttle);
+                cursor = m[0] + bs;
+            }
+            stats.bytesWritten += transfer(in, cursor, stats.fileSize - cursor, out, cursor, throttle);
+            out.truncate(stats.fileSize);
+            if (fsync)
+                out.force(true);
+        }
+    }
+
+    private static void applyToTemp(Path source, Path dest, Stats stats, List<long[]> matches, int bs,
+            boolean fsync, Throttle throttle) throws IOException {
+        Path temp = AtomicWrite.tempFor(dest);
+        try {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                    FileChannel old = FileChannel.open(dest, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                long cursor = 0;
+                for (long[] m : matches) {
+                    transfer(in, cursor, m[0] - cursor, out, cursor, throttle);
+                    transfer(old, m[1] * bs, bs, out, m[0], throttle);
+                    cursor = m[0] + bs;
+                }
+                transfer(in, cursor, stats.fileSize - cursor, out, cursor, throttle);
+            }
+            stats.bytesWritten = stats.fileSize;
+            AtomicWrite.commit(temp, dest, fsync);
+        } finally {
+            AtomicWrite.discard(temp);
+        }
+    }
+
+    private static long transfer(FileChannel in, long from, long count, FileChannel out, long to, Throttle throttle)
+            throws IOException {
+        out.position(to);
+        long done = 0;
+        while (done < count) {
+            // In slices so a throttled write does not come in bursts
+            long slice = Math.min(count - done, MAX_BLOCK_SIZE);
+            throttle.acquireBytes(slice);
+            long n = in.transferTo(from + done, slice, out);
+            if (n <= 0)
+                throw new IOException("Source shrank during delta copy");
+            done += n;
+        }
+        return done;
+    }
+
+    private static int weak(byte[] data, int off, int len) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < len; i++) {
+            a += data[off + i] & 0xff;
+            b += (len - i) * (data[off + i] & 0xff);
+        }
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.antigravity.sync.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tracks failures per destination folder. Every failure pushes the next
+ * retry out with exponential backoff. After FAILURE_THRESHOLD failures in a
+ * row the circuit opens: regular syncs skip the destination and only the
+ * retry loop probes it, until a probe succeeds.
+ */
+public class DestinationHealth {
+
+    public static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_BACKOFF_MILLIS = 5000;
+    static final long MAX_BACKOFF_MILLIS = 10 * 60 * 1000L;
+
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+
+    /**
+     * True if regular syncs should not touch the destination right now.
+     */
+    public boolean isOpen(String dest) {
+        State s = states.get(dest);
+        if (s == null)
+            return false;
+        synchronized (s) {
+            return s.probing || s.failures >= FAILURE_THRESHOLD;
+        }
+    }
+
+    /**
+     * Returns true if the destination was failing before.
+     */
+    public boolean recordSuccess(String dest) {
+        return states.remove(dest) != null;
+    }
+
+    /**
+     * Returns true if this failure opened the circuit.
+     */
+    public boolean recordFailure(String dest) {
+        State s = states.computeIfAbsent(dest, d -> new State());
+        synchronized (s) {
+            s.failures++;
+            long backoff = BASE_BACKOFF_MILLIS << Math.min(s.failures - 1, 16);
+            backoff = Math.min(backoff, MAX_BACKOFF_MILLIS);
+            // +-20% so destinations that failed together are not all retried together
+            backoff += (long) (backoff * (ThreadLocalRandom.current().nextDouble() * 0.4 - 0.2));
+            s.retryAt = System.currentTimeMillis() + backoff;
+            return s.failures == FAILURE_THRESHOLD;
+        }
+    }
+
+    public int getFailures(String dest) {
+        State s = states.get(dest);
+        if (s == null)
+            return 0;
+        synchronized (s) {
+            return s.failures;
+        }
+    }
+
+    /**
+     * Failing destinations whose backoff has expired. They are marked as
+     * being probed until endProbe() is called.
+     */
+    public List<String> takeDueProbes() {
+        long now = System.currentTimeMillis();
+        List<String> due = new ArrayList<>();
+        for (Map.Entry<String, State> e : states.entrySet()) {
+            State s = e.getValue();
+            synchronized (s) {
+                if (!s.probing && now >= s.retryAt) {
+                    s.probing = true;
+                    due.add(e.getKey());
+                }
+            }
+        }
+        return due;
+    }
+
+    public void endProbe(String dest, boolean success) {
+        if (success) {
+            recordSuccess(dest);
+            return;
+        }
+        recordFailure(dest);
+        State s = states.get(dest);
+        if (s != null) {
+            synchronized (s) {
+                s.probing = false;
+            }
+        }
+    }
+
+    public List<String> getOpenDestinations() {
+        List<String> open = new ArrayList<>();
+        for (String dest : states.keySet()) {
+            if (isOpen(dest))
+                open.add(dest);
+        }
+        return open;
+    }
+
+    private static class State {
+        int failures;
+        long retryAt;
+        boolean probing;
+    }
+}
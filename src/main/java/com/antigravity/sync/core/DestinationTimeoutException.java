@@ -0,0 +1,16 @@
+package com.antigravity.sync.core;
+
+import java.io.IOException;
+
+/**
+ * A destination did not make progress within the configured timeout, e.g.
+ * a network share that stopped responding.
+ */
+public class DestinationTimeoutException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DestinationTimeoutException(String destination, long timeoutMillis) {
+        super("No progress on " + destination + " for " + timeoutMillis / 1000 + " s");
+    }
+}
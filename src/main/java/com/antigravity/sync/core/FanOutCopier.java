@@ -0,0 +1,302 @@
+package com.antigravity.sync.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32C;
+
+/**
+ * Copies one source to many destinations while reading the source only
+ * once. Chunks are read into a pair of direct buffers; while one chunk is
+ * being written to every destination the next one is read.
+ *
+ * With a timeout, every step on a destination (open, each chunk, close) must
+ * finish within it. A destination that stalls is failed and its channel is
+ * closed, which unblocks the writer; the other destinations carry on.
+ *
+ * Each target may have a Throttle. It is waited for on the reading thread
+ * before a chunk is handed out, so throttling never counts against the
+ * timeout.
+ */
+public class FanOutCopier {
+
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // Bytes handed to one transferTo call, bounds the time a single step may take
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+    // Direct buffers are expensive to allocate and only freed by GC, so trees
+    // of many files reuse a few of them
+    private static final int POOLED_BUFFERS = 16;
+    private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Copies source to a single destination using FileChannel.transferTo,
+     * which lets the OS copy without moving the data through the heap. Runs
+     * in steps on the executor; timeoutMillis 0 waits forever.
+     */
+    public static long transfer(Path source, Path dest, Executor executor, long timeoutMillis) throws IOException {
+        return transfer(source, dest, executor, timeoutMillis, Throttle.NONE);
+    }
+
+    public static long transfer(Path source, Path dest, Executor executor, long timeoutMillis, Throttle throttle)
+            throws IOException {
+        Target target = new Target(dest, executor, throttle);
+        long position = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            await(target, CompletableFuture.runAsync(target::open, executor), timeoutMillis);
+            long size = in.size();
+            while (position < size && !target.isFailed()) {
+                long start = position;
+                throttle.acquireBytes(Math.min(TRANSFER_CHUNK, size - start));
+                CompletableFuture<Long> step = CompletableFuture.supplyAsync(
+                        () -> target.transferFrom(in, start, Math.min(TRANSFER_CHUNK, size - start)), executor);
+                Long n = await(target, step, timeoutMillis);
+                if (n == null || n <= 0) {
+                    // A failed target keeps its error; otherwise the source shrank and the copy would be cut short
+                    if (!target.isFailed())
+                        target.fail(new IOException("Source shrank while copying: " + source), timeoutMillis);
+                    break;
+                }
+                position += n;
+            }
+        } finally {
+            target.close();
+        }
+        if (target.isFailed())
+            throw target.getError();
+        return position;
+    }
+
+    private static <T> T await(Target target, CompletableFuture<T> step, long timeoutMillis) {
+        if (timeoutMillis > 0)
+            step = step.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        return step.handle((result, e) -> {
+            if (e != null)
+                target.fail(e, timeoutMillis);
+            return result;
+        }).join();
+    }
+
+    /**
+     * Streams source to all targets. Targets that fail are dropped and keep
+     * their error, the others are still completed. Returns the CRC32C hash of
+     * the content that was read, in the same format as SyncIndex.hash().
+     */
+    public static String copy(Path source, List<Target> targets) throws IOException {
+        return copy(source, targets, 0);
+    }
+
+    /**
+     * Like copy(source, targets), failing targets that stall for longer
+     * than timeoutMillis.
+     */
+    public static String copy(Path source, List<Target> targets, long timeoutMillis) throws IOException {
+        return copy(source, targets, timeoutMillis, null);
+    }
+
+    /**
+     * Like copy(source, targets, timeoutMillis), also feeding what is read
+     * to digest if it is not null.
+     */
+    public static String copy(Path source, List<Target> targets, long timeoutMillis, MessageDigest digest)
+            throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer[] buffers = { takeBuffer(), takeBuffer() };
+        int current = 0;
+
+        CompletableFuture<Void> inflight = CompletableFuture.completedFuture(null);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            inflight = dispatch(targets, t -> t.open(), timeoutMillis);
+            boolean eof = false;
+            while (!eof) {
+                ByteBuffer buf = buffers[current];
+                buf.clear();
+                while (buf.hasRemaining()) {
+                    if (in.read(buf) == -1) {
+                        eof = true;
+                        break;
+                    }
+                }
+                buf.flip();
+                crc.update(buf.duplicate());
+                if (digest != null)
+                    digest.update(buf.duplicate());
+
+                // The other buffer is free again once its chunk reached every target
+                inflight.join();
+                if (buf.hasRemaining()) {
+                    for (Target t : targets) {
+                        if (!t.isFailed())
+                            t.throttle.acquireBytes(buf.remaining());
+                    }
+                    inflight = dispatch(targets, t -> t.write(buf.duplicate()), timeoutMillis);
+                }
+                current = 1 - current;
+            }
+            inflight.join();
+        } finally {
+            // Never close a channel while a write to it may still be running
+            try {
+                inflight.join();
+            } catch (RuntimeException e) {
+                // targets keep their own errors
+            }
+            for (Target t : targets) {
+                t.close();
+            }
+            releaseBuffer(buffers[0]);
+            releaseBuffer(buffers[1]);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static ByteBuffer takeBuffer() {
+        ByteBuffer buf = bufferPool.poll();
+        return buf != null ? buf : ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+
+    private static void releaseBuffer(ByteBuffer buf) {
+        // size() is O(n) but the pool is tiny
+        if (bufferPool.size() < POOLED_BUFFERS)
+            bufferPool.offer(buf);
+    }
+
+    private static CompletableFuture<Void> dispatch(List<Target> targets, TargetAction action, long timeoutMillis) {
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (Target t : targets) {
+            if (!t.isFailed()) {
+                CompletableFuture<Void> write = CompletableFuture.runAsync(() -> action.run(t), t.executor);
+                if (timeoutMillis > 0)
+                    write = write.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+                writes.add(write.exceptionally(e -> {
+                    t.fail(e, timeoutMillis);
+                    return null;
+                }));
+            }
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private interface TargetAction {
+        void run(Target target);
+    }
+
+    public static class Target {
+        private final Path path;
+        private final Executor executor;
+        private final Throttle throttle;
+        private volatile FileChannel channel;
+        private volatile IOException error;
+
+        /**
+         * @param executor runs the writes for this target, e.g. a per-volume
+         *                 queue
+         */
+        public Target(Path path, Executor executor) {
+            this(path, executor, Throttle.NONE);
+        }
+
+        public Target(Path path, Executor executor, Throttle throttle) {
+            this.path = path;
+            this.executor = executor;
+            this.throttle = throttle;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public boolean isFailed() {
+            return error != null;
+        }
+
+        public IOException getError() {
+            return error;
+        }
+
+        void open() {
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                // Timed out while opening
+                if (error != null)
+                    close();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+
+        void write(ByteBuffer buf) {
+            FileChannel ch = channel;
+            if (ch == null || error != null)
+                return;
+            try {
+                while (buf.hasRemaining()) {
+                    ch.write(buf);
+                }
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+                close();
+            }
+        }
+
+        long transferFrom(FileChannel in, long position, long count) {
+            FileChannel ch = channel;
+            if (ch == null || error != null)
+                return -1;
+            try {
+                return in.transferTo(position, count, ch);
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+                close();
+                return -1;
+            }
+        }
+
+        /**
+         * Marks the target failed from another thread. Closing the channel
+         * unblocks a write that is stuck on it.
+         */
+        void fail(Throwable e, long timeoutMillis) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (error == null) {
+                if (cause instanceof TimeoutException) {
+                    error = new DestinationTimeoutException(path.toString(), timeoutMillis);
+                } else if (cause instanceof IOException) {
+                    error = (IOException) cause;
+                } else {
+                    error = new IOException(cause);
+                }
+            }
+            close();
+        }
+
+        void close() {
+            FileChannel ch = channel;
+            if (ch == null)
+                return;
+            channel = null;
+            try {
+                ch.close();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+    }
+}
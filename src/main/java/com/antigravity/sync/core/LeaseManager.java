@@ -0,0 +1,427 @@
+package com.antigravity.sync.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits work between several instances that sync to the same shares,
+ * using nothing but files in a shared coordination folder.
+ *
+ * Every instance (node) keeps a file in nodes/ up to date on a heartbeat,
+ * so each one knows which nodes are alive. Each destination of a profile
+ * belongs to one of the live nodes, picked by rendezvous hashing, which
+ * spreads destinations evenly and moves only the dead node's share when a
+ * node goes away. Before writing, the owner takes a lease file for the
+ * (profile, destination) pair that says who holds it until when. Leases
+ * are renewed on the heartbeat and released after the sync; a lease that
+ * expired, e.g. because its node was killed, is taken over. Renewing
+ * replaces the file atomically and only while the lease has not expired,
+ * so it cannot overwrite a lease another node took over.
+ *
+ * A node that is alive but never syncs a destination, e.g. because its
+ * profiles differ, would leave it out for good. So when a destination is
+ * left to its owner and the owner did not touch its lease by the next time
+ * this node syncs the profile, this node claims it itself.
+ *
+ * Nodes must share the same profiles (ids) and have roughly synchronized
+ * clocks; leases are only taken over half a lease period after they
+ * expired to allow for some skew.
+ *
+ * Lease file: node,expiresMillis,profileId,destPath
+ */
+public class LeaseManager {
+
+    private static final String NODES = "nodes";
+    private static final String LEASE_SUFFIX = ".lease";
+    private static final String NODE_SUFFIX = ".node";
+
+    private final Path dir;
+    private final String node;
+    private final long leaseMillis;
+    private final ScheduledExecutorService heartbeat;
+    // lease key -> lease file, for the leases this node holds
+    private final Map<String, Path> held = new ConcurrentHashMap<>();
+    // lease key -> lease seen when the destination was left to its owner
+    private final Map<String, String> passed = new ConcurrentHashMap<>();
+    private volatile List<String> liveNodes;
+
+    public LeaseManager(Path dir, String node, long leaseMillis) {
+        this.dir = dir;
+        this.node = node.replace(',', '_');
+        this.leaseMillis = Math.max(3000, leaseMillis);
+        this.liveNodes = Collections.singletonList(this.node);
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sync-lease");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Host name and process id, unique per JVM even with several on one
+     * machine.
+     */
+    public static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    public void start() throws IOException {
+        Files.createDirectories(dir.resolve(NODES));
+        beat();
+        long period = leaseMillis / 3;
+        heartbeat.scheduleWithFixedDelay(this::beat, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public String getNodeId() {
+        return node;
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    public List<String> getLiveNodes() {
+        return liveNodes;
+    }
+
+    /**
+     * Keys of the leases this node holds right now.
+     */
+    public Set<String> getHeldLeases() {
+        return new TreeSet<>(held.keySet());
+    }
+
+    /**
+     * The profile reduced to the destinations that belong to this node and
+     * whose lease it got, or null if there are none. Destinations of other
+     * nodes are left to them, unless their owner did not sync them since the
+     * last time.
+     */
+    public SyncProfile claim(SyncProfile profile) {
+        List<String> mine = new ArrayList<>();
+        for (String dest : profile.getDestPaths()) {
+            String key = key(profile, dest);
+            String owner = owner(key);
+            if (node.equals(owner)) {
+                passed.remove(key);
+                if (acquire(key, profile.getId(), dest))
+                    mine.add(dest);
+                else
+                    System.err.println("Skipping " + dest + " of " + profile.getName() + ", its lease is held");
+            } else if (fallBack(key, profile, dest, owner)) {
+                mine.add(dest);
+            }
+        }
+        if (mine.isEmpty())
+            return null;
+        return mine.size() == profile.getDestPaths().size() ? profile : profile.withDestPaths(mine);
+    }
+
+    /**
+     * Gives up the leases claim() took for the profile. The lease files are
+     * kept, expired, so other nodes can tell the destination was synced.
+     */
+    public void release(SyncProfile profile) {
+        for (String dest : profile.getDestPaths()) {
+            Path file = held.remove(key(profile, dest));
+            if (file == null)
+                continue;
+            try {
+                replace(file, profile.getId(), dest, System.currentTimeMillis());
+            } catch (IOException e) {
+                // expires by itself
+            }
+        }
+    }
+
+    /**
+     * Releases all leases and leaves the set of live nodes.
+     */
+    public void shutdown() {
+        heartbeat.shutdownNow();
+        for (Path file : held.values()) {
+            delete(file);
+        }
+        held.clear();
+        try {
+            Files.deleteIfExists(nodeFile(node));
+        } catch (IOException e) {
+            // expires by itself
+        }
+    }
+
+    static String key(SyncProfile profile, String dest) {
+        String path = dest;
+        if (!dest.contains("://"))
+            path = new File(dest).getPath();
+        return profile.getId() + "|" + path;
+    }
+
+    /**
+     * The live node a lease key belongs to: the one with the highest hash of
+     * node and key.
+     */
+    String owner(String key) {
+        String best = null;
+        long bestScore = 0;
+        for (String n : liveNodes) {
+            long score = UUID.nameUUIDFromBytes((n + "|" + key).getBytes(StandardCharsets.UTF_8))
+                    .getMostSignificantBits();
+            if (best == null || score > bestScore) {
+                best = n;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Claims a destination of another node if no live lease is held on it
+     * and its lease file did not change since this node last left the
+     * destination to its owner. Logs the destinations it leaves.
+     */
+    private boolean fallBack(String key, SyncProfile profile, String dest, String owner) {
+        Lease lease;
+        try {
+            lease = read(leaseFile(key));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        String seen = lease == null ? "" : lease.node + "," + lease.expires;
+        boolean live = lease != null && System.currentTimeMillis() < lease.expires + leaseMillis / 2;
+        // Still the lease this node left behind last time: the owner keeps staying away
+        boolean untouched = seen.equals(passed.get(key)) || lease != null && lease.node.equals(node);
+        if (!live && untouched && acquire(key, profile.getId(), dest)) {
+            System.err.println("Syncing " + dest + " of " + profile.getName() + ", " + owner + " has not synced it");
+            passed.remove(key);
+            return true;
+        }
+        if (passed.put(key, seen) == null)
+            System.err.println("Leaving " + dest + " of " + profile.getName() + " to " + owner);
+        return false;
+    }
+
+    private Path leaseFile(String key) {
+        return dir.resolve(UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + LEASE_SUFFIX);
+    }
+
+    private boolean acquire(String key, String profileId, String dest) {
+        Path file = leaseFile(key);
+        try {
+            Lease current = read(file);
+            if (current != null) {
+                boolean own = current.node.equals(node);
+                if (own && replace(file, profileId, dest, System.currentTimeMillis() + leaseMillis)) {
+                    held.put(key, file);
+                    return true;
+                }
+                if (!own && System.currentTimeMillis() < current.expires + leaseMillis / 2)
+                    return false;
+                if (!removeStale(file, current))
+                    return false;
+                if (!own)
+                    System.err.println("Taking over the lease of " + current.node + " on " + dest);
+            }
+            write(file, profileId, dest);
+            held.put(key, file);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            // another node was quicker
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Moves an expired lease out of the way. Only one node can rename it;
+     * if what was renamed turns out to be a fresh lease of a node that took
+     * over first, it is put back.
+     */
+    private boolean removeStale(Path file, Lease stale) throws IOException {
+        Path aside = file.resolveSibling(file.getFileName() + "." + safe(node) + ".stale");
+        try {
+            Files.move(file, aside, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        Lease moved = read(aside);
+        if (moved == null || !moved.node.equals(stale.node) || moved.expires != stale.expires) {
+            try {
+                Files.move(aside, file);
+            } catch (IOException e) {
+                Files.deleteIfExists(aside);
+            }
+            return false;
+        }
+        Files.deleteIfExists(aside);
+        return true;
+    }
+
+    /**
+     * Creates a new lease file, failing if there is one.
+     */
+    private void write(Path file, String profileId, String dest) throws IOException {
+        String line = line(System.currentTimeMillis() + leaseMillis, profileId, dest);
+        // One small write, so readers see all of it or an empty file
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Swaps a lease of this node for one that expires at the given time, but
+     * only while the current one has not expired: other nodes wait half a
+     * lease period past that before taking over, so a renewal never replaces
+     * their lease. The new lease is written beside the old one and moved over
+     * it atomically, then read back. Returns false if the lease is lost.
+     */
+    private boolean replace(Path file, String profileId, String dest, long expires) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + "." + safe(node) + ".tmp");
+        Files.write(tmp, line(expires, profileId, dest).getBytes(StandardCharsets.UTF_8));
+        try {
+            Lease current = read(file);
+            if (current == null || !current.node.equals(node) || System.currentTimeMillis() >= current.expires)
+                return false;
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        Lease renewed = read(file);
+        return renewed != null && renewed.node.equals(node) && renewed.expires == expires;
+    }
+
+    private String line(long expires, String profileId, String dest) {
+        return node + "," + expires + "," + profileId + "," + dest + "\n";
+    }
+
+    private Lease read(Path file) throws IOException {
+        String content;
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(file).toMillis();
+            content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        String[] parts = content.split(",", 4);
+        if (parts.length == 4) {
+            try {
+                return new Lease(parts[0], Long.parseLong(parts[1]));
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        // Caught mid-write: held by someone, for a lease period from its last change
+        return new Lease("", modified + leaseMillis);
+    }
+
+    private void delete(Path file) {
+        try {
+            Lease lease = read(file);
+            if (lease != null && lease.node.equals(node))
+                Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // expires by itself
+        }
+    }
+
+    /**
+     * Runs on the heartbeat: announces this node, renews its leases and
+     * refreshes the list of live nodes.
+     */
+    private void beat() {
+        long now = System.currentTimeMillis();
+        try {
+            Files.write(nodeFile(node), ((now + leaseMillis) + "," + node + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        for (Map.Entry<String, Path> e : held.entrySet()) {
+            String key = e.getKey();
+            int bar = key.indexOf('|');
+            try {
+                if (!replace(e.getValue(), key.substring(0, bar), key.substring(bar + 1), now + leaseMillis)
+                        && held.remove(key) != null) {
+                    Lease lease = read(e.getValue());
+                    System.err.println("Lost the lease on " + key
+                            + (lease != null && !lease.node.isEmpty() ? " to " + lease.node : ""));
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        List<String> live = new ArrayList<>();
+        live.add(node);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.resolve(NODES), "*" + NODE_SUFFIX)) {
+            for (Path f : files) {
+                try {
+                    String[] parts = new String(Files.readAllBytes(f), StandardCharsets.UTF_8).trim().split(",", 2);
+                    long expires = Long.parseLong(parts[0]);
+                    if (parts.length < 2 || parts[1].equals(node))
+                        continue;
+                    if (now < expires + leaseMillis / 2)
+                        live.add(parts[1]);
+                    else if (now > expires + leaseMillis * 10)
+                        Files.deleteIfExists(f);
+                } catch (IOException | NumberFormatException ex) {
+                    // being written or gone, next beat
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Collections.sort(live);
+        liveNodes = Collections.unmodifiableList(live);
+    }
+
+    private Path nodeFile(String n) {
+        return dir.resolve(NODES).resolve(safe(n) + NODE_SUFFIX);
+    }
+
+    private static String safe(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static class Lease {
+        final String node;
+        final long expires;
+
+        Lease(String node, long expires) {
+            this.node = node;
+            this.expires = expires;
+        }
+    }
+}
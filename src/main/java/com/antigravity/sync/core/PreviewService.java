@@ -0,0 +1,288 @@
+package com.antigravity.sync.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32C;
+
+/**
+ * Previews destination files without loading them: only the first and last
+ * few KB are read, the encoding is guessed and binary files are shown as a
+ * hex dump. Comparing a source with its destination hashes both in chunks,
+ * reporting progress and stopping as soon as it is cancelled.
+ *
+ * Everything runs on the service's own threads, never on the caller's.
+ */
+public class PreviewService {
+
+    public static final int HEAD_BYTES = 8 * 1024;
+    public static final int TAIL_BYTES = 2 * 1024;
+    private static final int HEX_BYTES = 512;
+    private static final int HASH_CHUNK = 1024 * 1024;
+
+    private final ExecutorService previews = Executors.newSingleThreadExecutor(daemon("sync-preview"));
+    private final ExecutorService hashes = Executors.newSingleThreadExecutor(daemon("sync-compare"));
+
+    public static class Preview {
+        public boolean exists;
+        public long size;
+        public long modified;
+        public boolean binary;
+        public String encoding; // null for binary content
+        public String head = "";
+        public String tail; // null if the head covers the whole file
+    }
+
+    public static class Comparison {
+        public long sourceSize = -1;
+        public long sourceModified;
+        public String sourceHash;
+        public long destSize = -1;
+        public long destModified;
+        public String destHash;
+
+        /**
+         * True only if both checksums were computed and match.
+         */
+        public boolean isIdentical() {
+            return sourceHash != null && sourceHash.equals(destHash);
+        }
+    }
+
+    public interface Progress {
+        /**
+         * Called from a service thread after every chunk.
+         */
+        void update(Comparison partial, long bytesDone, long bytesTotal);
+    }
+
+    public CompletableFuture<Preview> preview(Path file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return read(file, HEAD_BYTES, TAIL_BYTES);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, previews);
+    }
+
+    /**
+     * Reads at most headBytes from the start and tailBytes from the end.
+     */
+    public static Preview read(Path file, int headBytes, int tailBytes) throws IOException {
+        Preview p = new Preview();
+        if (!Files.isRegularFile(file))
+            return p;
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        p.exists = true;
+        p.size = attrs.size();
+        p.modified = attrs.lastModifiedTime().toMillis();
+
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] head = readAt(ch, 0, (int) Math.min(headBytes, p.size));
+            Charset charset = detectCharset(head);
+            if (charset == null) {
+                p.binary = true;
+                p.head = hexDump(head, Math.min(head.length, HEX_BYTES));
+                return p;
+            }
+            p.encoding = charset.name();
+            p.head = decode(head, 0, charset);
+
+            if (p.size > head.length && tailBytes > 0) {
+                long start = Math.max(head.length, p.size - tailBytes);
+                byte[] tail = readAt(ch, start, (int) (p.size - start));
+                p.tail = decode(tail, alignTail(tail, start, charset), charset);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Compares source and destination: size and mtime right away, then
+     * CRC32C checksums of both, read chunk by chunk. Files of different size
+     * are not hashed. Stops as soon as cancelled returns true.
+     */
+    public CompletableFuture<Comparison> compare(Path source, Path dest, BooleanSupplier cancelled,
+            Progress progress) {
+        return CompletableFuture.supplyAsync(() -> {
+            Comparison c = new Comparison();
+            try {
+                if (Files.isRegularFile(source)) {
+                    c.sourceSize = Files.size(source);
+                    c.sourceModified = Files.getLastModifiedTime(source).toMillis();
+                }
+                if (Files.isRegularFile(dest)) {
+                    c.destSize = Files.size(dest);
+                    c.destModified = Files.getLastModifiedTime(dest).toMillis();
+                }
+                long total = c.sourceSize + c.destSize;
+                progress.update(c, 0, total);
+                if (c.sourceSize < 0 || c.sourceSize != c.destSize)
+                    return c;
+
+                CRC32C sourceCrc = new CRC32C();
+                CRC32C destCrc = new CRC32C();
+                ByteBuffer buf = ByteBuffer.allocateDirect(HASH_CHUNK);
+                try (FileChannel s = FileChannel.open(source, StandardOpenOption.READ);
+                        FileChannel d = FileChannel.open(dest, StandardOpenOption.READ)) {
+                    boolean more = true;
+                    while (more) {
+                        if (cancelled.getAsBoolean())
+                            throw new CancellationException();
+                        more = update(s, buf, sourceCrc) | update(d, buf, destCrc);
+                        progress.update(c, s.position() + d.position(), total);
+                    }
+                }
+                c.sourceHash = Long.toHexString(sourceCrc.getValue());
+                c.destHash = Long.toHexString(destCrc.getValue());
+                progress.update(c, total, total);
+                return c;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, hashes);
+    }
+
+    public void shutdown() {
+        previews.shutdownNow();
+        hashes.shutdownNow();
+    }
+
+    private static boolean update(FileChannel ch, ByteBuffer buf, CRC32C crc) throws IOException {
+        buf.clear();
+        int n = ch.read(buf);
+        if (n <= 0)
+            return false;
+        buf.flip();
+        crc.update(buf);
+        return true;
+    }
+
+    private static byte[] readAt(FileChannel ch, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0)
+                break;
+        }
+        byte[] bytes = new byte[buf.position()];
+        buf.flip();
+        buf.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Guesses the text encoding from a BOM or the bytes themselves; null
+     * means binary.
+     */
+    static Charset detectCharset(byte[] b) {
+        if (b.length >= 3 && (b[0] & 0xff) == 0xef && (b[1] & 0xff) == 0xbb && (b[2] & 0xff) == 0xbf)
+            return StandardCharsets.UTF_8;
+        if (b.length >= 2 && (b[0] & 0xff) == 0xff && (b[1] & 0xff) == 0xfe)
+            return StandardCharsets.UTF_16LE;
+        if (b.length >= 2 && (b[0] & 0xff) == 0xfe && (b[1] & 0xff) == 0xff)
+            return StandardCharsets.UTF_16BE;
+
+        int control = 0;
+        boolean ascii = true;
+        for (byte x : b) {
+            int c = x & 0xff;
+            if (c == 0)
+                return null;
+            if (c < 0x20 && c != '\t' && c != '\n' && c != '\r' && c != '\f' && c != 0x1b)
+                control++;
+            if (c >= 0x80)
+                ascii = false;
+        }
+        if (control > b.length / 10)
+            return null;
+        if (ascii)
+            return StandardCharsets.US_ASCII;
+
+        // The buffer may end in the middle of a character
+        int end = b.length;
+        for (int i = 0; i < 3 && end > 0 && (b[end - 1] & 0xc0) == 0x80; i++)
+            end--;
+        if (end > 0 && (b[end - 1] & 0xc0) == 0xc0)
+            end--;
+        try {
+            StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(b, 0, end));
+            return StandardCharsets.UTF_8;
+        } catch (CharacterCodingException e) {
+            return Charset.isSupported("windows-1252") ? Charset.forName("windows-1252")
+                    : StandardCharsets.ISO_8859_1;
+        }
+    }
+
+    /**
+     * Skips the partial character a tail read at position may start with.
+     */
+    private static int alignTail(byte[] tail, long position, Charset charset) {
+        if (charset == StandardCharsets.UTF_16LE || charset == StandardCharsets.UTF_16BE)
+            return (int) (position & 1);
+        if (charset != StandardCharsets.UTF_8)
+            return 0;
+        int skip = 0;
+        while (skip < 3 && skip < tail.length && (tail[skip] & 0xc0) == 0x80)
+            skip++;
+        return skip;
+    }
+
+    private static String decode(byte[] bytes, int offset, Charset charset) {
+        CharBuffer chars;
+        try {
+            chars = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .decode(ByteBuffer.wrap(bytes, offset, bytes.length - offset));
+        } catch (CharacterCodingException e) {
+            // cannot happen with REPLACE
+            return "";
+        }
+        String s = chars.toString();
+        return s.startsWith("\uFEFF") ? s.substring(1) : s;
+    }
+
+    static String hexDump(byte[] bytes, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int row = 0; row < length; row += 16) {
+            sb.append(String.format("%08x  ", row));
+            StringBuilder ascii = new StringBuilder();
+            for (int i = row; i < row + 16; i++) {
+                if (i < length) {
+                    int c = bytes[i] & 0xff;
+                    sb.append(String.format("%02x ", c));
+                    ascii.append(c >= 0x20 && c < 0x7f ? (char) c : '.');
+                } else {
+                    sb.append("   ");
+                }
+            }
+            sb.append(' ').append(ascii).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,285 @@
+package com.antigravity.sync.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores any number of profiles, one file per profile under
+ * config/profiles/. A small index (config/profiles.idx) holds id, name and
+ * destination count so the profile list can be shown without reading every
+ * profile file. Profiles are read on first use and saved one at a time.
+ */
+public class ProfileStore {
+
+    public static final String KEY_NAME = "name";
+    public static final String KEY_SOURCE = "source";
+    public static final String KEY_DEST = "dest";
+    // limit,bytesPerSec,filesPerSec and destLimit,bytesPerSec,filesPerSec,dest
+    public static final String KEY_LIMIT = "limit";
+    public static final String KEY_DEST_LIMIT = "destLimit";
+    public static final String KEY_SCHEDULE = "schedule";
+    public static final String KEY_PRIORITY = "priority";
+
+    private final File profileDir;
+    private final File indexFile;
+    // id -> index entry, in display order
+    private final Map<String, IndexEntry> entries = new LinkedHashMap<>();
+    private final List<String> order = new ArrayList<>();
+    private final Map<String, SyncProfile> loaded = new ConcurrentHashMap<>();
+    private int nextId = 1;
+
+    public ProfileStore(File configDir) {
+        this.profileDir = new File(configDir, "profiles");
+        this.indexFile = new File(configDir, "profiles.idx");
+    }
+
+    public boolean exists() {
+        return indexFile.exists();
+    }
+
+    public synchronized void loadIndex() {
+        entries.clear();
+        order.clear();
+        loaded.clear();
+        nextId = 1;
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try (BufferedReader br = new BufferedReader(new FileReader(indexFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                // id,destCount,name
+                String[] parts = line.split(",", 3);
+                if (parts.length == 3) {
+                    try {
+                        entries.put(parts[0], new IndexEntry(parts[2], Integer.parseInt(parts[1])));
+                        order.add(parts[0]);
+                        nextId = Math.max(nextId, Integer.parseInt(parts[0]) + 1);
+                    } catch (NumberFormatException e) {
+                        // ignore broken line
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized List<String> getIds() {
+        return new ArrayList<>(order);
+    }
+
+    public synchronized String getId(int position) {
+        return position >= 0 && position < order.size() ? order.get(position) : null;
+    }
+
+    public synchronized int indexOf(String id) {
+        return order.indexOf(id);
+    }
+
+    public synchronized String getName(String id) {
+        IndexEntry e = entries.get(id);
+        return e == null ? "" : e.name;
+    }
+
+    public synchronized int getDestCount(String id) {
+        IndexEntry e = entries.get(id);
+        return e == null ? 0 : e.destCount;
+    }
+
+    /**
+     * Returns the full profile, reading its file on first access.
+     */
+    public SyncProfile get(String id) {
+        SyncProfile profile = loaded.get(id);
+        if (profile != null)
+            return profile;
+
+        synchronized (this) {
+            if (!entries.containsKey(id))
+                return null;
+            profile = read(id);
+            loaded.put(id, profile);
+            return profile;
+        }
+    }
+
+    public List<SyncProfile> getAll() {
+        List<SyncProfile> profiles = new ArrayList<>();
+        for (String id : getIds()) {
+            SyncProfile p = get(id);
+            if (p != null)
+                profiles.add(p);
+        }
+        return profiles;
+    }
+
+    public synchronized SyncProfile create(String name, String sourcePath, List<String> destPaths) {
+        String id = String.valueOf(nextId++);
+        SyncProfile profile = new SyncProfile(id, name, sourcePath, destPaths);
+        save(profile);
+        return profile;
+    }
+
+    /**
+     * Writes one profile file and the index; other profiles are untouched.
+     */
+    public synchronized void save(SyncProfile profile) {
+        if (!profileDir.exists())
+            profileDir.mkdirs();
+
+        File file = profileFile(profile.getId());
+        File tmp = new File(profileDir, file.getName() + ".tmp");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tmp))) {
+            bw.write(KEY_NAME + "," + profile.getName());
+            bw.newLine();
+            bw.write(KEY_SOURCE + "," + profile.getSourcePath());
+            bw.newLine();
+            for (String dest : profile.getDestPaths()) {
+                bw.write(KEY_DEST + "," + dest);
+                bw.newLine();
+            }
+            if (!profile.getLimit().isUnlimited()) {
+                bw.write(KEY_LIMIT + "," + profile.getLimit());
+                bw.newLine();
+            }
+            for (Map.Entry<String, RateLimit> e : profile.getDestLimits().entrySet()) {
+                bw.write(KEY_DEST_LIMIT + "," + e.getValue() + "," + e.getKey());
+                bw.newLine();
+            }
+            if (!profile.getSchedule().isDefault()) {
+                bw.write(KEY_SCHEDULE + "," + profile.getSchedule());
+                bw.newLine();
+            }
+            if (profile.getPriority() != 0) {
+                bw.write(KEY_PRIORITY + "," + profile.getPriority());
+                bw.newLine();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (!replace(tmp, file))
+            return;
+
+        loaded.put(profile.getId(), profile);
+        if (entries.put(profile.getId(), new IndexEntry(profile.getName(), profile.getDestPaths().size())) == null)
+            order.add(profile.getId());
+        saveIndex();
+    }
+
+    public synchronized void delete(String id) {
+        if (entries.remove(id) == null)
+            return;
+        order.remove(id);
+        loaded.remove(id);
+        saveIndex();
+        profileFile(id).delete();
+    }
+
+    private SyncProfile read(String id) {
+        String name = entries.get(id).name;
+        String source = "";
+        List<String> dests = new ArrayList<>();
+        RateLimit limit = RateLimit.NONE;
+        Map<String, RateLimit> destLimits = new LinkedHashMap<>();
+        Schedule schedule = Schedule.DEFAULT;
+        int priority = 0;
+        File file = profileFile(id);
+        if (file.exists()) {
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split(",", 2);
+                    if (parts.length == 2) {
+                        String key = parts[0].trim();
+                        String value = parts[1].trim();
+                        if (KEY_NAME.equals(key)) {
+                            name = value;
+                        } else if (KEY_SOURCE.equals(key)) {
+                            source = value;
+                        } else if (KEY_DEST.equals(key)) {
+                            dests.add(value);
+                        } else if (KEY_LIMIT.equals(key)) {
+                            limit = RateLimit.parse(value);
+                        } else if (KEY_DEST_LIMIT.equals(key)) {
+                            String[] l = value.split(",", 3);
+                            if (l.length == 3)
+                                destLimits.put(l[2].trim(), RateLimit.parse(l[0] + "," + l[1]));
+                        } else if (KEY_SCHEDULE.equals(key)) {
+                            try {
+                                schedule = Schedule.parse(value);
+                            } catch (IllegalArgumentException e) {
+                                // broken schedule, fall back to the global interval
+                                e.printStackTrace();
+                            }
+                        } else if (KEY_PRIORITY.equals(key)) {
+                            try {
+                                priority = Integer.parseInt(value);
+                            } catch (NumberFormatException e) {
+                                // ignore, keep default
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return new SyncProfile(id, name, source, dests, limit, destLimits, schedule, priority);
+    }
+
+    private void saveIndex() {
+        File tmp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tmp))) {
+            for (Map.Entry<String, IndexEntry> e : entries.entrySet()) {
+                bw.write(e.getKey() + "," + e.getValue().destCount + "," + e.getValue().name);
+                bw.newLine();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        replace(tmp, indexFile);
+    }
+
+    private File profileFile(String id) {
+        return new File(profileDir, id + ".csv");
+    }
+
+    private static boolean replace(File tmp, File target) {
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static class IndexEntry {
+        final String name;
+        final int destCount;
+
+        IndexEntry(String name, int destCount) {
+            this.name = name;
+            this.destCount = destCount;
+        }
+    }
+}
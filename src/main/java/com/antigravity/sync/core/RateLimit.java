@@ -0,0 +1,76 @@
+package com.antigravity.sync.core;
+
+/**
+ * A configured limit: bytes and files per second, 0 meaning unlimited.
+ * Stored as "bytesPerSec,filesPerSec".
+ */
+public class RateLimit {
+
+    public static final RateLimit NONE = new RateLimit(0, 0);
+
+    private final long bytesPerSec;
+    private final long filesPerSec;
+
+    public RateLimit(long bytesPerSec, long filesPerSec) {
+        this.bytesPerSec = Math.max(0, bytesPerSec);
+        this.filesPerSec = Math.max(0, filesPerSec);
+    }
+
+    /**
+     * Parses "bytesPerSec,filesPerSec", NONE if the value is broken.
+     */
+    public static RateLimit parse(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 2)
+            return NONE;
+        try {
+            return new RateLimit(Long.parseLong(parts[0].trim()), Long.parseLong(parts[1].trim()));
+        } catch (NumberFormatException e) {
+            return NONE;
+        }
+    }
+
+    public long getBytesPerSec() {
+        return bytesPerSec;
+    }
+
+    public long getFilesPerSec() {
+        return filesPerSec;
+    }
+
+    public boolean isUnlimited() {
+        return bytesPerSec == 0 && filesPerSec == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RateLimit))
+            return false;
+        RateLimit other = (RateLimit) o;
+        return bytesPerSec == other.bytesPerSec && filesPerSec == other.filesPerSec;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(bytesPerSec) * 31 + Long.hashCode(filesPerSec);
+    }
+
+    @Override
+    public String toString() {
+        return bytesPerSec + "," + filesPerSec;
+    }
+
+    /**
+     * For display, e.g. "5.0 MB/s, 20 files/s" or "unlimited".
+     */
+    public String describe() {
+        if (isUnlimited())
+            return "unlimited";
+        StringBuilder sb = new StringBuilder();
+        if (bytesPerSec > 0)
+            sb.append(SyncResult.formatBytes(bytesPerSec)).append("/s");
+        if (filesPerSec > 0)
+            sb.append(sb.length() > 0 ? ", " : "").append(filesPerSec).append(" files/s");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,56 @@
+package com.antigravity.sync.core;
+
+/**
+ * Token bucket: permits (bytes or files) refill at a fixed rate up to one
+ * second's worth. A caller that takes more than is available puts the
+ * bucket into debt and has to wait until it is paid off, so requests of
+ * any size work and the long-run rate is exact. A rate of 0 is unlimited.
+ * The rate can be changed at any time and applies to callers that are
+ * already waiting as well.
+ */
+public class RateLimiter {
+
+    private double rate;
+    private double available;
+    private long last = System.nanoTime();
+
+    public synchronized void setRate(long permitsPerSec) {
+        refill();
+        rate = Math.max(0, permitsPerSec);
+        available = Math.min(available, rate);
+    }
+
+    public synchronized long getRate() {
+        return (long) rate;
+    }
+
+    /**
+     * Takes permits, possibly going into debt; see waitNanos().
+     */
+    public synchronized void reserve(long permits) {
+        if (rate <= 0)
+            return;
+        refill();
+        available -= permits;
+    }
+
+    /**
+     * Nanos until the debt is paid off at the current rate, 0 if there is
+     * none.
+     */
+    public synchronized long waitNanos() {
+        if (rate <= 0)
+            return 0;
+        refill();
+        return available >= 0 ? 0 : (long) (-available / rate * 1e9);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0)
+            available = Math.min(rate, available + (now - last) / 1e9 * rate);
+        else
+            available = 0; // unlimited, no debt to carry over
+        last = now;
+    }
+}
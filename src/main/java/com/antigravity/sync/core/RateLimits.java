@@ -0,0 +1,104 @@
+package com.antigravity.sync.core;
+
+import com.antigravity.sync.agent.AgentUrl;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * All rate limits of the copy engine: one global, one per profile and one
+ * per destination of a profile, each in bytes and files per second. Limits
+ * can be changed while a sync runs and take effect with the next chunk.
+ * Also measures the throughput of everything that went through them.
+ */
+public class RateLimits {
+
+    private final RateLimiter globalBytes = new RateLimiter();
+    private final RateLimiter globalFiles = new RateLimiter();
+    // profile id, or profile id + "|" + destination -> {bytes, files}
+    private final Map<String, RateLimiter[]> limiters = new ConcurrentHashMap<>();
+    private final Map<String, Throttle> throttles = new ConcurrentHashMap<>();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder files = new LongAdder();
+    private long lastBytes;
+    private long lastFiles;
+    private long lastSample = System.nanoTime();
+    private volatile double bytesPerSec;
+    private volatile double filesPerSec;
+
+    public void setGlobal(RateLimit limit) {
+        globalBytes.setRate(limit.getBytesPerSec());
+        globalFiles.setRate(limit.getFilesPerSec());
+    }
+
+    public RateLimit getGlobal() {
+        return new RateLimit(globalBytes.getRate(), globalFiles.getRate());
+    }
+
+    /**
+     * Sets the limits of the profile and its destinations as configured in
+     * it; call again whenever the profile was edited.
+     */
+    public void apply(SyncProfile profile) {
+        set(limiters(profile.getId()), profile.getLimit());
+        for (String dest : profile.getDestPaths()) {
+            set(limiters(key(profile, dest)), profile.getDestLimit(dest));
+        }
+    }
+
+    /**
+     * The limiters for writing to dest of the profile.
+     */
+    public Throttle throttleFor(SyncProfile profile, String dest) {
+        return throttles.computeIfAbsent(key(profile, dest), key -> {
+            RateLimiter[] p = limiters(profile.getId());
+            RateLimiter[] d = limiters(key);
+            return new Throttle(new RateLimiter[] { globalBytes, p[0], d[0] },
+                    new RateLimiter[] { globalFiles, p[1], d[1] }, bytes, files);
+        });
+    }
+
+    private static String key(SyncProfile profile, String dest) {
+        // The engine knows local destinations by their normalized path
+        return profile.getId() + "|" + (AgentUrl.isAgent(dest) ? dest : new File(dest).getPath());
+    }
+
+    private RateLimiter[] limiters(String key) {
+        return limiters.computeIfAbsent(key, k -> new RateLimiter[] { new RateLimiter(), new RateLimiter() });
+    }
+
+    private static void set(RateLimiter[] l, RateLimit limit) {
+        l[0].setRate(limit.getBytesPerSec());
+        l[1].setRate(limit.getFilesPerSec());
+    }
+
+    /**
+     * Updates the throughput figures, called about once a second.
+     */
+    public synchronized void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSample) / 1e9;
+        if (seconds <= 0)
+            return;
+        long b = bytes.sum();
+        long f = files.sum();
+        bytesPerSec = (b - lastBytes) / seconds;
+        filesPerSec = (f - lastFiles) / seconds;
+        lastBytes = b;
+        lastFiles = f;
+        lastSample = now;
+    }
+
+    /**
+     * Bytes written per second, as of the last sample.
+     */
+    public double getBytesPerSec() {
+        return bytesPerSec;
+    }
+
+    public double getFilesPerSec() {
+        return filesPerSec;
+    }
+}
@@ -0,0 +1,181 @@
+package com.antigravity.sync.core;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+/**
+ * When a profile syncs on its own. Written as one of
+ *
+ * (empty)           the global interval, as before per-profile schedules
+ * every 30s         a fixed interval in s, m or h
+ * cron 0 * * * *    minute hour day-of-month month day-of-week, with *,
+ *                   lists, ranges and steps like a crontab
+ * change            only when its source changes, and on manual syncs
+ */
+public class Schedule {
+
+    public static final Schedule DEFAULT = new Schedule("", 0, null, false, false);
+
+    private final String spec;
+    private final long periodMillis; // for "every", 0 otherwise
+    private final BitSet[] cron; // minute, hour, day, month, weekday; null if not cron
+    private final boolean anyDay; // day-of-month written as *
+    private final boolean anyWeekday; // day-of-week written as *
+
+    private Schedule(String spec, long periodMillis, BitSet[] cron, boolean anyDay, boolean anyWeekday) {
+        this.spec = spec;
+        this.periodMillis = periodMillis;
+        this.cron = cron;
+        this.anyDay = anyDay;
+        this.anyWeekday = anyWeekday;
+    }
+
+    /**
+     * @throws IllegalArgumentException if spec is not a valid schedule
+     */
+    public static Schedule parse(String spec) {
+        String s = spec == null ? "" : spec.trim().replaceAll("\\s+", " ");
+        if (s.isEmpty() || s.equalsIgnoreCase("default"))
+            return DEFAULT;
+        if (s.equalsIgnoreCase("change"))
+            return new Schedule("change", 0, null, false, false);
+        String lower = s.toLowerCase();
+        if (lower.startsWith("every ")) {
+            String n = lower.substring(6).replace(" ", "");
+            long unit = 1000;
+            if (n.endsWith("h")) {
+                unit = 3600000;
+            } else if (n.endsWith("m")) {
+                unit = 60000;
+            } else if (!n.endsWith("s")) {
+                throw new IllegalArgumentException("Interval needs a unit s, m or h: " + spec);
+            }
+            long value;
+            try {
+                value = Long.parseLong(n.substring(0, n.length() - 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not an interval: " + spec);
+            }
+            if (value <= 0)
+                throw new IllegalArgumentException("Interval must be positive: " + spec);
+            return new Schedule("every " + n, value * unit, null, false, false);
+        }
+        if (lower.startsWith("cron ")) {
+            String[] fields = s.substring(5).split(" ");
+            if (fields.length != 5)
+                throw new IllegalArgumentException("Cron needs 5 fields (minute hour day month weekday): " + spec);
+            BitSet[] cron = {
+                    field(fields[0], 0, 59), field(fields[1], 0, 23), field(fields[2], 1, 31),
+                    field(fields[3], 1, 12), field(fields[4], 0, 7) };
+            // 7 is Sunday as well
+            if (cron[4].get(7))
+                cron[4].set(0);
+            cron[4].clear(7);
+            // Like cron, a field counts as unrestricted only when it is written as *,
+            // so 1-31 or 0-6 still combine with the other day field by OR
+            return new Schedule("cron " + String.join(" ", fields), 0, cron, fields[2].equals("*"),
+                    fields[4].equals("*"));
+        }
+        throw new IllegalArgumentException("Unknown schedule: " + spec);
+    }
+
+    private static BitSet field(String field, int min, int max) {
+        BitSet bits = new BitSet(max + 1);
+        for (String part : field.split(",")) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = number(part.substring(slash + 1), 1, max);
+                part = part.substring(0, slash);
+            }
+            int from;
+            int to;
+            if (part.equals("*")) {
+                from = min;
+                to = max;
+            } else if (part.indexOf('-') > 0) {
+                from = number(part.substring(0, part.indexOf('-')), min, max);
+                to = number(part.substring(part.indexOf('-') + 1), from, max);
+            } else {
+                from = number(part, min, max);
+                to = slash >= 0 ? max : from;
+            }
+            for (int i = from; i <= to; i += step) {
+                bits.set(i);
+            }
+        }
+        return bits;
+    }
+
+    private static int number(String s, int min, int max) {
+        try {
+            int n = Integer.parseInt(s);
+            if (n >= min && n <= max)
+                return n;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Expected a number from " + min + " to " + max + ": " + s);
+    }
+
+    public boolean isDefault() {
+        return spec.isEmpty();
+    }
+
+    public boolean isOnChange() {
+        return spec.equals("change");
+    }
+
+    public boolean isCron() {
+        return cron != null;
+    }
+
+    /**
+     * The next time after the given one this schedule fires, in epoch
+     * millis. defaultPeriod is the global interval. Long.MAX_VALUE for
+     * on-change schedules.
+     */
+    public long next(long after, long defaultPeriod) {
+        if (isOnChange())
+            return Long.MAX_VALUE;
+        if (cron == null)
+            return after + (periodMillis > 0 ? periodMillis : defaultPeriod);
+
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(after), zone).truncatedTo(ChronoUnit.MINUTES)
+                .plusMinutes(1);
+        // Four years cover every day/month/weekday combination that can match at all
+        LocalDateTime limit = t.plusYears(4);
+        while (t.isBefore(limit)) {
+            if (!cron[3].get(t.getMonthValue())) {
+                t = t.withDayOfMonth(1).withHour(0).withMinute(0).plusMonths(1);
+            } else if (!dayMatches(t)) {
+                t = t.withHour(0).withMinute(0).plusDays(1);
+            } else if (!cron[1].get(t.getHour())) {
+                t = t.withMinute(0).plusHours(1);
+            } else if (!cron[0].get(t.getMinute())) {
+                t = t.plusMinutes(1);
+            } else {
+                return t.atZone(zone).toInstant().toEpochMilli();
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private boolean dayMatches(LocalDateTime t) {
+        boolean day = cron[2].get(t.getDayOfMonth());
+        boolean weekday = cron[4].get(t.getDayOfWeek().getValue() % 7);
+        // Like cron: if both are restricted, either one is enough
+        if (!anyDay && !anyWeekday)
+            return day || weekday;
+        return day && weekday;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
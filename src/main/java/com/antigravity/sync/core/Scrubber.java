@@ -0,0 +1,152 @@
+package com.antigravity.sync.core;
+
+import com.antigravity.sync.agent.AgentUrl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Re-reads destination files in the background and compares them with the
+ * hash the index recorded when they were written. This finds copies that
+ * rotted or were damaged on the destination while their size and date
+ * stayed the same, which a sync cannot see.
+ *
+ * Reading is limited to a budget in bytes per second, runs on a low
+ * priority thread and pauses while a sync is running. A copy that differs
+ * is dropped from the index and synced again for the profiles it belongs
+ * to; nothing else is copied.
+ */
+public class Scrubber {
+
+    private static final long PASS_PAUSE_MILLIS = 60 * 60 * 1000L;
+    private static final long BUSY_WAIT_MILLIS = 5000;
+
+    private final SyncIndex index;
+    private final CopyEngine engine;
+    private final Supplier<List<SyncProfile>> profiles;
+    private final RateLimiter budget = new RateLimiter();
+    private final Throttle throttle;
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    /**
+     * @param profiles the current profiles, to find what a damaged file
+     *                 belongs to
+     */
+    public Scrubber(SyncIndex index, CopyEngine engine, Supplier<List<SyncProfile>> profiles, long bytesPerSec) {
+        this.index = index;
+        this.engine = engine;
+        this.profiles = profiles;
+        budget.setRate(bytesPerSec);
+        this.throttle = new Throttle(new RateLimiter[] { budget }, new RateLimiter[0], null, null);
+        this.thread = new Thread(this::run, "sync-scrub");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void setBudget(long bytesPerSec) {
+        budget.setRate(bytesPerSec);
+    }
+
+    public void shutdown() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (!stopped) {
+            try {
+                scrubAll();
+                Thread.sleep(PASS_PAUSE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // keep scrubbing
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Checks every local destination in the index once. Returns the number
+     * of copies that were damaged.
+     */
+    public int scrubAll() throws InterruptedException {
+        int damaged = 0;
+        // Deduplicated destinations are hard links to one file, which is read once
+        Set<Object> good = new HashSet<>();
+        for (String key : index.keys()) {
+            if (stopped)
+                break;
+            if (AgentUrl.isAgent(key))
+                continue;
+            while (engine.isBusy()) {
+                Thread.sleep(BUSY_WAIT_MILLIS);
+            }
+            if (scrub(key, good))
+                damaged++;
+        }
+        return damaged;
+    }
+
+    private boolean scrub(String key, Set<Object> good) {
+        SyncIndex.Entry entry = index.get(key);
+        if (entry == null)
+            return false;
+        Path file = Paths.get(key);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // Gone, the next sync copies it again
+            return false;
+        }
+        // Changed size or date is seen by the next sync anyway
+        if (!entry.matchesDest(attrs.size(), attrs.lastModifiedTime().toMillis()))
+            return false;
+        Object fileKey = attrs.fileKey();
+        if (fileKey != null && good.contains(fileKey))
+            return false;
+
+        String hash;
+        try {
+            hash = SyncIndex.hash(file, throttle);
+        } catch (IOException e) {
+            return false;
+        }
+        engine.getMetrics().scrubbed(attrs.size());
+        if (hash.equals(entry.sourceHash)) {
+            if (fileKey != null)
+                good.add(fileKey);
+            return false;
+        }
+        // A sync may have been writing the file while it was read
+        if (engine.isBusy() || index.get(key) != entry || file.toFile().lastModified() != entry.destModified)
+            return false;
+
+        index.remove(key);
+        engine.getMetrics().scrubMismatch();
+        System.err.println("Scrub: " + key + " does not match what was written to it, syncing it again");
+        for (SyncProfile p : profiles.get()) {
+            for (String destPath : p.getDestPaths()) {
+                if (AgentUrl.isAgent(destPath))
+                    continue;
+                if (key.startsWith(new File(destPath).getAbsolutePath() + File.separator))
+                    engine.resync(destPath, p);
+            }
+        }
+        return true;
+    }
+}
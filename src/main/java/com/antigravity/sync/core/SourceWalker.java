@@ -0,0 +1,157 @@
+package com.antigravity.sync.core;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves a profile source into the files to sync. A source is either a
+ * single file, a directory (synced recursively) or a glob pattern such as
+ * C:/data/*.csv or /var/log/app/**.log.
+ *
+ * Directories are listed in parallel, one task per directory, and entries
+ * are streamed to the visitor as they are found, so the full tree listing
+ * is never held in memory.
+ */
+public class SourceWalker {
+
+    public interface Visitor {
+        /**
+         * May block to throttle the walk.
+         */
+        void visit(Path file, String relativePath, BasicFileAttributes attrs) throws InterruptedException;
+    }
+
+    private final Path base;
+    private final PathMatcher matcher; // null: every file
+    private final int maxDepth;
+    private final boolean singleFile;
+
+    private SourceWalker(Path base, PathMatcher matcher, int maxDepth, boolean singleFile) {
+        this.base = base;
+        this.matcher = matcher;
+        this.maxDepth = maxDepth;
+        this.singleFile = singleFile;
+    }
+
+    /**
+     * Returns null if the source does not exist. Throws
+     * IllegalArgumentException for an invalid glob pattern.
+     */
+    public static SourceWalker of(String sourcePath) {
+        if (sourcePath == null || sourcePath.isEmpty())
+            return null;
+
+        if (isGlob(sourcePath)) {
+            String normalized = sourcePath.replace('\\', '/');
+            int firstGlob = firstGlobChar(normalized);
+            int cut = normalized.lastIndexOf('/', firstGlob);
+            Path base = Paths.get(cut < 0 ? "." : normalized.substring(0, cut + 1));
+            String pattern = normalized.substring(cut + 1);
+            if (!Files.isDirectory(base))
+                return null;
+            int depth = pattern.contains("**") ? Integer.MAX_VALUE : pattern.split("/").length;
+            return new SourceWalker(base, FileSystems.getDefault().getPathMatcher("glob:" + pattern), depth, false);
+        }
+
+        Path path = Paths.get(sourcePath);
+        if (Files.isDirectory(path))
+            return new SourceWalker(path, null, Integer.MAX_VALUE, false);
+        if (Files.exists(path))
+            return new SourceWalker(path, null, 0, true);
+        return null;
+    }
+
+    public static boolean isGlob(String sourcePath) {
+        return firstGlobChar(sourcePath) >= 0;
+    }
+
+    /**
+     * True for directory and glob sources.
+     */
+    public static boolean isTree(String sourcePath) {
+        return isGlob(sourcePath) || (sourcePath != null && !sourcePath.isEmpty()
+                && Files.isDirectory(Paths.get(sourcePath)));
+    }
+
+    /**
+     * The directory a tree source is rooted at, or the file itself.
+     */
+    public Path getBase() {
+        return base;
+    }
+
+    public boolean isSingleFile() {
+        return singleFile;
+    }
+
+    private static int firstGlobChar(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{')
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Walks the tree on the given executor. The returned future completes
+     * once every directory was listed and every visit returned.
+     */
+    public CompletableFuture<Void> walk(Executor executor, Visitor visitor) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (singleFile) {
+            try {
+                visitor.visit(base, base.getFileName().toString(),
+                        Files.readAttributes(base, BasicFileAttributes.class));
+                done.complete(null);
+            } catch (IOException | InterruptedException e) {
+                done.completeExceptionally(e);
+            }
+            return done;
+        }
+
+        AtomicInteger pending = new AtomicInteger(1);
+        executor.execute(() -> listDirectory(base, 1, executor, visitor, pending, done));
+        return done;
+    }
+
+    private void listDirectory(Path dir, int depth, Executor executor, Visitor visitor, AtomicInteger pending,
+            CompletableFuture<Void> done) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) {
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                if (attrs.isDirectory()) {
+                    if (depth < maxDepth && !DedupStore.DIR_NAME.equals(p.getFileName().toString())) {
+                        pending.incrementAndGet();
+                        executor.execute(() -> listDirectory(p, depth + 1, executor, visitor, pending, done));
+                    }
+                } else if (attrs.isRegularFile() && !AtomicWrite.isTemp(p)
+                        && !CompressedTransfer.isStaging(p)) {
+                    Path relative = base.relativize(p);
+                    if (matcher == null || matcher.matches(relative))
+                        visitor.visit(p, relative.toString(), attrs);
+                }
+            }
+        } catch (IOException e) {
+            // Keep walking the rest of the tree
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done.completeExceptionally(e);
+        } finally {
+            if (pending.decrementAndGet() == 0)
+                done.complete(null);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.antigravity.sync.core;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches the directories of the source files and fires a callback once a
+ * source has been modified and then stayed unchanged for the quiet period.
+ * Bursts of modify events for the same file collapse into one callback.
+ * For directory and glob sources the top folder is watched; changes deeper
+ * in the tree are picked up by the next scheduled sync.
+ */
+public class SourceWatcher {
+
+    public static final long DEFAULT_QUIET_MILLIS = 300;
+
+    private final Consumer<Path> onChange;
+    private final long quietMillis;
+    private final ScheduledExecutorService debouncer;
+    private final Map<Path, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+    private WatchService watchService;
+    private Thread pollThread;
+    private volatile Set<Path> sources = new HashSet<>();
+    private volatile Set<Path> treeDirs = new HashSet<>();
+
+    public SourceWatcher(Runnable onChange, long quietMillis) {
+        this(file -> onChange.run(), quietMillis);
+    }
+
+    /**
+     * @param onChange gets the file that changed; for directory and glob
+     *                 sources a file in the watched folder or the folder
+     *                 itself if events were lost
+     */
+    public SourceWatcher(Consumer<Path> onChange, long quietMillis) {
+        this.onChange = onChange;
+        this.quietMillis = quietMillis;
+        this.debouncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sync-watch-debounce");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts watching the given sources, replacing any earlier set.
+     */
+    public synchronized void watch(Collection<String> sourcePaths) throws IOException {
+        stop();
+
+        Set<Path> files = new HashSet<>();
+        Set<Path> trees = new HashSet<>();
+        Set<Path> dirs = new HashSet<>();
+        for (String s : sourcePaths) {
+            if (s == null || s.isEmpty())
+                continue;
+            if (SourceWalker.isTree(s)) {
+                try {
+                    SourceWalker walker = SourceWalker.of(s);
+                    if (walker != null) {
+                        Path dir = walker.getBase().toAbsolutePath().normalize();
+                        trees.add(dir);
+                        dirs.add(dir);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // invalid pattern, reported when syncing
+                }
+                continue;
+            }
+            Path file = Paths.get(s).toAbsolutePath().normalize();
+            if (file.getParent() != null && Files.isDirectory(file.getParent())) {
+                files.add(file);
+                dirs.add(file.getParent());
+            }
+        }
+        sources = files;
+        treeDirs = trees;
+        if (dirs.isEmpty())
+            return;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        Map<WatchKey, Path> keys = new HashMap<>();
+        for (Path dir : dirs) {
+            keys.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY), dir);
+        }
+
+        WatchService ws = watchService;
+        pollThread = new Thread(() -> poll(ws, keys), "sync-watch");
+        pollThread.setDaemon(true);
+        pollThread.start();
+    }
+
+    public synchronized void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            watchService = null;
+        }
+        pollThread = null;
+        for (ScheduledFuture<?> f : pending.values()) {
+            f.cancel(false);
+        }
+        pending.clear();
+    }
+
+    public synchronized boolean isWatching() {
+        return watchService != null;
+    }
+
+    public void shutdown() {
+        stop();
+        debouncer.shutdownNow();
+    }
+
+    private void poll(WatchService ws, Map<WatchKey, Path> keys) {
+        try {
+            while (true) {
+                WatchKey key = ws.take();
+                Path dir = keys.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (dir == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, just check every source
+                        for (Path file : sources) {
+                            schedule(file, -1, -1);
+                        }
+                        for (Path tree : treeDirs) {
+                            schedule(tree, -1, -1);
+                        }
+                        continue;
+                    }
+                    Path file = dir.resolve((Path) event.context());
+                    if (sources.contains(file) || (treeDirs.contains(dir) && !AtomicWrite.isTemp(file)))
+                        schedule(file, -1, -1);
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * (Re)starts the quiet period for a file. When it expires the file is
+     * checked again; only if size and mtime did not move in between is the
+     * change reported.
+     */
+    private void schedule(Path file, long lastSize, long lastModified) {
+        ScheduledFuture<?> previous = pending.put(file, debouncer.schedule(() -> settle(file, lastSize, lastModified),
+                quietMillis, TimeUnit.MILLISECONDS));
+        if (previous != null)
+            previous.cancel(false);
+    }
+
+    private void settle(Path file, long lastSize, long lastModified) {
+        long size;
+        long modified;
+        try {
+            size = Files.size(file);
+            modified = Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            // Deleted or being replaced, wait for the next event
+            pending.remove(file);
+            return;
+        }
+
+        if (size != lastSize || modified != lastModified) {
+            // Still being written
+            schedule(file, size, modified);
+            return;
+        }
+        pending.remove(file);
+        onChange.accept(file);
+    }
+}
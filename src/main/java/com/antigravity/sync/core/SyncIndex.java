@@ -0,0 +1,216 @@
+package com.antigravity.sync.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Remembers what was last written to each destination file so unchanged
+ * sources can be skipped. Stored as sync-index.csv next to config.csv.
+ */
+public class SyncIndex {
+
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+
+    private final File indexFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+    private final AtomicLong generation = new AtomicLong();
+    private volatile SyncJournal journal;
+
+    public SyncIndex(File configDir) {
+        this.indexFile = new File(configDir, "sync-index.csv");
+    }
+
+    /**
+     * Entries put from now on are also recorded in the journal, so they
+     * survive a crash before the next save().
+     */
+    public void setJournal(SyncJournal journal) {
+        this.journal = journal;
+    }
+
+    public void load() {
+        entries.clear();
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try (BufferedReader br = new BufferedReader(new FileReader(indexFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                // srcSize,srcModified,srcHash,destSize,destModified,destPath
+                String[] parts = line.split(",", 6);
+                if (parts.length == 6) {
+                    try {
+                        Entry e = new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2],
+                                Long.parseLong(parts[3]), Long.parseLong(parts[4]));
+                        entries.put(parts[5], e);
+                    } catch (NumberFormatException e) {
+                        // ignore broken line, the file will simply be copied again
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        dirty = false;
+    }
+
+    /**
+     * Writes the index if it changed. Returns false if that failed; the
+     * changes are kept and written by the next save().
+     */
+    public synchronized boolean save() {
+        if (!dirty) {
+            return true;
+        }
+        dirty = false;
+
+        File tmp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tmp))) {
+            for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                Entry e = me.getValue();
+                bw.write(e.sourceSize + "," + e.sourceModified + "," + e.sourceHash + "," + e.destSize + ","
+                        + e.destModified + "," + me.getKey());
+                bw.newLine();
+            }
+        } catch (IOException e) {
+            dirty = true;
+            e.printStackTrace();
+            return false;
+        }
+
+        try {
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            dirty = true;
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public Entry get(File destFile) {
+        return get(destFile.getAbsolutePath());
+    }
+
+    public void put(File destFile, Entry entry) {
+        put(destFile.getAbsolutePath(), entry);
+    }
+
+    public void remove(File destFile) {
+        remove(destFile.getAbsolutePath());
+    }
+
+    /**
+     * Destinations that are not local files, e.g. on a sync agent, are kept
+     * under their URL.
+     */
+    public Entry get(String destKey) {
+        return entries.get(destKey);
+    }
+
+    public void put(String destKey, Entry entry) {
+        entries.put(destKey, entry);
+        dirty = true;
+        generation.incrementAndGet();
+        SyncJournal journal = this.journal;
+        if (journal != null)
+            journal.written(destKey, entry);
+    }
+
+    public void remove(String destKey) {
+        if (entries.remove(destKey) != null) {
+            dirty = true;
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Changes whenever an entry is put or removed.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * A snapshot of all destination keys.
+     */
+    public List<String> keys() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * Fast, non-cryptographic content hash used to detect source changes that
+     * keep the same size but touch the modification time.
+     */
+    public static String hash(Path file) throws IOException {
+        return hash(file, Throttle.NONE);
+    }
+
+    /**
+     * Like hash(file), reading no faster than the throttle allows.
+     */
+    public static String hash(Path file, Throttle throttle) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buf = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            int n;
+            while ((n = ch.read(buf)) != -1) {
+                throttle.acquireBytes(n);
+                buf.flip();
+                crc.update(buf);
+                buf.clear();
+            }
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    public static class Entry {
+        public final long sourceSize;
+        public final long sourceModified;
+        public final String sourceHash;
+        public final long destSize;
+        public final long destModified;
+
+        public Entry(long sourceSize, long sourceModified, String sourceHash, long destSize, long destModified) {
+            this.sourceSize = sourceSize;
+            this.sourceModified = sourceModified;
+            this.sourceHash = sourceHash;
+            this.destSize = destSize;
+            this.destModified = destModified;
+        }
+
+        public boolean matchesDest(File destFile) {
+            return destFile.exists() && matchesDest(destFile.length(), destFile.lastModified());
+        }
+
+        public boolean matchesDest(long size, long modified) {
+            return size == destSize && modified == destModified;
+        }
+
+        public Entry withSourceModified(long modified) {
+            return new Entry(sourceSize, modified, sourceHash, destSize, destModified);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.antigravity.sync.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only record of what a sync is doing, config/sync-journal.log, so a
+ * run that was killed can be told apart from one that finished and the
+ * index entries it had not saved yet are not lost. One line per record:
+ *
+ * R,run,profile          a run started for a profile
+ * W,run,profile,key      a destination write is about to start
+ * D,srcSize,srcModified,srcHash,destSize,destModified,key   ...and is done
+ * E,run                  the run finished
+ *
+ * key is the destination's key in the SyncIndex. Records are buffered and
+ * written plus fsynced in groups every FLUSH_MILLIS, so a crash loses at
+ * most the last few completions, which are then simply copied again.
+ * compact() saves the index and drops every record that is no longer
+ * needed; records are only dropped once the index was saved. On startup
+ * replay() puts completed writes back into the index and returns the
+ * profiles whose run did not finish.
+ */
+public class SyncJournal {
+
+    private static final long FLUSH_MILLIS = 200;
+    // Compact once this many records were appended since the last compaction
+    private static final int COMPACT_RECORDS = 20000;
+
+    private final File file;
+    private final Object lock = new Object();
+    private final AtomicLong runs = new AtomicLong(System.currentTimeMillis());
+    // profile id -> its current run
+    private final Map<String, String> running = new ConcurrentHashMap<>();
+    // R and W records without their E or D yet, R keyed by run and profile, W by key
+    private final Map<String, String> open = new LinkedHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private StringBuilder buffer = new StringBuilder();
+    private FileChannel channel;
+    private int records;
+    private SyncIndex index;
+
+    public SyncJournal(File configDir) {
+        this.file = new File(configDir, "sync-journal.log");
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sync-journal");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Reads the journal left by the last process: completed writes go into
+     * the index, which is saved, and the journal starts over empty once
+     * that worked. Returns the ids of the profiles that were interrupted.
+     */
+    public Set<String> replay(SyncIndex index) {
+        Set<String> interrupted = read(index);
+        // If the index could not be saved, the records it was rebuilt from have to stay
+        boolean saved = index.save();
+
+        synchronized (lock) {
+            this.index = index;
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        saved ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND);
+                channel.force(true);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        return interrupted;
+    }
+
+    /**
+     * Like replay(), but only puts the completed writes into the index in
+     * memory. Neither the index nor the journal file is written, and nothing
+     * can be recorded afterwards. For a dry run.
+     */
+    public Set<String> peek(SyncIndex index) {
+        return read(index);
+    }
+
+    private Set<String> read(SyncIndex index) {
+        Map<String, String> pending = new LinkedHashMap<>(); // R or W record, by run -> profile id
+        Map<String, String> writeRuns = new HashMap<>(); // key -> run of its last W record
+        if (file.exists()) {
+            try (BufferedReader br = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split(",", 7);
+                    // The line being written when the process died may be cut off
+                    if (parts[0].equals("R") && parts.length == 3) {
+                        pending.put("R" + parts[1] + "," + parts[2], unescape(parts[2]));
+                    } else if (parts[0].equals("W") && parts.length == 4) {
+                        pending.put("W" + parts[1] + "," + parts[3], unescape(parts[2]));
+                        writeRuns.put(parts[3], parts[1]);
+                    } else if (parts[0].equals("E") && parts.length == 2) {
+                        // Writes of a finished run that never completed failed, the engine retried them
+                        String runs = "R" + parts[1] + ",";
+                        String writes = "W" + parts[1] + ",";
+                        pending.keySet().removeIf(k -> k.startsWith(runs) || k.startsWith(writes));
+                    } else if (parts[0].equals("D") && parts.length == 7) {
+                        try {
+                            SyncIndex.Entry e = new SyncIndex.Entry(Long.parseLong(parts[1]),
+                                    Long.parseLong(parts[2]), parts[3], Long.parseLong(parts[4]),
+                                    Long.parseLong(parts[5]));
+                            index.put(unescape(parts[6]), e);
+                            String run = writeRuns.remove(parts[6]);
+                            if (run != null)
+                                pending.remove("W" + run + "," + parts[6]);
+                        } catch (NumberFormatException e) {
+                            // ignore broken line, the file will simply be copied again
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return new LinkedHashSet<>(pending.values());
+    }
+
+    /**
+     * Records the start of a run over these profiles, returns the run to
+     * pass to runFinished().
+     */
+    public String runStarted(List<SyncProfile> profiles) {
+        String run = Long.toString(runs.incrementAndGet());
+        synchronized (lock) {
+            for (SyncProfile p : profiles) {
+                String id = escape(p.getId());
+                running.put(p.getId(), run);
+                append("R," + run + "," + id);
+                open.put("R" + run + "," + id, "R," + run + "," + id);
+            }
+        }
+        return run;
+    }
+
+    /**
+     * The run is over; writes that failed are retried by the engine, not
+     * by a resume.
+     */
+    public void runFinished(String run) {
+        synchronized (lock) {
+            append("E," + run);
+            String records = "R," + run + ",";
+            String writes = "W," + run + ",";
+            for (Iterator<String> it = open.values().iterator(); it.hasNext();) {
+                String line = it.next();
+                if (line.startsWith(records) || line.startsWith(writes))
+                    it.remove();
+            }
+            running.values().removeIf(run::equals);
+        }
+    }
+
+    /**
+     * Records that a destination of the profile is about to be written.
+     */
+    public void planned(SyncProfile profile, String key) {
+        String run = running.get(profile.getId());
+        if (run == null)
+            return;
+        String line = "W," + run + "," + escape(profile.getId()) + "," + escape(key);
+        synchronized (lock) {
+            append(line);
+            open.put("W" + escape(key), line);
+        }
+    }
+
+    /**
+     * Called by the index for every entry put into it.
+     */
+    void written(String key, SyncIndex.Entry e) {
+        String k = escape(key);
+        synchronized (lock) {
+            // Only entries from a write need to survive a crash
+            if (open.remove("W" + k) == null)
+                return;
+            append("D," + e.sourceSize + "," + e.sourceModified + "," + e.sourceHash + "," + e.destSize + ","
+                    + e.destModified + "," + k);
+        }
+    }
+
+    private void append(String line) {
+        buffer.append(line).append('\n');
+        records++;
+    }
+
+    /**
+     * Writes and fsyncs everything appended so far.
+     */
+    public void flush() {
+        boolean compact;
+        synchronized (lock) {
+            if (buffer.length() > 0 && channel != null) {
+                try {
+                    ByteBuffer bytes = ByteBuffer.wrap(buffer.toString().getBytes(StandardCharsets.UTF_8));
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                    channel.force(false);
+                    buffer.setLength(0);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            compact = records >= COMPACT_RECORDS;
+        }
+        if (compact)
+            compact();
+    }
+
+    /**
+     * Saves the index, after which only records without their completion
+     * are still needed, and rewrites the journal with just those.
+     */
+    public void compact() {
+        synchronized (lock) {
+            if (index == null || channel == null)
+                return;
+            // Under the lock: every D record appended so far has its entry in the index
+            if (!index.save())
+                return;
+            Path tmp = new File(file.getParentFile(), file.getName() + ".tmp").toPath();
+            StringBuilder sb = new StringBuilder();
+            for (String line : open.values()) {
+                sb.append(line).append('\n');
+            }
+            try {
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    while (bytes.hasRemaining()) {
+                        ch.write(bytes);
+                    }
+                    ch.force(true);
+                }
+                channel.close();
+                Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                buffer.setLength(0);
+                records = 0;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                e.printStackTrace();
+                channel = null;
+            }
+        }
+    }
+
+    public void shutdown() {
+        flusher.shutdownNow();
+        flush();
+        synchronized (lock) {
+            try {
+                if (channel != null)
+                    channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    static String escape(String s) {
+        return s.replace("%", "%25").replace(",", "%2C").replace("\n", "%0A").replace("\r", "%0D");
+    }
+
+    static String unescape(String s) {
+        return s.replace("%0D", "\r").replace("%0A", "\n").replace("%2C", ",").replace("%25", "%");
+    }
+}
@@ -0,0 +1,420 @@
+package com.antigravity.sync.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters for everything the sync core does. Recording is lock-free so
+ * it can be called from every copy thread; reading is done over JMX or in
+ * Prometheus text format by MetricsServer.
+ */
+public class SyncMetrics implements SyncMetricsMXBean {
+
+    public static final String OBJECT_NAME = "com.antigravity.sync:type=SyncMetrics";
+
+    private final LongAdder bytesCopied = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesSkipped = new LongAdder();
+    private final LongAdder filesCopied = new LongAdder();
+    private final LongAdder filesSkipped = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder filesDeferred = new LongAdder();
+    private final LongAdder filesVerified = new LongAdder();
+    private final LongAdder bytesScrubbed = new LongAdder();
+    private final LongAdder scrubMismatches = new LongAdder();
+    private final Map<String, LongAdder> failuresByCause = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> failuresByDest = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> latencyByDest = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> writtenByDest = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> queueDepth = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastSuccess = new ConcurrentHashMap<>();
+    private final DestinationHealth health;
+    private final RateLimits rateLimits;
+    private ObjectName registeredName;
+
+    public SyncMetrics(DestinationHealth health, RateLimits rateLimits) {
+        this.health = health;
+        this.rateLimits = rateLimits;
+    }
+
+    /**
+     * A destination was written; latency covers checking, copying and
+     * committing that destination.
+     */
+    public void copied(String dest, long bytes, long written, long nanos) {
+        filesCopied.increment();
+        bytesCopied.add(bytes);
+        bytesWritten.add(written);
+        latencyByDest.computeIfAbsent(dest, d -> new LatencyHistogram()).record(nanos);
+        writtenByDest.computeIfAbsent(dest, d -> new LongAdder()).add(written);
+    }
+
+    public void skipped(long bytes) {
+        skipped(1, bytes);
+    }
+
+    public void skipped(int files, long bytes) {
+        filesSkipped.add(files);
+        bytesSkipped.add(bytes);
+    }
+
+    /**
+     * @param dest may be null if the failure is not tied to a destination
+     */
+    public void failed(String dest, Throwable cause) {
+        filesFailed.increment();
+        failuresByCause.computeIfAbsent(causeName(cause), c -> new LongAdder()).increment();
+        if (dest != null)
+            failuresByDest.computeIfAbsent(dest, d -> new LongAdder()).increment();
+    }
+
+    /**
+     * A destination was skipped because its circuit is open.
+     */
+    public void deferred(String dest) {
+        filesDeferred.increment();
+    }
+
+    /**
+     * A copy was read back and matched its source.
+     */
+    public void verified() {
+        filesVerified.increment();
+    }
+
+    public void scrubbed(long bytes) {
+        bytesScrubbed.add(bytes);
+    }
+
+    /**
+     * The scrubber found a destination that no longer matches what was
+     * written to it.
+     */
+    public void scrubMismatch() {
+        scrubMismatches.increment();
+    }
+
+    public void queued(String volume, int delta) {
+        queueDepth.computeIfAbsent(volume, v -> new AtomicInteger()).addAndGet(delta);
+    }
+
+    public void profileSucceeded(String profileName) {
+        lastSuccess.put(profileName, System.currentTimeMillis());
+    }
+
+    static String causeName(Throwable cause) {
+        if (cause == null)
+            return "unknown";
+        // Unwrap CompletionException and friends
+        while (cause.getCause() != null && cause.getClass().getName().startsWith("java.util.concurrent"))
+            cause = cause.getCause();
+        return cause.getClass().getSimpleName();
+    }
+
+    @Override
+    public long getBytesCopied() {
+        return bytesCopied.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getBytesSkipped() {
+        return bytesSkipped.sum();
+    }
+
+    @Override
+    public long getFilesCopied() {
+        return filesCopied.sum();
+    }
+
+    @Override
+    public long getFilesSkipped() {
+        return filesSkipped.sum();
+    }
+
+    @Override
+    public long getFilesFailed() {
+        return filesFailed.sum();
+    }
+
+    @Override
+    public long getFilesDeferred() {
+        return filesDeferred.sum();
+    }
+
+    @Override
+    public long getFilesVerified() {
+        return filesVerified.sum();
+    }
+
+    @Override
+    public long getBytesScrubbed() {
+        return bytesScrubbed.sum();
+    }
+
+    @Override
+    public long getScrubMismatches() {
+        return scrubMismatches.sum();
+    }
+
+    @Override
+    public List<String> getOpenDestinations() {
+        List<String> open = health.getOpenDestinations();
+        Collections.sort(open);
+        return open;
+    }
+
+    @Override
+    public Map<String, Long> getFailuresByCause() {
+        return sums(failuresByCause);
+    }
+
+    public Map<String, Long> getFailuresByDestination() {
+        return sums(failuresByDest);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int total = 0;
+        for (AtomicInteger depth : queueDepth.values()) {
+            total += depth.get();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepthByVolume() {
+        Map<String, Integer> depths = new TreeMap<>();
+        for (Map.Entry<String, AtomicInteger> e : queueDepth.entrySet()) {
+            depths.put(e.getKey(), e.getValue().get());
+        }
+        return depths;
+    }
+
+    @Override
+    public Map<String, Long> getLastSuccess() {
+        return new TreeMap<>(lastSuccess);
+    }
+
+    @Override
+    public Map<String, Double> getDestinationMeanMillis() {
+        Map<String, Double> means = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> e : latencyByDest.entrySet()) {
+            means.put(e.getKey(), e.getValue().getMeanMillis());
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Double> getDestinationP99Millis() {
+        Map<String, Double> p99 = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> e : latencyByDest.entrySet()) {
+            p99.put(e.getKey(), e.getValue().getQuantileMillis(0.99));
+        }
+        return p99;
+    }
+
+    @Override
+    public Map<String, Double> getDestinationMaxMillis() {
+        Map<String, Double> max = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> e : latencyByDest.entrySet()) {
+            max.put(e.getKey(), e.getValue().getMaxMillis());
+        }
+        return max;
+    }
+
+    /**
+     * Bytes written per second of time spent on each destination.
+     */
+    public Map<String, Double> getDestinationBytesPerSecond() {
+        Map<String, Double> rates = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : writtenByDest.entrySet()) {
+            LatencyHistogram h = latencyByDest.get(e.getKey());
+            double seconds = h != null ? h.getSumSeconds() : 0;
+            if (seconds > 0)
+                rates.put(e.getKey(), e.getValue().sum() / seconds);
+        }
+        return rates;
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return rateLimits.getBytesPerSec();
+    }
+
+    @Override
+    public double getFilesPerSecond() {
+        return rateLimits.getFilesPerSec();
+    }
+
+    @Override
+    public long getMaxBytesPerSecond() {
+        return rateLimits.getGlobal().getBytesPerSec();
+    }
+
+    @Override
+    public void setMaxBytesPerSecond(long bytesPerSec) {
+        rateLimits.setGlobal(new RateLimit(bytesPerSec, getMaxFilesPerSecond()));
+    }
+
+    @Override
+    public long getMaxFilesPerSecond() {
+        return rateLimits.getGlobal().getFilesPerSec();
+    }
+
+    @Override
+    public void setMaxFilesPerSecond(long filesPerSec) {
+        rateLimits.setGlobal(new RateLimit(getMaxBytesPerSecond(), filesPerSec));
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> adders) {
+        Map<String, Long> sums = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : adders.entrySet()) {
+            sums.put(e.getKey(), e.getValue().sum());
+        }
+        return sums;
+    }
+
+    public synchronized void registerMBean() {
+        if (registeredName != null)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+                registeredName = name;
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (registeredName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            // already gone
+        }
+        registeredName = null;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     */
+    public void writePrometheus(Writer w) throws IOException {
+        counter(w, "sync_bytes_copied_total", "Bytes of source data synced to destinations", getBytesCopied());
+        counter(w, "sync_bytes_written_total", "Bytes actually written, less than copied for delta updates",
+                getBytesWritten());
+        counter(w, "sync_bytes_skipped_total", "Bytes not copied because the destination was up to date",
+                getBytesSkipped());
+        counter(w, "sync_files_copied_total", "Destination files written", getFilesCopied());
+        counter(w, "sync_files_skipped_total", "Destination files skipped as unchanged", getFilesSkipped());
+        counter(w, "sync_files_failed_total", "Destination files that failed", getFilesFailed());
+        counter(w, "sync_files_deferred_total", "Destination files skipped because the destination keeps failing",
+                getFilesDeferred());
+        counter(w, "sync_files_verified_total", "Copies read back that matched their source", getFilesVerified());
+        counter(w, "sync_scrub_bytes_total", "Bytes of destination files re-read by the scrubber",
+                getBytesScrubbed());
+        counter(w, "sync_scrub_mismatches_total", "Destination files the scrubber found damaged and synced again",
+                getScrubMismatches());
+
+        gauge(w, "sync_throughput_bytes_per_second", "Bytes written per second over the last second",
+                getBytesPerSecond());
+        gauge(w, "sync_throughput_files_per_second", "Destination files started per second over the last second",
+                getFilesPerSecond());
+        gauge(w, "sync_limit_bytes_per_second", "Global write limit, 0 for unlimited", getMaxBytesPerSecond());
+        gauge(w, "sync_limit_files_per_second", "Global file limit, 0 for unlimited", getMaxFilesPerSecond());
+
+        header(w, "sync_failures_total", "Failures by cause", "counter");
+        for (Map.Entry<String, Long> e : getFailuresByCause().entrySet()) {
+            sample(w, "sync_failures_total", "cause", e.getKey(), null, e.getValue());
+        }
+        header(w, "sync_destination_failures_total", "Failures by destination folder", "counter");
+        for (Map.Entry<String, Long> e : getFailuresByDestination().entrySet()) {
+            sample(w, "sync_destination_failures_total", "dest", e.getKey(), null, e.getValue());
+        }
+
+        header(w, "sync_destination_circuit_open", "1 while a failing destination is paused", "gauge");
+        for (String dest : getOpenDestinations()) {
+            sample(w, "sync_destination_circuit_open", "dest", dest, null, 1);
+        }
+
+        header(w, "sync_queue_depth", "Copies waiting for a free slot on their volume", "gauge");
+        for (Map.Entry<String, Integer> e : getQueueDepthByVolume().entrySet()) {
+            sample(w, "sync_queue_depth", "volume", e.getKey(), null, e.getValue());
+        }
+
+        header(w, "sync_last_success_timestamp_seconds", "End of the last run without failures", "gauge");
+        for (Map.Entry<String, Long> e : getLastSuccess().entrySet()) {
+            sample(w, "sync_last_success_timestamp_seconds", "profile", e.getKey(), null, e.getValue() / 1000.0);
+        }
+
+        header(w, "sync_destination_seconds", "Time to check, copy and commit one destination", "histogram");
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(latencyByDest).entrySet()) {
+            String dest = e.getKey();
+            long[] counts = e.getValue().bucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String le = i < LatencyHistogram.BOUNDS_MILLIS.length
+                        ? format(LatencyHistogram.BOUNDS_MILLIS[i] / 1000.0)
+                        : "+Inf";
+                sample(w, "sync_destination_seconds_bucket", "dest", dest, le, cumulative);
+            }
+            sample(w, "sync_destination_seconds_sum", "dest", dest, null, e.getValue().getSumSeconds());
+            sample(w, "sync_destination_seconds_count", "dest", dest, null, e.getValue().getCount());
+        }
+    }
+
+    private static void counter(Writer w, String name, String help, long value) throws IOException {
+        header(w, name, help, "counter");
+        w.write(name + " " + value + "\n");
+    }
+
+    private static void gauge(Writer w, String name, String help, double value) throws IOException {
+        header(w, name, help, "gauge");
+        w.write(name + " " + format(value) + "\n");
+    }
+
+    private static void header(Writer w, String name, String help, String type) throws IOException {
+        w.write("# HELP " + name + " " + help + "\n");
+        w.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void sample(Writer w, String name, String label, String value, String le, double sample)
+            throws IOException {
+        w.write(name + "{" + label + "=\"" + escape(value) + "\"");
+        if (le != null)
+            w.write(",le=\"" + le + "\"");
+        w.write("} " + format(sample) + "\n");
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return String.valueOf((long) value);
+        return Double.toString(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
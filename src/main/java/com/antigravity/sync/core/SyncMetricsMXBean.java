@@ -0,0 +1,70 @@
+package com.antigravity.sync.core;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of SyncMetrics, registered as com.antigravity.sync:type=SyncMetrics.
+ */
+public interface SyncMetricsMXBean {
+
+    long getBytesCopied();
+
+    long getBytesWritten();
+
+    long getBytesSkipped();
+
+    long getFilesCopied();
+
+    long getFilesSkipped();
+
+    long getFilesFailed();
+
+    long getFilesDeferred();
+
+    long getFilesVerified();
+
+    long getBytesScrubbed();
+
+    long getScrubMismatches();
+
+    /**
+     * Destinations that keep failing and are only retried in the background.
+     */
+    List<String> getOpenDestinations();
+
+    Map<String, Long> getFailuresByCause();
+
+    int getQueueDepth();
+
+    Map<String, Integer> getQueueDepthByVolume();
+
+    /**
+     * Epoch millis of the last run without failures, per profile name.
+     */
+    Map<String, Long> getLastSuccess();
+
+    Map<String, Double> getDestinationMeanMillis();
+
+    Map<String, Double> getDestinationP99Millis();
+
+    Map<String, Double> getDestinationMaxMillis();
+
+    /**
+     * Bytes written per second, measured over the last second.
+     */
+    double getBytesPerSecond();
+
+    double getFilesPerSecond();
+
+    /**
+     * Global limit, 0 for unlimited. Can be changed while syncs run.
+     */
+    long getMaxBytesPerSecond();
+
+    void setMaxBytesPerSecond(long bytesPerSec);
+
+    long getMaxFilesPerSecond();
+
+    void setMaxFilesPerSecond(long filesPerSec);
+}
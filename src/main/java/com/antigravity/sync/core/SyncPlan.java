@@ -0,0 +1,358 @@
+package com.antigravity.sync.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a sync of some profiles would do, worked out by SyncPlanner without
+ * writing anything: which files have to be copied where, how many bytes
+ * that is and roughly how long it will take.
+ *
+ * Bytes to write are an upper bound; delta updates, compressed transfers
+ * and deduplicated destinations usually write less.
+ */
+public class SyncPlan {
+
+    private final List<ProfilePlan> profiles;
+
+    SyncPlan(List<ProfilePlan> profiles) {
+        this.profiles = Collections.unmodifiableList(profiles);
+    }
+
+    public List<ProfilePlan> getProfiles() {
+        return profiles;
+    }
+
+    public int getFilesToCopy() {
+        int n = 0;
+        for (ProfilePlan p : profiles) {
+            n += p.getFilesToCopy();
+        }
+        return n;
+    }
+
+    public long getBytesToWrite() {
+        long n = 0;
+        for (ProfilePlan p : profiles) {
+            n += p.getBytesToWrite();
+        }
+        return n;
+    }
+
+    /**
+     * Destinations are written in parallel, so the sync takes about as long
+     * as the slowest destination needs for everything it gets.
+     */
+    public double getEstimatedSeconds() {
+        Map<String, Double> byDest = new HashMap<>();
+        for (ProfilePlan p : profiles) {
+            for (DestPlan d : p.getDestinations()) {
+                byDest.merge(d.getDest(), d.getEstimatedSeconds(), Double::sum);
+            }
+        }
+        double max = 0;
+        for (double s : byDest.values()) {
+            max = Math.max(max, s);
+        }
+        return max;
+    }
+
+    /**
+     * The plan as text, one block per profile.
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (ProfilePlan p : profiles) {
+            sb.append(p.getProfile().getName()).append(": ");
+            if (p.getError() != null) {
+                sb.append(p.getError()).append("\n\n");
+                continue;
+            }
+            sb.append(p.getFilesToCopy()).append(" copies, ").append(SyncResult.formatBytes(p.getBytesToWrite()))
+                    .append(" to write, ").append(p.getFilesUpToDate()).append(" up to date, about ")
+                    .append(formatSeconds(p.getEstimatedSeconds())).append("\n");
+            for (DestPlan d : p.getDestinations()) {
+                sb.append("  ").append(d.getDest()).append(": ");
+                if (d.isDeferred()) {
+                    sb.append("paused, keeps failing\n");
+                    continue;
+                }
+                sb.append(d.getFilesToCopy()).append(" files, ").append(SyncResult.formatBytes(d.getBytesToWrite()))
+                        .append(" at ").append(SyncResult.formatBytes((long) d.getBytesPerSec())).append("/s")
+                        .append(d.isMeasured() ? "" : " (assumed)").append(", ")
+                        .append(formatSeconds(d.getEstimatedSeconds())).append("\n");
+            }
+            sb.append("\n");
+        }
+        sb.append("Total: ").append(getFilesToCopy()).append(" copies, ")
+                .append(SyncResult.formatBytes(getBytesToWrite())).append(" to write, about ")
+                .append(formatSeconds(getEstimatedSeconds()));
+        return sb.toString();
+    }
+
+    public static String formatSeconds(double seconds) {
+        long s = Math.round(seconds);
+        if (s < 60)
+            return s + " s";
+        if (s < 3600)
+            return s / 60 + " min " + s % 60 + " s";
+        return s / 3600 + " h " + s % 3600 / 60 + " min";
+    }
+
+    /**
+     * The plan for one profile. Also kept by SyncPlanner so the next sync
+     * can run just the planned copies if nothing changed in between.
+     */
+    public static class ProfilePlan {
+        private final SyncProfile profile;
+        private final long created = System.currentTimeMillis();
+        private final long indexGeneration;
+        private final Map<String, DestPlan> dests = new LinkedHashMap<>();
+        private final List<Copy> copies = new ArrayList<>();
+        private final SourceFingerprint source = new SourceFingerprint();
+        // The destination files of every source file, as seen while planning
+        private final SourceFingerprint destState = new SourceFingerprint();
+        private volatile boolean destUnknown;
+        private volatile String error;
+
+        ProfilePlan(SyncProfile profile, long indexGeneration) {
+            this.profile = profile;
+            this.indexGeneration = indexGeneration;
+        }
+
+        public SyncProfile getProfile() {
+            return profile;
+        }
+
+        public Collection<DestPlan> getDestinations() {
+            return dests.values();
+        }
+
+        /**
+         * Why the profile could not be planned, or null.
+         */
+        public String getError() {
+            return error;
+        }
+
+        public int getFilesToCopy() {
+            int n = 0;
+            for (DestPlan d : dests.values()) {
+                n += d.getFilesToCopy();
+            }
+            return n;
+        }
+
+        public long getBytesToWrite() {
+            long n = 0;
+            for (DestPlan d : dests.values()) {
+                n += d.getBytesToWrite();
+            }
+            return n;
+        }
+
+        public int getFilesUpToDate() {
+            int n = 0;
+            for (DestPlan d : dests.values()) {
+                n += d.getFilesUpToDate();
+            }
+            return n;
+        }
+
+        public double getEstimatedSeconds() {
+            double max = 0;
+            for (DestPlan d : dests.values()) {
+                max = Math.max(max, d.getEstimatedSeconds());
+            }
+            return max;
+        }
+
+        long getCreated() {
+            return created;
+        }
+
+        long getIndexGeneration() {
+            return indexGeneration;
+        }
+
+        SourceFingerprint getSource() {
+            return source;
+        }
+
+        SourceFingerprint getDestState() {
+            return destState;
+        }
+
+        /**
+         * A destination could not be looked at, the plan cannot be reused.
+         */
+        boolean isDestUnknown() {
+            return destUnknown;
+        }
+
+        void setDestUnknown() {
+            destUnknown = true;
+        }
+
+        synchronized List<Copy> getCopies() {
+            return new ArrayList<>(copies);
+        }
+
+        void addDest(DestPlan d) {
+            dests.put(d.getDest(), d);
+        }
+
+        DestPlan getDest(String dest) {
+            return dests.get(dest);
+        }
+
+        synchronized void addCopy(Copy copy) {
+            copies.add(copy);
+        }
+
+        void setError(String error) {
+            this.error = error;
+        }
+
+        /**
+         * True if the profile still has the source and destinations this
+         * plan was made for.
+         */
+        boolean matches(SyncProfile p) {
+            return p.getSourcePath().equals(profile.getSourcePath()) && p.getDestPaths().equals(profile.getDestPaths());
+        }
+    }
+
+    public static class DestPlan {
+        private final String dest;
+        private final double bytesPerSec;
+        private final boolean measured;
+        private final boolean deferred;
+        private int filesToCopy;
+        private long bytesToWrite;
+        private int filesUpToDate;
+        private long bytesUpToDate;
+
+        DestPlan(String dest, double bytesPerSec, boolean measured, boolean deferred) {
+            this.dest = dest;
+            this.bytesPerSec = bytesPerSec;
+            this.measured = measured;
+            this.deferred = deferred;
+        }
+
+        public String getDest() {
+            return dest;
+        }
+
+        /**
+         * Measured write speed to this destination, capped by its rate
+         * limits.
+         */
+        public double getBytesPerSec() {
+            return bytesPerSec;
+        }
+
+        /**
+         * False if nothing was written to it yet and a default is assumed.
+         */
+        public boolean isMeasured() {
+            return measured;
+        }
+
+        /**
+         * The destination keeps failing and would be skipped.
+         */
+        public boolean isDeferred() {
+            return deferred;
+        }
+
+        public synchronized int getFilesToCopy() {
+            return filesToCopy;
+        }
+
+        public synchronized long getBytesToWrite() {
+            return bytesToWrite;
+        }
+
+        public synchronized int getFilesUpToDate() {
+            return filesUpToDate;
+        }
+
+        public synchronized long getBytesUpToDate() {
+            return bytesUpToDate;
+        }
+
+        public double getEstimatedSeconds() {
+            return bytesPerSec > 0 ? getBytesToWrite() / bytesPerSec : 0;
+        }
+
+        synchronized void addCopy(long bytes) {
+            filesToCopy++;
+            bytesToWrite += bytes;
+        }
+
+        synchronized void addUpToDate(long bytes) {
+            filesUpToDate++;
+            bytesUpToDate += bytes;
+        }
+    }
+
+    /**
+     * One source file and the destinations it has to be copied to.
+     */
+    static class Copy {
+        final File source;
+        final String relativePath;
+        final long size;
+        final long modified;
+        final List<String> dests;
+
+        Copy(File source, String relativePath, long size, long modified, List<String> dests) {
+            this.source = source;
+            this.relativePath = relativePath;
+            this.size = size;
+            this.modified = modified;
+            this.dests = dests;
+        }
+    }
+
+    /**
+     * Order-independent summary of a listing (names, sizes, dates), so a
+     * parallel walk can tell whether anything changed without keeping the
+     * listing. Used for the source and for the destination files.
+     */
+    static class SourceFingerprint {
+        private long sum;
+        private int files;
+
+        synchronized void add(String relativePath, long size, long modified) {
+            long h = relativePath.hashCode() * 0x9E3779B97F4A7C15L;
+            h ^= size * 0xC2B2AE3D27D4EB4FL;
+            h ^= modified * 0x165667B19E3779F9L;
+            h ^= h >>> 31;
+            sum += h * 0xBF58476D1CE4E5B9L;
+            files++;
+        }
+
+        @Override
+        public synchronized boolean equals(Object o) {
+            if (!(o instanceof SourceFingerprint))
+                return false;
+            SourceFingerprint other = (SourceFingerprint) o;
+            synchronized (other) {
+                return sum == other.sum && files == other.files;
+            }
+        }
+
+        @Override
+        public synchronized int hashCode() {
+            return Long.hashCode(sum) * 31 + files;
+        }
+    }
+}
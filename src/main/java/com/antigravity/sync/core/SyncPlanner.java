@@ -0,0 +1,387 @@
+package com.antigravity.sync.core;
+
+import com.antigravity.sync.agent.AgentClient;
+import com.antigravity.sync.agent.AgentUrl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Works out what a sync would do without writing anything, see SyncPlan.
+ * Sources are walked and destinations checked in parallel, with the same
+ * rules a sync uses to skip unchanged files. Time estimates use the write
+ * speed measured per destination, which is kept in throughput.csv next to
+ * config.csv across restarts.
+ *
+ * Plans of incremental syncs are cached. When the next sync of a profile
+ * finds that its source listing, its destination files and the index are
+ * unchanged and the plan is at most MAX_AGE_MILLIS old, CopyEngine runs
+ * just the planned copies. Destination files are only compared by size and
+ * date then, the checks a sync does beyond that, e.g. hashing a source
+ * whose date changed, are not repeated.
+ */
+public class SyncPlanner {
+
+    static final long MAX_AGE_MILLIS = 10 * 60 * 1000L;
+    // Assumed for destinations nothing was written to yet
+    private static final double DEFAULT_BYTES_PER_SEC = 20 * 1024 * 1024;
+
+    private final CopyEngine engine;
+    private final SyncIndex index;
+    private final File ratesFile;
+    private final Map<String, Double> savedRates = new ConcurrentHashMap<>();
+    private final Map<String, SyncPlan.ProfilePlan> cache = new ConcurrentHashMap<>();
+    private final int inflightLimit;
+    // Walkers wait for checks, never the other way round, so they get their own pool
+    private final ExecutorService walkers;
+    private final ExecutorService checkers;
+
+    public SyncPlanner(CopyEngine engine, SyncIndex index, File configDir, int threads) {
+        this.engine = engine;
+        this.index = index;
+        this.ratesFile = new File(configDir, "throughput.csv");
+        this.inflightLimit = Math.max(64, threads * 16);
+        this.walkers = Executors.newFixedThreadPool(Math.max(2, threads / 2), r -> daemon(r, "sync-plan-walk"));
+        // Checks mostly wait for the file system, so more of them run than copies
+        this.checkers = Executors.newFixedThreadPool(Math.max(4, threads * 2), r -> daemon(r, "sync-plan"));
+        loadRates();
+    }
+
+    /**
+     * Plans a sync of the profiles. Blocks until done.
+     */
+    public SyncPlan plan(List<SyncProfile> profiles, boolean incremental) {
+        List<CompletableFuture<SyncPlan.ProfilePlan>> pending = new ArrayList<>();
+        for (SyncProfile profile : profiles) {
+            pending.add(CompletableFuture.supplyAsync(() -> planProfile(profile, incremental), walkers)
+                    .thenCompose(f -> f));
+        }
+        List<SyncPlan.ProfilePlan> plans = new ArrayList<>();
+        for (CompletableFuture<SyncPlan.ProfilePlan> f : pending) {
+            SyncPlan.ProfilePlan plan = f.join();
+            plans.add(plan);
+            // A full sync copies everything anyway
+            if (incremental && plan.getError() == null && !plan.isDestUnknown())
+                cache.put(plan.getProfile().getId(), plan);
+        }
+        return new SyncPlan(plans);
+    }
+
+    private CompletableFuture<SyncPlan.ProfilePlan> planProfile(SyncProfile profile, boolean incremental) {
+        // Taken before looking at anything, so a sync that runs meanwhile invalidates the plan
+        SyncPlan.ProfilePlan plan = new SyncPlan.ProfilePlan(profile, index.getGeneration());
+        for (String destPath : profile.getDestPaths()) {
+            String dest = AgentUrl.isAgent(destPath) ? destPath : new File(destPath).getPath();
+            double measured = rateFor(dest);
+            double rate = measured > 0 ? measured : DEFAULT_BYTES_PER_SEC;
+            rate = capped(rate, engine.getRateLimits().getGlobal());
+            rate = capped(rate, profile.getLimit());
+            rate = capped(rate, profile.getDestLimit(destPath));
+            plan.addDest(new SyncPlan.DestPlan(dest, rate, measured > 0, engine.getHealth().isOpen(dest)));
+        }
+
+        SourceWalker walker;
+        try {
+            walker = SourceWalker.of(profile.getSourcePath());
+        } catch (IllegalArgumentException e) {
+            plan.setError("Invalid pattern: " + e.getMessage());
+            return CompletableFuture.completedFuture(plan);
+        }
+        if (walker == null) {
+            plan.setError("Source not found");
+            return CompletableFuture.completedFuture(plan);
+        }
+
+        CompletableFuture<SyncPlan.ProfilePlan> done = new CompletableFuture<>();
+        Semaphore inflight = new Semaphore(inflightLimit);
+        // One for the walk itself, plus one per file still being checked
+        AtomicInteger pending = new AtomicInteger(1);
+        Runnable finishOne = () -> {
+            if (pending.decrementAndGet() == 0)
+                done.complete(plan);
+        };
+        walker.walk(walkers, (Path file, String relativePath, BasicFileAttributes attrs) -> {
+            long size = attrs.size();
+            long modified = attrs.lastModifiedTime().toMillis();
+            plan.getSource().add(relativePath, size, modified);
+            inflight.acquire();
+            pending.incrementAndGet();
+            checkers.execute(() -> {
+                try {
+                    planFile(plan, file, relativePath, size, modified, incremental);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    inflight.release();
+                    finishOne.run();
+                }
+            });
+        }).whenComplete((v, e) -> {
+            if (e != null)
+                plan.setError("Could not list the source: " + e.getMessage());
+            finishOne.run();
+        });
+        return done;
+    }
+
+    private void planFile(SyncPlan.ProfilePlan plan, Path file, String relativePath, long size, long modified,
+            boolean incremental) {
+        // Looked at before the checks, so a change while checking invalidates the plan
+        if (incremental && !addDestState(plan, plan.getDestState(), relativePath, size))
+            plan.setDestUnknown();
+        String[] hash = new String[1];
+        List<String> dests = new ArrayList<>();
+        for (String destPath : plan.getProfile().getDestPaths()) {
+            SyncPlan.DestPlan d = plan.getDest(AgentUrl.isAgent(destPath) ? destPath : new File(destPath).getPath());
+            if (d.isDeferred())
+                continue;
+            boolean upToDate = false;
+            if (incremental) {
+                try {
+                    upToDate = upToDate(file, relativePath, size, modified, destPath, hash);
+                } catch (IOException | IllegalArgumentException e) {
+                    // unknown, assume it has to be copied
+                }
+            }
+            if (upToDate) {
+                d.addUpToDate(size);
+            } else {
+                d.addCopy(size);
+                dests.add(destPath);
+            }
+        }
+        if (!dests.isEmpty())
+            plan.addCopy(new SyncPlan.Copy(file.toFile(), relativePath, size, modified, dests));
+    }
+
+    /**
+     * The same test a sync uses to skip a destination, without side
+     * effects.
+     */
+    private boolean upToDate(Path file, String relativePath, long size, long modified, String destPath,
+            String[] hash) throws IOException {
+        SyncIndex.Entry last;
+        if (AgentUrl.isAgent(destPath)) {
+            AgentUrl url = AgentUrl.parse(destPath);
+            String remote = url.resolve(relativePath);
+            last = index.get(url.toUrl(remote));
+            if (last == null || last.sourceSize != size)
+                return false;
+            AgentClient.Stat stat = engine.agentStat(url, remote);
+            if (!stat.exists || !last.matchesDest(stat.size, stat.modified))
+                return false;
+        } else {
+            File dest = new File(new File(destPath), relativePath);
+            last = index.get(dest);
+            if (last == null || last.sourceSize != size)
+                return false;
+            if (!last.matchesDest(dest)) {
+                // A compressed transfer that waits to be unpacked is not sent again,
+                // as long as the sync would still send this file compressed
+                return last.sourceModified == modified && engine.compresses(dest, size)
+                        && Files.exists(CompressedTransfer.stagingFor(dest.toPath()));
+            }
+        }
+        if (last.sourceModified == modified)
+            return true;
+        if (hash[0] == null)
+            hash[0] = SyncIndex.hash(file);
+        return hash[0].equals(last.sourceHash);
+    }
+
+    /**
+     * Adds size and date of the destination files of one source file to a
+     * fingerprint, and whether a compressed transfer waits for them. Returns
+     * false if a destination could not be looked at.
+     */
+    private boolean addDestState(SyncPlan.ProfilePlan plan, SyncPlan.SourceFingerprint state, String relativePath,
+            long size) {
+        for (String destPath : plan.getProfile().getDestPaths()) {
+            SyncPlan.DestPlan d = plan.getDest(AgentUrl.isAgent(destPath) ? destPath : new File(destPath).getPath());
+            // Left out of the plan, a reused plan syncs them in full
+            if (d == null || d.isDeferred())
+                continue;
+            try {
+                if (AgentUrl.isAgent(destPath)) {
+                    AgentUrl url = AgentUrl.parse(destPath);
+                    AgentClient.Stat stat = engine.agentStat(url, url.resolve(relativePath));
+                    state.add(destPath + "|" + relativePath, stat.exists ? stat.size : -1, stat.modified);
+                } else {
+                    File dest = new File(new File(destPath), relativePath);
+                    boolean staged = engine.compresses(dest, size)
+                            && Files.exists(CompressedTransfer.stagingFor(dest.toPath()));
+                    state.add(destPath + (staged ? "|staged|" : "|") + relativePath,
+                            dest.exists() ? dest.length() : -1, dest.lastModified());
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes the cached plans that are still valid for these profiles: the
+     * profile and the index did not change, the plan is recent, and the
+     * source listing and the destination files are the same. Sources are
+     * listed and destinations looked at again in parallel. A plan is used
+     * only once.
+     */
+    Map<String, SyncPlan.ProfilePlan> takeReusable(List<SyncProfile> profiles) {
+        Map<String, CompletableFuture<SyncPlan.ProfilePlan>> pending = new HashMap<>();
+        for (SyncProfile profile : profiles) {
+            SyncPlan.ProfilePlan plan = cache.remove(profile.getId());
+            if (plan == null || !plan.matches(profile) || index.getGeneration() != plan.getIndexGeneration()
+                    || System.currentTimeMillis() - plan.getCreated() > MAX_AGE_MILLIS)
+                continue;
+            pending.put(profile.getId(), unchanged(plan));
+        }
+        Map<String, SyncPlan.ProfilePlan> reusable = new HashMap<>();
+        for (Map.Entry<String, CompletableFuture<SyncPlan.ProfilePlan>> e : pending.entrySet()) {
+            SyncPlan.ProfilePlan plan = e.getValue().join();
+            if (plan != null && index.getGeneration() == plan.getIndexGeneration())
+                reusable.put(e.getKey(), plan);
+        }
+        return reusable;
+    }
+
+    private CompletableFuture<SyncPlan.ProfilePlan> unchanged(SyncPlan.ProfilePlan plan) {
+        SourceWalker walker;
+        try {
+            walker = SourceWalker.of(plan.getProfile().getSourcePath());
+        } catch (IllegalArgumentException e) {
+            walker = null;
+        }
+        if (walker == null)
+            return CompletableFuture.completedFuture(null);
+        SyncPlan.SourceFingerprint source = new SyncPlan.SourceFingerprint();
+        SyncPlan.SourceFingerprint dests = new SyncPlan.SourceFingerprint();
+        AtomicBoolean valid = new AtomicBoolean(true);
+        CompletableFuture<SyncPlan.ProfilePlan> done = new CompletableFuture<>();
+        Semaphore inflight = new Semaphore(inflightLimit);
+        AtomicInteger pending = new AtomicInteger(1);
+        Runnable finishOne = () -> {
+            if (pending.decrementAndGet() == 0)
+                done.complete(valid.get() && source.equals(plan.getSource()) && dests.equals(plan.getDestState())
+                        ? plan : null);
+        };
+        walker.walk(walkers, (file, relativePath, attrs) -> {
+            long size = attrs.size();
+            source.add(relativePath, size, attrs.lastModifiedTime().toMillis());
+            inflight.acquire();
+            pending.incrementAndGet();
+            checkers.execute(() -> {
+                try {
+                    if (!addDestState(plan, dests, relativePath, size))
+                        valid.set(false);
+                } catch (RuntimeException e) {
+                    valid.set(false);
+                } finally {
+                    inflight.release();
+                    finishOne.run();
+                }
+            });
+        }).whenComplete((v, e) -> {
+            if (e != null)
+                valid.set(false);
+            finishOne.run();
+        });
+        return done;
+    }
+
+    /**
+     * Bytes per second last measured for a destination, 0 if unknown.
+     */
+    public double rateFor(String dest) {
+        Double measured = engine.getMetrics().getDestinationBytesPerSecond().get(dest);
+        if (measured != null && measured > 0)
+            return measured;
+        Double saved = savedRates.get(dest);
+        return saved != null ? saved : 0;
+    }
+
+    private static double capped(double rate, RateLimit limit) {
+        long max = limit.getBytesPerSec();
+        return max > 0 ? Math.min(rate, max) : rate;
+    }
+
+    private void loadRates() {
+        if (!ratesFile.exists())
+            return;
+        try (BufferedReader br = new BufferedReader(new FileReader(ratesFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                // bytesPerSec,dest
+                String[] parts = line.split(",", 2);
+                if (parts.length == 2) {
+                    try {
+                        savedRates.put(parts[1], Double.parseDouble(parts[0]));
+                    } catch (NumberFormatException e) {
+                        // ignore broken line
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Keeps the write speeds measured in this run for the next start.
+     */
+    public void saveRates() {
+        Map<String, Double> rates = new TreeMap<>(savedRates);
+        for (Map.Entry<String, Double> e : engine.getMetrics().getDestinationBytesPerSecond().entrySet()) {
+            if (e.getValue() > 0)
+                rates.put(e.getKey(), e.getValue());
+        }
+        if (rates.isEmpty())
+            return;
+        File tmp = new File(ratesFile.getParentFile(), ratesFile.getName() + ".tmp");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tmp))) {
+            for (Map.Entry<String, Double> e : rates.entrySet()) {
+                bw.write(Math.round(e.getValue()) + "," + e.getKey());
+                bw.newLine();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), ratesFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void shutdown() {
+        walkers.shutdownNow();
+        checkers.shutdownNow();
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,101 @@
+package com.antigravity.sync.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of one profile, safe to hand to worker threads.
+ */
+public class SyncProfile {
+
+    private final String id;
+    private final String name;
+    private final String sourcePath;
+    private final List<String> destPaths;
+    private final RateLimit limit;
+    private final Map<String, RateLimit> destLimits;
+    private final Schedule schedule;
+    private final int priority;
+
+    public SyncProfile(String id, String name, String sourcePath, List<String> destPaths) {
+        this(id, name, sourcePath, destPaths, RateLimit.NONE, Collections.emptyMap());
+    }
+
+    /**
+     * @param destLimits limits of single destinations, others are unlimited
+     */
+    public SyncProfile(String id, String name, String sourcePath, List<String> destPaths, RateLimit limit,
+            Map<String, RateLimit> destLimits) {
+        this(id, name, sourcePath, destPaths, limit, destLimits, Schedule.DEFAULT, 0);
+    }
+
+    /**
+     * @param priority profiles with a higher priority are synced first when
+     *                 several are due
+     */
+    public SyncProfile(String id, String name, String sourcePath, List<String> destPaths, RateLimit limit,
+            Map<String, RateLimit> destLimits, Schedule schedule, int priority) {
+        this.id = id;
+        this.name = name == null ? "" : name;
+        this.sourcePath = sourcePath == null ? "" : sourcePath;
+        this.destPaths = Collections.unmodifiableList(new ArrayList<>(destPaths));
+        this.limit = limit == null ? RateLimit.NONE : limit;
+        Map<String, RateLimit> limits = new LinkedHashMap<>();
+        for (Map.Entry<String, RateLimit> e : destLimits.entrySet()) {
+            if (this.destPaths.contains(e.getKey()) && !e.getValue().isUnlimited())
+                limits.put(e.getKey(), e.getValue());
+        }
+        this.destLimits = Collections.unmodifiableMap(limits);
+        this.schedule = schedule == null ? Schedule.DEFAULT : schedule;
+        this.priority = priority;
+    }
+
+    /**
+     * The same profile with other destinations, keeping the limits.
+     */
+    public SyncProfile withDestPaths(List<String> destPaths) {
+        return new SyncProfile(id, name, sourcePath, destPaths, limit, destLimits, schedule, priority);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSourcePath() {
+        return sourcePath;
+    }
+
+    public List<String> getDestPaths() {
+        return destPaths;
+    }
+
+    /**
+     * Limit for all writes of this profile together.
+     */
+    public RateLimit getLimit() {
+        return limit;
+    }
+
+    public RateLimit getDestLimit(String destPath) {
+        return destLimits.getOrDefault(destPath, RateLimit.NONE);
+    }
+
+    public Map<String, RateLimit> getDestLimits() {
+        return destLimits;
+    }
+
+    public Schedule getSchedule() {
+        return schedule;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+}
@@ -0,0 +1,105 @@
+package com.antigravity.sync.core;
+
+public class SyncResult {
+
+    private int copied;
+    private int skipped;
+    private int failed;
+    private int deferred;
+    private long bytesCopied;
+    private long bytesSkipped;
+    private long bytesWritten;
+
+    public void addCopied(long bytes) {
+        addCopied(bytes, bytes);
+    }
+
+    /**
+     * A copy that only had to write part of the file, e.g. a delta update.
+     */
+    public void addCopied(long bytes, long written) {
+        copied++;
+        bytesCopied += bytes;
+        bytesWritten += written;
+    }
+
+    public void addSkipped(long bytes) {
+        skipped++;
+        bytesSkipped += bytes;
+    }
+
+    public void addSkipped(int files, long bytes) {
+        skipped += files;
+        bytesSkipped += bytes;
+    }
+
+    public void addFailed() {
+        failed++;
+    }
+
+    /**
+     * A destination that was skipped because it keeps failing; it is
+     * retried in the background.
+     */
+    public void addDeferred() {
+        deferred++;
+    }
+
+    public void add(SyncResult other) {
+        copied += other.copied;
+        skipped += other.skipped;
+        failed += other.failed;
+        deferred += other.deferred;
+        bytesCopied += other.bytesCopied;
+        bytesSkipped += other.bytesSkipped;
+        bytesWritten += other.bytesWritten;
+    }
+
+    public int getCopied() {
+        return copied;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public int getDeferred() {
+        return deferred;
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    public long getBytesSkipped() {
+        return bytesSkipped;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public String toString() {
+        String s = copied + " copied, " + skipped + " skipped";
+        if (failed > 0)
+            s += ", " + failed + " failed";
+        if (deferred > 0)
+            s += ", " + deferred + " deferred";
+        return s;
+    }
+
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024)
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
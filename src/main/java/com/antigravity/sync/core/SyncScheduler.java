@@ -0,0 +1,364 @@
+package com.antigravity.sync.core;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs syncs in the background. While started, every profile follows its
+ * own Schedule, the global interval unless it has one; manual triggers and
+ * source changes add profiles on demand. Due profiles wait in a queue
+ * ordered by priority. A profile that is already waiting is not queued
+ * twice, and one that is running is run once more when it is done.
+ *
+ * Up to MAX_RUNS batches run at once and a profile is free again as soon
+ * as its own sync is done, so a profile that syncs every few seconds is
+ * not held up by an hourly archive. Timed runs start up to a tenth of
+ * their interval late (at most JITTER_CAP_MILLIS), at random, so that
+ * many profiles on the same schedule do not all start at the same moment.
+ */
+public class SyncScheduler {
+
+    public interface Listener {
+        void syncStarted(List<SyncProfile> profiles);
+
+        void profileFinished(SyncProfile profile, SyncResult result);
+
+        void syncFinished(Map<SyncProfile, SyncResult> results, long millis);
+
+        /**
+         * A trigger added nothing, every profile was already waiting.
+         */
+        void syncDropped();
+    }
+
+    private static final long TICK_MILLIS = 250;
+    private static final int MAX_RUNS = 4;
+    private static final long JITTER_CAP_MILLIS = 30000;
+
+    private final CopyEngine engine;
+    private final Supplier<List<SyncProfile>> snapshot;
+    private final Listener listener;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService runner;
+    private final Random random = new Random();
+    // All guarded by this
+    private final PriorityQueue<Pending> queue = new PriorityQueue<>();
+    private final Map<String, Pending> queued = new HashMap<>();
+    private final Set<String> running = new HashSet<>();
+    private final Map<String, Due> due = new HashMap<>();
+    private int activeRuns;
+    private long sequence;
+    private boolean started;
+    private boolean firstTick;
+    private long periodMillis;
+    // Profiles the timer goes by, read again only after profilesChanged()
+    private List<SyncProfile> scheduled;
+    private long profilesVersion;
+    private volatile boolean incremental = true;
+
+    /**
+     * @param snapshot called to capture the current profile configuration;
+     *                 the timer keeps what it got until profilesChanged()
+     */
+    public SyncScheduler(CopyEngine engine, Supplier<List<SyncProfile>> snapshot, Listener listener) {
+        this.engine = engine;
+        this.snapshot = snapshot;
+        this.listener = listener;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "sync-timer"));
+        this.runner = Executors.newCachedThreadPool(r -> daemon(r, "sync-run"));
+        timer.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts the timed schedules. Profiles on the global interval, given
+     * here, and on their own interval are synced right away, then on their
+     * schedule.
+     */
+    public synchronized void start(long periodMillis) {
+        this.periodMillis = periodMillis;
+        scheduled = null;
+        due.clear();
+        started = true;
+        firstTick = true;
+    }
+
+    /**
+     * Stops the timed schedules; triggers and source changes still work.
+     */
+    public synchronized void stop() {
+        started = false;
+        due.clear();
+    }
+
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * A profile was saved, added or deleted: the timer reads the profiles
+     * again on its next tick.
+     */
+    public synchronized void profilesChanged() {
+        scheduled = null;
+        profilesVersion++;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public synchronized boolean isRunning() {
+        return activeRuns > 0;
+    }
+
+    /**
+     * Queues every profile. Returns false if all of them were waiting
+     * already.
+     */
+    public boolean trigger() {
+        if (!enqueue(snapshot.get())) {
+            listener.syncDropped();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Like trigger(), without reporting a dropped trigger.
+     */
+    public void requestRun() {
+        enqueue(snapshot.get());
+    }
+
+    /**
+     * Queues just these profiles, e.g. the ones a crash interrupted.
+     */
+    public boolean resume(List<SyncProfile> profiles) {
+        return enqueue(profiles);
+    }
+
+    /**
+     * A watched source changed, queues the profiles it belongs to.
+     */
+    public void sourceChanged(Path file) {
+        List<SyncProfile> affected = new ArrayList<>();
+        for (SyncProfile p : snapshot.get()) {
+            if (covers(p.getSourcePath(), file))
+                affected.add(p);
+        }
+        enqueue(affected);
+    }
+
+    static boolean covers(String source, Path file) {
+        if (source == null || source.isEmpty())
+            return false;
+        Path changed = file.toAbsolutePath().normalize();
+        try {
+            if (SourceWalker.isTree(source)) {
+                SourceWalker walker = SourceWalker.of(source);
+                return walker != null && changed.startsWith(walker.getBase().toAbsolutePath().normalize());
+            }
+            return Paths.get(source).toAbsolutePath().normalize().equals(changed);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        runner.shutdownNow();
+    }
+
+    private synchronized boolean enqueue(List<SyncProfile> profiles) {
+        boolean added = false;
+        for (SyncProfile p : profiles) {
+            Pending pending = queued.get(p.getId());
+            if (pending != null) {
+                // Coalesced with the run already waiting, which syncs the latest settings
+                pending.profile = p;
+                continue;
+            }
+            pending = new Pending(p, sequence++);
+            queued.put(p.getId(), pending);
+            queue.add(pending);
+            added = true;
+        }
+        dispatch();
+        return added;
+    }
+
+    /**
+     * Starts a batch of everything waiting that is not running already,
+     * highest priority first, if there is a free slot.
+     */
+    private synchronized void dispatch() {
+        if (activeRuns >= MAX_RUNS || queue.isEmpty() || runner.isShutdown())
+            return;
+        List<SyncProfile> batch = new ArrayList<>();
+        List<Pending> busy = new ArrayList<>();
+        Pending p;
+        while ((p = queue.poll()) != null) {
+            if (running.contains(p.profile.getId())) {
+                busy.add(p);
+                continue;
+            }
+            queued.remove(p.profile.getId());
+            running.add(p.profile.getId());
+            batch.add(p.profile);
+        }
+        queue.addAll(busy);
+        if (batch.isEmpty())
+            return;
+        activeRuns++;
+        runner.execute(() -> runBatch(batch));
+    }
+
+    private void runBatch(List<SyncProfile> batch) {
+        long start = System.currentTimeMillis();
+        // Ids of the batch that are done; a finished profile may already run again in another batch
+        Set<String> done = new HashSet<>();
+        try {
+            listener.syncStarted(batch);
+            Map<SyncProfile, SyncResult> results = engine.syncAll(batch, incremental, (profile, result) -> {
+                listener.profileFinished(profile, result);
+                finished(profile, done);
+            });
+            listener.syncFinished(results, System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (this) {
+                for (SyncProfile profile : batch) {
+                    if (done.add(profile.getId()))
+                        running.remove(profile.getId());
+                }
+                activeRuns--;
+                dispatch();
+            }
+        }
+    }
+
+    private synchronized void finished(SyncProfile profile, Set<String> done) {
+        if (done.add(profile.getId()))
+            running.remove(profile.getId());
+        dispatch();
+    }
+
+    /**
+     * Queues the profiles whose time has come.
+     */
+    private void tick() {
+        try {
+            List<SyncProfile> profiles = scheduledProfiles();
+            if (profiles == null)
+                return;
+            long now = System.currentTimeMillis();
+            List<SyncProfile> dueNow = new ArrayList<>();
+            synchronized (this) {
+                if (!started)
+                    return;
+                Set<String> ids = new HashSet<>();
+                for (SyncProfile p : profiles) {
+                    ids.add(p.getId());
+                    Schedule schedule = p.getSchedule();
+                    Due d = due.get(p.getId());
+                    if (d == null || !d.schedule.equals(schedule.toString())) {
+                        // Right after start() intervals begin with a run, later additions and edits wait
+                        long next = firstTick && !schedule.isCron() ? now : schedule.next(now, periodMillis);
+                        d = new Due(schedule.toString(), jittered(now, next, schedule));
+                        due.put(p.getId(), d);
+                    }
+                    if (now >= d.at) {
+                        dueNow.add(p);
+                        d.at = jittered(now, schedule.next(now, periodMillis), schedule);
+                    }
+                }
+                due.keySet().retainAll(ids);
+                firstTick = false;
+            }
+            if (!dueNow.isEmpty())
+                enqueue(dueNow);
+        } catch (RuntimeException e) {
+            // keep the timer alive
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The cached profiles, read from the snapshot if needed; null while
+     * stopped.
+     */
+    private List<SyncProfile> scheduledProfiles() {
+        long version;
+        synchronized (this) {
+            if (!started)
+                return null;
+            if (scheduled != null)
+                return scheduled;
+            version = profilesVersion;
+        }
+        // Read outside the lock, it may load profile files
+        List<SyncProfile> profiles = snapshot.get();
+        synchronized (this) {
+            if (version == profilesVersion)
+                scheduled = profiles;
+        }
+        return profiles;
+    }
+
+    private long jittered(long now, long next, Schedule schedule) {
+        if (next == Long.MAX_VALUE)
+            return next;
+        long period = schedule.isCron() ? next - now : schedule.next(now, periodMillis) - now;
+        long max = Math.min(period / 10, JITTER_CAP_MILLIS);
+        return max > 0 ? next + (long) (random.nextDouble() * max) : next;
+    }
+
+    private static class Pending implements Comparable<Pending> {
+        SyncProfile profile;
+        final int priority;
+        final long sequence;
+
+        Pending(SyncProfile profile, long sequence) {
+            this.profile = profile;
+            this.priority = profile.getPriority();
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Pending o) {
+            if (priority != o.priority)
+                return Integer.compare(o.priority, priority);
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private static class Due {
+        final String schedule;
+        long at;
+
+        Due(String schedule, long at) {
+            this.schedule = schedule;
+            this.at = at;
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+}
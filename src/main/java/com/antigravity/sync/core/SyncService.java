@@ -0,0 +1,252 @@
+package com.antigravity.sync.core;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Wires the sync core together from a ConfigManager. Used by both the SWT
+ * application and the headless daemon; nothing in here touches SWT.
+ */
+public class SyncService {
+
+    private final ConfigManager config;
+    private final SyncIndex index;
+    private final CopyEngine engine;
+    private final SyncJournal journal;
+    private final Set<String> interrupted;
+    private final PreviewService previewService = new PreviewService();
+    private MetricsServer metricsServer;
+    private Scrubber scrubber;
+    private LeaseManager leases;
+    private VersionStore versions;
+    private final SyncPlanner planner;
+
+    public SyncService(ConfigManager config) {
+        this.config = config;
+        this.index = new SyncIndex(config.getConfigDir());
+        index.load();
+        // Finish what the last process recorded but did not get to save
+        this.journal = new SyncJournal(config.getConfigDir());
+        this.interrupted = journal.replay(index);
+        index.setJournal(journal);
+        this.engine = new CopyEngine(index, config.getThreads(), config.getPerVolume());
+        engine.setDelta(config.isDelta(), config.getDeltaMinSize());
+        engine.setAtomic(config.isAtomic(), config.isFsync());
+        engine.setTimeout(config.getTimeout() * 1000L);
+        engine.setCompress(config.getCompress(), config.getCompressLevel());
+        engine.setAgentToken(config.getAgentToken());
+        engine.setDedup(config.isDedup());
+        engine.setJournal(journal);
+        engine.setVerify(config.isVerify());
+        this.planner = new SyncPlanner(engine, index, config.getConfigDir(), config.getThreads());
+        engine.setPlanner(planner);
+        if (config.getKeepVersions() > 0) {
+            versions = new VersionStore(config.getKeepVersions(), config.getKeepVersionDays() * 24L * 60 * 60 * 1000);
+            engine.setVersions(versions);
+            versions.start(this::getProfiles);
+        }
+        if (!config.getCoordinationDir().isEmpty()) {
+            String node = config.getNodeId().isEmpty() ? LeaseManager.defaultNodeId() : config.getNodeId();
+            LeaseManager manager = new LeaseManager(Paths.get(config.getCoordinationDir()), node,
+                    config.getLeaseSeconds() * 1000L);
+            try {
+                manager.start();
+                leases = manager;
+                engine.setLeases(leases);
+            } catch (IOException e) {
+                // Syncing everything is safer than syncing nothing
+                e.printStackTrace();
+            }
+        }
+        engine.getRateLimits().setGlobal(new RateLimit(config.getMaxBytesPerSec(), config.getMaxFilesPerSec()));
+        engine.getMetrics().registerMBean();
+        if (config.getScrubBytesPerSec() > 0) {
+            scrubber = new Scrubber(index, engine, this::getProfiles, config.getScrubBytesPerSec());
+            scrubber.start();
+        }
+        if (config.getMetricsPort() > 0) {
+            try {
+                metricsServer = new MetricsServer(engine.getMetrics(), config.getMetricsPort());
+                metricsServer.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public ConfigManager getConfig() {
+        return config;
+    }
+
+    public CopyEngine getEngine() {
+        return engine;
+    }
+
+    public SyncMetrics getMetrics() {
+        return engine.getMetrics();
+    }
+
+    public PreviewService getPreviewService() {
+        return previewService;
+    }
+
+    /**
+     * Coordination with other instances, or null if not configured.
+     */
+    public LeaseManager getLeases() {
+        return leases;
+    }
+
+    /**
+     * The running /metrics endpoint, or null if disabled.
+     */
+    public MetricsServer getMetricsServer() {
+        return metricsServer;
+    }
+
+    public ProfileStore getProfileStore() {
+        return config.getProfileStore();
+    }
+
+    /**
+     * Profiles as currently stored in the configuration.
+     */
+    public List<SyncProfile> getProfiles() {
+        return config.getProfileStore().getAll();
+    }
+
+    public List<String> getSourcePaths() {
+        List<String> sources = new ArrayList<>();
+        for (SyncProfile p : getProfiles()) {
+            sources.add(p.getSourcePath());
+        }
+        return sources;
+    }
+
+    /**
+     * Sources to watch for changes: those of profiles scheduled on change,
+     * or of all profiles.
+     */
+    public List<String> getWatchedSources(boolean all) {
+        List<String> sources = new ArrayList<>();
+        for (SyncProfile p : getProfiles()) {
+            if (all || p.getSchedule().isOnChange())
+                sources.add(p.getSourcePath());
+        }
+        return sources;
+    }
+
+    /**
+     * Removes temp files of copies that were interrupted by the last run.
+     */
+    public CompletableFuture<Integer> cleanupTempFiles() {
+        return engine.cleanupTempFiles(getProfiles());
+    }
+
+    /**
+     * Profiles whose last sync was cut off by a crash or kill, to be synced
+     * again right away.
+     */
+    public List<SyncProfile> getInterruptedProfiles() {
+        List<SyncProfile> profiles = new ArrayList<>();
+        for (SyncProfile p : getProfiles()) {
+            if (interrupted.contains(p.getId()))
+                profiles.add(p);
+        }
+        return profiles;
+    }
+
+    /**
+     * What syncing all profiles would do, for a dry run without a running
+     * service. The index and the journal are read but not written, and no
+     * leases, scrubber, version sweeps or metrics are started; with leases
+     * the plan covers every destination, not just this instance's share.
+     */
+    public static SyncPlan planOnly(ConfigManager config) {
+        SyncIndex index = new SyncIndex(config.getConfigDir());
+        index.load();
+        // Writes the last process journaled count as done, as they will be once it is replayed
+        new SyncJournal(config.getConfigDir()).peek(index);
+        CopyEngine engine = new CopyEngine(index, config.getThreads(), config.getPerVolume());
+        engine.setDelta(config.isDelta(), config.getDeltaMinSize());
+        engine.setCompress(config.getCompress(), config.getCompressLevel());
+        engine.setAgentToken(config.getAgentToken());
+        engine.getRateLimits().setGlobal(new RateLimit(config.getMaxBytesPerSec(), config.getMaxFilesPerSec()));
+        SyncPlanner planner = new SyncPlanner(engine, index, config.getConfigDir(), config.getThreads());
+        try {
+            return planner.plan(config.getProfileStore().getAll(), config.isIncremental());
+        } finally {
+            planner.shutdown();
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * What syncing all profiles would do now, without writing anything.
+     * The next sync reuses the plan if nothing changed in between.
+     */
+    public SyncPlan plan() {
+        return planner.plan(getProfiles(), config.isIncremental());
+    }
+
+    public SyncPlanner getPlanner() {
+        return planner;
+    }
+
+    /**
+     * Replaced versions of destinations, or null if none are kept.
+     */
+    public VersionStore getVersions() {
+        return versions;
+    }
+
+    /**
+     * Rolls a local destination back to what it held at the given time, see
+     * VersionStore.restore(). Works with versions from earlier runs even if
+     * none are kept now. Restored files are dropped from the index, so the
+     * next sync copies the source over them again unless it was fixed too.
+     * Returns the number of files restored.
+     */
+    public int restore(String destPath, long time) throws IOException {
+        VersionStore store = versions != null ? versions : new VersionStore(Integer.MAX_VALUE, 0);
+        try {
+            List<Path> restored = store.restore(Paths.get(destPath), time);
+            for (Path file : restored) {
+                index.remove(file.toFile());
+            }
+            index.save();
+            return restored.size();
+        } finally {
+            if (store != versions)
+                store.shutdown();
+        }
+    }
+
+    public Map<SyncProfile, SyncResult> syncOnce() {
+        return engine.syncAll(getProfiles(), config.isIncremental());
+    }
+
+    public void shutdown() {
+        if (scrubber != null)
+            scrubber.shutdown();
+        if (versions != null)
+            versions.shutdown();
+        previewService.shutdown();
+        if (metricsServer != null)
+            metricsServer.stop();
+        engine.getMetrics().unregisterMBean();
+        engine.shutdown();
+        planner.saveRates();
+        planner.shutdown();
+        if (leases != null)
+            leases.shutdown();
+        index.save();
+        journal.shutdown();
+    }
+}
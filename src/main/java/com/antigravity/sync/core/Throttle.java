@@ -0,0 +1,64 @@
+package com.antigravity.sync.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The rate limiters a write to one destination is subject to, e.g. the
+ * global, the profile's and the destination's. Writers call acquireBytes()
+ * before each chunk; it waits for whichever limiter is furthest behind.
+ */
+public class Throttle {
+
+    private static final long MAX_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    public static final Throttle NONE = new Throttle(new RateLimiter[0], new RateLimiter[0], null, null);
+
+    private final RateLimiter[] bytes;
+    private final RateLimiter[] files;
+    private final LongAdder bytesDone;
+    private final LongAdder filesDone;
+
+    Throttle(RateLimiter[] bytes, RateLimiter[] files, LongAdder bytesDone, LongAdder filesDone) {
+        this.bytes = bytes;
+        this.files = files;
+        this.bytesDone = bytesDone;
+        this.filesDone = filesDone;
+    }
+
+    public void acquireBytes(long n) {
+        if (n <= 0)
+            return;
+        acquire(bytes, n);
+        if (bytesDone != null)
+            bytesDone.add(n);
+    }
+
+    public void acquireFile() {
+        acquire(files, 1);
+        if (filesDone != null)
+            filesDone.increment();
+    }
+
+    private static void acquire(RateLimiter[] limiters, long n) {
+        for (RateLimiter l : limiters) {
+            l.reserve(n);
+        }
+        // Checked again every so often, a limit may be raised or lifted meanwhile
+        while (true) {
+            long wait = 0;
+            for (RateLimiter l : limiters) {
+                wait = Math.max(wait, l.waitNanos());
+            }
+            if (wait <= 0)
+                return;
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(wait, MAX_SLEEP_NANOS));
+            } catch (InterruptedException e) {
+                // Shutting down, the write itself will notice
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.antigravity.sync.core;
+
+import java.io.IOException;
+
+/**
+ * A copy that was read back does not match its source, e.g. a write that
+ * a flaky share acknowledged but did not store completely.
+ */
+public class VerificationException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public VerificationException(String destination, long size, long expectedSize) {
+        super(size != expectedSize ? destination + " has " + size + " bytes instead of " + expectedSize
+                : destination + " does not match the source");
+    }
+}
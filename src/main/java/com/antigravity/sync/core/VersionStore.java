@@ -0,0 +1,412 @@
+package com.antigravity.sync.core;
+
+import com.antigravity.sync.agent.AgentUrl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the last versions of destination files that a sync replaced, so a
+ * bad source that was pushed everywhere can be rolled back.
+ *
+ * Versions of dir/name are kept in dir/.syncversions/name/, named by the
+ * UTC time they were replaced (yyyyMMdd-HHmmss.SSS) plus the extension of
+ * the file. Keeping a version costs no data: the current file is hard
+ * linked there before the new copy is renamed over it. That only works
+ * because versioned destinations are never written in place. On file
+ * systems without hard links the file is moved there instead, right before
+ * it is replaced.
+ *
+ * Each time a version is added, the folder of that file is pruned to the
+ * newest versions in the background. With a maximum age, the version
+ * folders of all destinations are also swept every hour.
+ */
+public class VersionStore {
+
+    public static final String DIR_NAME = ".syncversions";
+
+    private static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss.SSS");
+    private static final int STAMP_LENGTH = 19;
+    private static final long SWEEP_MILLIS = 60 * 60 * 1000L;
+
+    private final int keep;
+    private final long maxAgeMillis;
+    private final ScheduledExecutorService pruner;
+    // version folders waiting to be pruned
+    private final Set<Path> queued = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param keep         versions kept per file
+     * @param maxAgeMillis versions replaced longer ago are removed, 0 keeps
+     *                     them regardless of age
+     */
+    public VersionStore(int keep, long maxAgeMillis) {
+        this.keep = Math.max(1, keep);
+        this.maxAgeMillis = maxAgeMillis;
+        this.pruner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sync-versions");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Starts sweeping old versions out of the destinations of the profiles,
+     * if there is a maximum age.
+     */
+    public void start(Supplier<List<SyncProfile>> profiles) {
+        if (maxAgeMillis > 0)
+            pruner.scheduleWithFixedDelay(() -> sweep(profiles.get()), 0, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        pruner.shutdownNow();
+    }
+
+    public int getKeep() {
+        return keep;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * The folder the versions of file are kept in.
+     */
+    public static Path versionsFor(Path file) {
+        return file.resolveSibling(DIR_NAME).resolve(file.getFileName().toString());
+    }
+
+    /**
+     * Keeps the current content of file as a version before it is replaced
+     * by hard linking it. Returns false if the file system has no hard
+     * links; moveAside() has to be called right before replacing it then.
+     */
+    public boolean keep(Path file) throws IOException {
+        Path dir = versionsFor(file);
+        List<Path> versions = list(dir);
+        // A sync that failed after keeping it, or is repeated, does not keep it twice
+        if (!versions.isEmpty() && isSame(versions.get(0), file))
+            return true;
+        for (int attempt = 0;; attempt++) {
+            Files.createDirectories(dir);
+            try {
+                Files.createLink(newVersion(dir, file), file);
+                break;
+            } catch (NoSuchFileException e) {
+                if (!Files.exists(file))
+                    return true;
+                // The folder was pruned away meanwhile
+                if (attempt > 0)
+                    throw e;
+            } catch (FileAlreadyExistsException e) {
+                if (attempt > 2)
+                    throw e;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                return false;
+            }
+        }
+        schedulePrune(dir);
+        return true;
+    }
+
+    /**
+     * Moves file into its version folder, for file systems without hard
+     * links.
+     */
+    public void moveAside(Path file) throws IOException {
+        Path dir = versionsFor(file);
+        Files.createDirectories(dir);
+        try {
+            Files.move(file, newVersion(dir, file), StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        schedulePrune(dir);
+    }
+
+    /**
+     * The versions kept of file, newest first.
+     */
+    public List<Path> versions(Path file) {
+        return list(versionsFor(file));
+    }
+
+    /**
+     * When a version was replaced, or -1 if it is not a version.
+     */
+    public static long replacedAt(Path version) {
+        String name = version.getFileName().toString();
+        if (name.length() < STAMP_LENGTH)
+            return -1;
+        try {
+            return LocalDateTime.parse(name.substring(0, STAMP_LENGTH), STAMP).toInstant(ZoneOffset.UTC)
+                    .toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Rolls the files below destDir back to what they were at the given
+     * time. A file that was replaced since gets back the oldest version
+     * replaced after that time; files that did not change since are left
+     * alone, as are files that did not exist yet. Only the names in the
+     * version folders are read, and versions are linked back rather than
+     * copied where possible. What a file held before the restore is kept
+     * as a version too, so a restore can be undone. Returns the files that
+     * were restored.
+     */
+    public List<Path> restore(Path destDir, long time) throws IOException {
+        List<Path> restored = new ArrayList<>();
+        Files.walkFileTree(destDir.toAbsolutePath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String name = dir.getFileName() == null ? "" : dir.getFileName().toString();
+                if (name.equals(DedupStore.DIR_NAME))
+                    return FileVisitResult.SKIP_SUBTREE;
+                if (!name.equals(DIR_NAME))
+                    return FileVisitResult.CONTINUE;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path versionDir : files) {
+                        Path file = dir.resolveSibling(versionDir.getFileName().toString());
+                        Path version = versionAt(list(versionDir), time);
+                        try {
+                            if (version != null && restore(file, version))
+                                restored.add(file);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return restored;
+    }
+
+    /**
+     * Parses a point in time to restore to: a local date and time such as
+     * 2024-05-31 14:00 (seconds optional) or how long ago, e.g. 90m, 2h or
+     * 1d.
+     */
+    public static long parseTime(String text) {
+        String s = text.trim();
+        if (s.matches("\\d+[smhd]")) {
+            long n = Long.parseLong(s.substring(0, s.length() - 1));
+            long unit;
+            switch (s.charAt(s.length() - 1)) {
+            case 's':
+                unit = 1000L;
+                break;
+            case 'm':
+                unit = 60 * 1000L;
+                break;
+            case 'h':
+                unit = 60 * 60 * 1000L;
+                break;
+            default:
+                unit = 24 * 60 * 60 * 1000L;
+            }
+            return System.currentTimeMillis() - n * unit;
+        }
+        s = s.replace(' ', 'T');
+        if (s.length() == 16)
+            s += ":00";
+        try {
+            return LocalDateTime.parse(s).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Not a time: " + text + " (use yyyy-MM-dd HH:mm or e.g. 2h)");
+        }
+    }
+
+    /**
+     * The content the file had at the given time: the oldest version that
+     * was replaced after it, or null if the file has not changed since.
+     */
+    private static Path versionAt(List<Path> versions, long time) {
+        Path found = null;
+        for (Path v : versions) {
+            if (replacedAt(v) <= time)
+                break;
+            found = v;
+        }
+        return found;
+    }
+
+    private boolean restore(Path file, Path version) throws IOException {
+        if (Files.exists(file) && Files.isSameFile(file, version))
+            return false;
+        Path temp = AtomicWrite.tempFor(file);
+        try {
+            try {
+                Files.createLink(temp, version);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                Files.copy(version, temp, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            if (Files.exists(file) && !keep(file))
+                moveAside(file);
+            AtomicWrite.commit(temp, file, false);
+        } catch (IOException e) {
+            AtomicWrite.discard(temp);
+            throw e;
+        }
+        return true;
+    }
+
+    private Path newVersion(Path dir, Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String extension = dot > 0 ? name.substring(dot) : "";
+        // Another version in the same millisecond gets the next one
+        long now = System.currentTimeMillis();
+        Path version;
+        do {
+            version = dir.resolve(LocalDateTime.ofEpochSecond(now / 1000, (int) (now % 1000) * 1000000,
+                    ZoneOffset.UTC).format(STAMP) + extension);
+            now++;
+        } while (Files.exists(version));
+        return version;
+    }
+
+    private static boolean isSame(Path a, Path b) {
+        try {
+            return Files.isSameFile(a, b);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static List<Path> list(Path dir) {
+        List<Path> versions = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                if (replacedAt(f) >= 0)
+                    versions.add(f);
+            }
+        } catch (IOException e) {
+            return versions;
+        }
+        // The names sort by time
+        versions.sort(Collections.reverseOrder());
+        return versions;
+    }
+
+    private void schedulePrune(Path dir) {
+        if (queued.add(dir)) {
+            try {
+                pruner.execute(() -> {
+                    queued.remove(dir);
+                    prune(dir);
+                });
+            } catch (RuntimeException e) {
+                // shut down, the next sweep or version prunes it
+                queued.remove(dir);
+            }
+        }
+    }
+
+    /**
+     * Removes the versions of one file beyond the count or age limit, and
+     * its folder once it is empty. Returns the number removed.
+     */
+    int prune(Path dir) {
+        List<Path> versions = list(dir);
+        long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+        int removed = 0;
+        for (int i = 0; i < versions.size(); i++) {
+            Path v = versions.get(i);
+            try {
+                if ((i >= keep || replacedAt(v) < cutoff) && Files.deleteIfExists(v))
+                    removed++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (removed > 0 && removed == versions.size()) {
+            try {
+                Files.deleteIfExists(dir);
+            } catch (DirectoryNotEmptyException e) {
+                // a version was added meanwhile
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Prunes the version folders below the local destinations of the
+     * profiles. Returns the number of versions removed.
+     */
+    int sweep(List<SyncProfile> profiles) {
+        int[] removed = { 0 };
+        SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String name = dir.getFileName() == null ? "" : dir.getFileName().toString();
+                if (name.equals(DedupStore.DIR_NAME))
+                    return FileVisitResult.SKIP_SUBTREE;
+                if (!name.equals(DIR_NAME))
+                    return FileVisitResult.CONTINUE;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path versionDir : files) {
+                        removed[0] += prune(versionDir);
+                    }
+                }
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        };
+        for (SyncProfile profile : profiles) {
+            // Versions of a single file or pattern are right below the destination
+            int depth = SourceWalker.isTree(profile.getSourcePath()) ? Integer.MAX_VALUE : 2;
+            for (String destPath : profile.getDestPaths()) {
+                if (AgentUrl.isAgent(destPath))
+                    continue;
+                try {
+                    Files.walkFileTree(new File(destPath).toPath(), Collections.emptySet(), depth, visitor);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return removed[0];
+    }
+}
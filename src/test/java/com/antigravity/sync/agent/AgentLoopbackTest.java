@@ -0,0 +1,92 @@
+package com.antigravity.sync.agent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.antigravity.sync.core.SyncIndex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Pushes files through a real AgentServer on a loopback port.
+ */
+class AgentLoopbackTest {
+
+    private static final long TIMEOUT = 10000;
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void pushWritesTheBytesAndModificationTime() throws IOException {
+        // Several chunks plus a partial one
+        byte[] data = new byte[AgentProtocol.CHUNK_SIZE * 3 + 12345];
+        new Random(7).nextBytes(data);
+        Path source = tmp.resolve("source.bin");
+        Files.write(source, data);
+        long modified = 1500000000000L;
+
+        AgentServer server = new AgentServer(tmp.resolve("share"), 0, "secret");
+        server.start();
+        try (AgentClient client = AgentClient.connect("127.0.0.1", server.getPort(), "secret", TIMEOUT)) {
+            assertFalse(client.stat("sub/target.bin", TIMEOUT).exists);
+
+            AgentClient.Pushed pushed = client.push(source, "sub/target.bin", data.length, modified, TIMEOUT);
+            assertEquals(data.length, pushed.sent);
+            assertEquals(SyncIndex.hash(source), pushed.hash);
+
+            Path target = tmp.resolve("share/sub/target.bin");
+            assertArrayEquals(data, Files.readAllBytes(target));
+            assertEquals(modified, Files.getLastModifiedTime(target).toMillis());
+            AgentClient.Stat stat = client.stat("sub/target.bin", TIMEOUT);
+            assertTrue(stat.exists);
+            assertEquals(data.length, stat.size);
+            assertEquals(modified, stat.modified);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void wrongTokenIsRejected() throws IOException {
+        AgentServer server = new AgentServer(tmp.resolve("share"), 0, "secret");
+        server.start();
+        try {
+            assertThrows(IOException.class, () -> AgentClient.connect("127.0.0.1", server.getPort(), "other", TIMEOUT));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void pathsOutsideTheRootAreRefused() throws IOException {
+        Path source = tmp.resolve("source.bin");
+        Files.write(source, new byte[] { 1, 2, 3 });
+        AgentServer server = new AgentServer(tmp.resolve("share"), 0, "");
+        server.start();
+        try (AgentClient client = AgentClient.connect("127.0.0.1", server.getPort(), "", TIMEOUT)) {
+            assertThrows(IOException.class, () -> client.push(source, "../escaped.bin", 3, 0, TIMEOUT));
+            assertFalse(Files.exists(tmp.resolve("escaped.bin")));
+            // The connection stays usable after a refused request
+            client.push(source, "ok.bin", 3, 0, TIMEOUT);
+            assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(tmp.resolve("share/ok.bin")));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void noTokenOnlyOnLoopback() throws IOException {
+        AgentServer server = new AgentServer(tmp.resolve("share"), "0.0.0.0", 0, "");
+        assertThrows(IOException.class, server::start);
+    }
+}
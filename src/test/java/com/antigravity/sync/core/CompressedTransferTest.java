@@ -0,0 +1,99 @@
+package com.antigravity.sync.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompressedTransferTest {
+
+    private static final Executor DIRECT = Runnable::run;
+
+    @TempDir
+    Path tmp;
+
+    private Path source;
+    private Path target;
+    private byte[] data;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // Half random, half zeros: some frames deflated, some stored
+        data = new byte[3 * CompressedTransfer.CHUNK_SIZE + 1234];
+        byte[] noise = new byte[data.length / 2];
+        new Random(1).nextBytes(noise);
+        System.arraycopy(noise, 0, data, 0, noise.length);
+        source = tmp.resolve("source.bin");
+        target = tmp.resolve("target.bin");
+        Files.write(source, data);
+    }
+
+    @Test
+    void packedFileUnpacksToTheSource() throws IOException {
+        CompressedTransfer.Stats stats = CompressedTransfer.pack(source, target, 123000, DIRECT, 2, 1, false);
+        assertEquals(data.length, stats.sourceSize);
+        assertTrue(stats.packedSize < data.length);
+
+        Path staging = CompressedTransfer.stagingFor(target);
+        assertEquals(data.length, CompressedTransfer.unpack(staging, false));
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertEquals(123000, Files.getLastModifiedTime(target).toMillis());
+        assertFalse(Files.exists(staging));
+    }
+
+    @Test
+    void sourceThatShrinksWhilePackedFails() {
+        assertChangeFails(CompressedTransfer.CHUNK_SIZE + 10);
+    }
+
+    @Test
+    void sourceThatGrowsWhilePackedFails() {
+        assertChangeFails(data.length + 10);
+    }
+
+    private void assertChangeFails(long newSize) {
+        // Resizes the source once the first frame is ready, while the rest is still unread
+        Throttle resize = new Throttle(new RateLimiter[0], new RateLimiter[0], null, null) {
+            private boolean done;
+
+            @Override
+            public void acquireBytes(long n) {
+                if (!done) {
+                    done = true;
+                    resize(newSize);
+                }
+            }
+        };
+        IOException e = assertThrows(IOException.class,
+                () -> CompressedTransfer.pack(source, target, 0, DIRECT, 1, 1, false, resize));
+        assertTrue(e.getMessage().startsWith("Source changed"), e.getMessage());
+        assertFalse(Files.exists(CompressedTransfer.stagingFor(target)));
+    }
+
+    private void resize(long size) {
+        try (FileChannel ch = FileChannel.open(source, StandardOpenOption.WRITE)) {
+            if (size < ch.size()) {
+                ch.truncate(size);
+            } else {
+                ch.write(ByteBuffer.allocate((int) (size - ch.size())), ch.size());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
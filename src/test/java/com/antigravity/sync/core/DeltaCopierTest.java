@@ -0,0 +1,124 @@
+package com.antigravity.sync.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Updates an old copy to a changed source with DeltaCopier, in place and
+ * through a temp file, and checks the result byte for byte.
+ */
+class DeltaCopierTest {
+
+    private static final int SIZE = 300 * 1024;
+
+    @TempDir
+    Path tmp;
+
+    private final byte[] old = random(SIZE, 1);
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void unchanged(boolean inPlace) throws IOException {
+        DeltaCopier.Stats stats = roundTrip(old, inPlace);
+        assertEquals(SIZE, stats.matchedBytes);
+        if (inPlace)
+            assertEquals(0, stats.bytesWritten);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void insertion(boolean inPlace) throws IOException {
+        byte[] inserted = random(5000, 2);
+        DeltaCopier.Stats stats = roundTrip(concat(Arrays.copyOfRange(old, 0, 100000), inserted,
+                Arrays.copyOfRange(old, 100000, SIZE)), inPlace);
+        assertMostlyMatched(stats);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void deletion(boolean inPlace) throws IOException {
+        DeltaCopier.Stats stats = roundTrip(concat(Arrays.copyOfRange(old, 0, 50000),
+                Arrays.copyOfRange(old, 57777, SIZE)), inPlace);
+        assertMostlyMatched(stats);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void shrunk(boolean inPlace) throws IOException {
+        DeltaCopier.Stats stats = roundTrip(Arrays.copyOfRange(old, 0, 123457), inPlace);
+        assertTrue(stats.literalBytes < DeltaCopier.MIN_BLOCK_SIZE * 2);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void grown(boolean inPlace) throws IOException {
+        DeltaCopier.Stats stats = roundTrip(concat(old, random(70000, 3)), inPlace);
+        assertTrue(stats.matchedBytes >= SIZE - DeltaCopier.MIN_BLOCK_SIZE);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void scatteredEdits(boolean inPlace) throws IOException {
+        byte[] edited = old.clone();
+        for (int i = 1000; i < SIZE; i += 40000) {
+            edited[i] ^= 0x5a;
+        }
+        DeltaCopier.Stats stats = roundTrip(edited, inPlace);
+        assertMostlyMatched(stats);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void nothingInCommon(boolean inPlace) throws IOException {
+        DeltaCopier.Stats stats = roundTrip(random(SIZE / 2, 4), inPlace);
+        assertEquals(SIZE / 2, stats.literalBytes);
+    }
+
+    private DeltaCopier.Stats roundTrip(byte[] data, boolean inPlace) throws IOException {
+        Path source = tmp.resolve("source.bin");
+        Path dest = tmp.resolve("dest.bin");
+        Files.write(source, data);
+        Files.write(dest, old);
+        DeltaCopier.Stats stats = DeltaCopier.sync(source, dest, inPlace, false);
+        assertArrayEquals(data, Files.readAllBytes(dest));
+        assertEquals(data.length, stats.fileSize);
+        assertEquals(data.length, stats.literalBytes + stats.matchedBytes);
+        assertEquals(SyncIndex.hash(source), stats.sourceHash);
+        return stats;
+    }
+
+    private static void assertMostlyMatched(DeltaCopier.Stats stats) {
+        assertTrue(stats.matchedBytes > stats.fileSize * 3 / 4, stats.toString());
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int size = 0;
+        for (byte[] p : parts) {
+            size += p.length;
+        }
+        byte[] all = new byte[size];
+        int off = 0;
+        for (byte[] p : parts) {
+            System.arraycopy(p, 0, all, off, p.length);
+            off += p.length;
+        }
+        return all;
+    }
+}
@@ -0,0 +1,142 @@
+package com.antigravity.sync.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Several nodes on one coordination folder, in this JVM and in a forked one.
+ */
+class LeaseManagerTest {
+
+    private static final long LEASE_MILLIS = 3000;
+    private static final List<String> DESTS = Arrays.asList("/d1", "/d2", "/d3", "/d4", "/d5", "/d6", "/d7", "/d8");
+    private static final SyncProfile PROFILE = new SyncProfile("p1", "P", "/src", DESTS);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void destinationsAreSplitAndLeasesRenewed() throws Exception {
+        LeaseManager a = new LeaseManager(dir, "A", LEASE_MILLIS);
+        LeaseManager b = new LeaseManager(dir, "B", LEASE_MILLIS);
+        a.start();
+        b.start();
+        try {
+            await(() -> a.getLiveNodes().size() == 2 && b.getLiveNodes().size() == 2);
+            SyncProfile ofA = a.claim(PROFILE);
+            SyncProfile ofB = b.claim(PROFILE);
+            Set<String> all = new HashSet<>(ofA.getDestPaths());
+            all.addAll(ofB.getDestPaths());
+            assertEquals(new HashSet<>(DESTS), all);
+            assertEquals(DESTS.size(), ofA.getDestPaths().size() + ofB.getDestPaths().size());
+
+            // Renewed on the heartbeat well past one lease period
+            Thread.sleep(LEASE_MILLIS * 2);
+            assertEquals(DESTS.size(), a.getHeldLeases().size() + b.getHeldLeases().size());
+            // Neither node gets the other's destinations while their leases live
+            assertNull(b.claim(ofA));
+            assertNull(a.claim(ofB));
+            assertNull(b.claim(ofA));
+
+            a.release(ofA);
+            b.release(ofB);
+            assertTrue(a.getHeldLeases().isEmpty());
+            assertTrue(b.getHeldLeases().isEmpty());
+        } finally {
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+
+    @Test
+    void leasesOfAKilledJvmAreTakenOver() throws Exception {
+        String cp = location(LeaseManager.class) + File.pathSeparator + location(LeaseManagerTest.class);
+        Process child = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", cp, Child.class.getName(), dir.toString()).redirectErrorStream(true).start();
+        LeaseManager b = new LeaseManager(dir, "B", LEASE_MILLIS);
+        try {
+            b.start();
+            BufferedReader out = new BufferedReader(
+                    new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8));
+            List<String> ofChild = new ArrayList<>();
+            String line;
+            while ((line = out.readLine()) != null && !line.equals("ready")) {
+                if (line.startsWith("claimed "))
+                    ofChild.addAll(Arrays.asList(line.substring(8).split(" ")));
+            }
+            assertFalse(ofChild.isEmpty());
+
+            await(() -> b.getLiveNodes().contains("child"));
+            SyncProfile ofB = b.claim(PROFILE);
+            assertEquals(DESTS.size() - ofChild.size(), ofB.getDestPaths().size());
+            b.release(ofB);
+
+            // Killed without releasing anything
+            child.destroyForcibly().waitFor();
+            List<String> claimed = new ArrayList<>();
+            await(() -> {
+                SyncProfile p = b.claim(PROFILE);
+                claimed.clear();
+                if (p != null) {
+                    claimed.addAll(p.getDestPaths());
+                    b.release(p);
+                }
+                return claimed.size() == DESTS.size();
+            });
+            await(() -> !b.getLiveNodes().contains("child"));
+        } finally {
+            child.destroyForcibly();
+            b.shutdown();
+        }
+    }
+
+    private static String location(Class<?> c) throws Exception {
+        return Paths.get(c.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + LEASE_MILLIS * 5;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < end, "timed out");
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * The other node: claims its share next to B and holds it until killed.
+     */
+    static class Child {
+        public static void main(String[] args) throws Exception {
+            LeaseManager leases = new LeaseManager(Paths.get(args[0]), "child", LEASE_MILLIS);
+            leases.start();
+            while (!leases.getLiveNodes().contains("B")) {
+                Thread.sleep(100);
+            }
+            SyncProfile mine = leases.claim(PROFILE);
+            System.out.println("claimed " + String.join(" ", mine == null ? Collections.emptyList()
+                    : mine.getDestPaths()));
+            System.out.println("ready");
+            System.out.flush();
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.antigravity.sync.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+import org.junit.jupiter.api.Test;
+
+class ScheduleTest {
+
+    // A Saturday
+    private static final LocalDateTime NOW = LocalDateTime.of(2026, 10, 17, 12, 0);
+
+    @Test
+    void parsesTheKinds() {
+        assertTrue(Schedule.parse("").isDefault());
+        assertTrue(Schedule.parse(" Change ").isOnChange());
+        assertTrue(Schedule.parse("cron 0 * * * *").isCron());
+        assertEquals("every 90s", Schedule.parse("every 90 s").toString());
+        assertEquals("cron */5 1 * * *", Schedule.parse("cron  */5  1 * * *").toString());
+    }
+
+    @Test
+    void rejectsBrokenSpecs() {
+        assertThrows(IllegalArgumentException.class, () -> Schedule.parse("every 5"));
+        assertThrows(IllegalArgumentException.class, () -> Schedule.parse("every 0m"));
+        assertThrows(IllegalArgumentException.class, () -> Schedule.parse("cron * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> Schedule.parse("cron 60 * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> Schedule.parse("cron * * 0 * *"));
+        assertThrows(IllegalArgumentException.class, () -> Schedule.parse("cron * * * * 8"));
+        assertThrows(IllegalArgumentException.class, () -> Schedule.parse("hourly"));
+    }
+
+    @Test
+    void intervalsAndDefault() {
+        long now = millis(NOW);
+        assertEquals(now + 90000, Schedule.parse("every 90s").next(now, 1000));
+        assertEquals(now + 2 * 3600000, Schedule.parse("every 2h").next(now, 1000));
+        assertEquals(now + 1000, Schedule.DEFAULT.next(now, 1000));
+        assertEquals(Long.MAX_VALUE, Schedule.parse("change").next(now, 1000));
+    }
+
+    @Test
+    void cronFields() {
+        assertNext("cron * * * * *", NOW.plusMinutes(1));
+        assertNext("cron 30 * * * *", NOW.withMinute(30));
+        assertNext("cron 0 * * * *", NOW.plusHours(1));
+        assertNext("cron 15 9 * * *", NOW.plusDays(1).withHour(9).withMinute(15));
+        assertNext("cron 0 0 * 1 *", LocalDateTime.of(2027, 1, 1, 0, 0));
+        // Sunday as 0 and as 7
+        assertNext("cron 0 8 * * 0", LocalDateTime.of(2026, 10, 18, 8, 0));
+        assertNext("cron 0 8 * * 7", LocalDateTime.of(2026, 10, 18, 8, 0));
+    }
+
+    @Test
+    void cronListsRangesAndSteps() {
+        assertNext("cron 10,40 * * * *", NOW.withMinute(10));
+        assertNext("cron 0 13-15 * * *", NOW.withHour(13));
+        assertNext("cron */20 * * * *", NOW.withMinute(20));
+        assertNext("cron 5/20 * * * *", NOW.withMinute(5));
+        assertNext("cron 0 0-12/6 * * *", NOW.plusDays(1).withHour(0));
+        assertNext("cron 0 0 * * 1-5", LocalDateTime.of(2026, 10, 19, 0, 0));
+    }
+
+    @Test
+    void restrictedDayFieldsMatchEither() {
+        // The 13th or any Friday, whichever comes first
+        assertNext("cron 0 0 13 * 5", LocalDateTime.of(2026, 10, 23, 0, 0));
+        assertNext("cron 0 0 1 * 1", LocalDateTime.of(2026, 10, 19, 0, 0));
+        // A range that happens to cover every day still counts as restricted
+        assertNext("cron 0 0 1 * 0-6", NOW.plusDays(1).withHour(0));
+        assertNext("cron 0 0 1-31 * 1", NOW.plusDays(1).withHour(0));
+    }
+
+    @Test
+    void aStarDayFieldLeavesTheOtherOneInCharge() {
+        assertNext("cron 0 0 1 * *", LocalDateTime.of(2026, 11, 1, 0, 0));
+        assertNext("cron 0 0 * * 1", LocalDateTime.of(2026, 10, 19, 0, 0));
+    }
+
+    @Test
+    void impossibleDatesNeverFire() {
+        assertEquals(Long.MAX_VALUE, Schedule.parse("cron 0 0 31 2 *").next(millis(NOW), 1000));
+        assertEquals(Long.MAX_VALUE, Schedule.parse("cron 0 0 30 2 *").next(millis(NOW), 1000));
+    }
+
+    private static void assertNext(String spec, LocalDateTime expected) {
+        long next = Schedule.parse(spec).next(millis(NOW), 1000);
+        assertEquals(expected, LocalDateTime.ofInstant(Instant.ofEpochMilli(next), ZoneId.systemDefault()), spec);
+    }
+
+    private static long millis(LocalDateTime t) {
+        return t.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,117 @@
+package com.antigravity.sync.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SyncJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replayRestoresCompletedWritesAndFindsInterruptedRuns() throws IOException {
+        journal(
+                // finished
+                "R,1,p1", "W,1,p1,k1", "D,10,100,h1,10,101,k1", "E,1",
+                // killed after one of its writes completed
+                "R,2,p2", "W,2,p2,k2", "D,20,200,h2,20,201,k2",
+                // killed during a write
+                "R,3,p3", "W,3,p3,k3",
+                // finished, its write failed and was left to the engine
+                "R,4,p4", "W,4,p4,k4", "E,4",
+                // cut off by the crash
+                "D,50,500");
+
+        SyncIndex index = new SyncIndex(dir.toFile());
+        SyncJournal journal = new SyncJournal(dir.toFile());
+        assertEquals(new HashSet<>(Arrays.asList("p2", "p3")), journal.replay(index));
+        journal.shutdown();
+
+        SyncIndex.Entry k1 = index.get("k1");
+        assertNotNull(k1);
+        assertEquals(10, k1.sourceSize);
+        assertEquals(100, k1.sourceModified);
+        assertEquals("h1", k1.sourceHash);
+        assertEquals(101, k1.destModified);
+        assertEquals("h2", index.get("k2").sourceHash);
+        assertNull(index.get("k3"));
+        assertNull(index.get("k4"));
+
+        // Saved, and the journal starts over
+        SyncIndex reloaded = new SyncIndex(dir.toFile());
+        reloaded.load();
+        assertEquals("h2", reloaded.get("k2").sourceHash);
+        assertEquals(Collections.emptyList(), lines());
+    }
+
+    @Test
+    void journalIsKeptWhenTheIndexCannotBeSaved() throws IOException {
+        journal("R,1,p1", "W,1,p1,k1", "D,10,100,h1,10,101,k1");
+        // The index is written to a temp file first, a folder in its way makes that fail
+        Files.createDirectory(dir.resolve("sync-index.csv.tmp"));
+
+        SyncJournal journal = new SyncJournal(dir.toFile());
+        assertEquals(Collections.singleton("p1"), journal.replay(new SyncIndex(dir.toFile())));
+        journal.shutdown();
+        assertEquals(3, lines().size());
+    }
+
+    @Test
+    void compactionKeepsOnlyWhatIsStillOpen() throws IOException {
+        SyncIndex index = new SyncIndex(dir.toFile());
+        SyncJournal journal = new SyncJournal(dir.toFile());
+        journal.replay(index);
+        index.setJournal(journal);
+        SyncProfile profile = new SyncProfile("p1", "P", "", Collections.emptyList());
+
+        String run = journal.runStarted(Collections.singletonList(profile));
+        journal.planned(profile, "k1");
+        index.put("k1", new SyncIndex.Entry(1, 2, "h1", 1, 3));
+        journal.planned(profile, "k2");
+        journal.flush();
+        assertEquals(4, lines().size());
+
+        journal.compact();
+        assertEquals(Arrays.asList("R," + run + ",p1", "W," + run + ",p1,k2"), lines());
+        journal.shutdown();
+
+        // A crash now: k1 is in the saved index, the run is resumed
+        SyncIndex restarted = new SyncIndex(dir.toFile());
+        restarted.load();
+        assertEquals("h1", restarted.get("k1").sourceHash);
+        SyncJournal again = new SyncJournal(dir.toFile());
+        assertEquals(Collections.singleton("p1"), again.replay(restarted));
+        again.shutdown();
+
+        // A finished run leaves nothing behind
+        SyncJournal finished = new SyncJournal(dir.toFile());
+        finished.replay(restarted);
+        String next = finished.runStarted(Collections.singletonList(profile));
+        finished.runFinished(next);
+        finished.compact();
+        finished.shutdown();
+        assertTrue(lines().isEmpty());
+    }
+
+    private void journal(String... records) throws IOException {
+        Files.write(dir.resolve("sync-journal.log"), Arrays.asList(records), StandardCharsets.UTF_8);
+    }
+
+    private List<String> lines() throws IOException {
+        return Files.readAllLines(dir.resolve("sync-journal.log"), StandardCharsets.UTF_8);
+    }
+}
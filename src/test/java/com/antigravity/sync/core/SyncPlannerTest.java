@@ -0,0 +1,118 @@
+package com.antigravity.sync.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SyncPlannerTest {
+
+    @TempDir
+    Path tmp;
+
+    private Path src;
+    private Path d1;
+    private Path d2;
+    private CopyEngine engine;
+    private SyncPlanner planner;
+    private List<SyncProfile> profiles;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        src = Files.createDirectories(tmp.resolve("src"));
+        d1 = tmp.resolve("d1");
+        d2 = tmp.resolve("d2");
+        for (int i = 0; i < 5; i++) {
+            Files.write(src.resolve("f" + i), ("file " + i).getBytes());
+        }
+        SyncIndex index = new SyncIndex(tmp.toFile());
+        engine = new CopyEngine(index, 2, 2);
+        planner = new SyncPlanner(engine, index, tmp.toFile(), 2);
+        engine.setPlanner(planner);
+        profiles = Collections.singletonList(new SyncProfile("1", "p", src.toString(),
+                Arrays.asList(d1.toString(), d2.toString())));
+    }
+
+    @AfterEach
+    void tearDown() {
+        planner.shutdown();
+        engine.shutdown();
+    }
+
+    @Test
+    void planIsNotReusedOnceADestinationFileChanged() throws Exception {
+        engine.syncAll(profiles, true);
+        SyncPlan plan = planner.plan(profiles, true);
+        assertEquals(0, plan.getFilesToCopy());
+        assertEquals(10, plan.getProfiles().get(0).getFilesUpToDate());
+
+        Files.delete(d1.resolve("f0"));
+        Files.write(d2.resolve("f1"), "changed".getBytes());
+        SyncResult result = engine.syncAll(profiles, true).values().iterator().next();
+        assertEquals(2, result.getCopied());
+        assertArrayEquals(Files.readAllBytes(src.resolve("f0")), Files.readAllBytes(d1.resolve("f0")));
+        assertArrayEquals(Files.readAllBytes(src.resolve("f1")), Files.readAllBytes(d2.resolve("f1")));
+    }
+
+    @Test
+    void dryRunReadsTheJournalAndWritesNothing() throws Exception {
+        ConfigManager config = new ConfigManager(tmp.resolve("root").toString());
+        config.load();
+        config.getProfileStore().create("p", src.toString(), Collections.singletonList(d1.toString()));
+        // f0 was copied by a process that died before saving the index
+        Path source = src.resolve("f0");
+        Path dest = Files.createDirectories(d1).resolve("f0");
+        Files.copy(source, dest);
+        String key = dest.toFile().getAbsolutePath();
+        Path configDir = config.getConfigDir().toPath();
+        Files.write(configDir.resolve("sync-journal.log"), Arrays.asList("R,1,1", "W,1,1," + key,
+                "D," + Files.size(source) + "," + Files.getLastModifiedTime(source).toMillis() + ",h,"
+                        + Files.size(dest) + "," + Files.getLastModifiedTime(dest).toMillis() + "," + key));
+        Map<String, Long> before = listing(configDir);
+
+        SyncPlan plan = SyncService.planOnly(config);
+        assertEquals(4, plan.getFilesToCopy());
+        assertEquals(1, plan.getProfiles().get(0).getFilesUpToDate());
+        assertEquals(before, listing(configDir));
+        assertEquals(3, Files.readAllLines(configDir.resolve("sync-journal.log")).size());
+    }
+
+    private static Map<String, Long> listing(Path dir) throws IOException {
+        Map<String, Long> files = new TreeMap<>();
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) s::iterator) {
+                files.put(dir.relativize(p).toString(), Files.isDirectory(p) ? -1 : Files.size(p));
+            }
+        }
+        return files;
+    }
+
+    @Test
+    void destinationDeferredAtPlanTimeIsSyncedWhenItRecovers() throws Exception {
+        for (int i = 0; i < DestinationHealth.FAILURE_THRESHOLD; i++) {
+            engine.getHealth().recordFailure(d2.toString());
+        }
+        SyncPlan plan = planner.plan(profiles, true);
+        assertEquals(5, plan.getFilesToCopy());
+
+        engine.getHealth().recordSuccess(d2.toString());
+        SyncResult result = engine.syncAll(profiles, true).values().iterator().next();
+        assertEquals(10, result.getCopied());
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(Files.readAllBytes(src.resolve("f" + i)), Files.readAllBytes(d2.resolve("f" + i)));
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.antigravity.sync.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs the scheduler against an engine whose profile runs finish only when
+ * the test lets them.
+ */
+class SyncSchedulerTest {
+
+    private static final SyncProfile A = new SyncProfile("a", "A", "", Collections.emptyList());
+    private static final SyncProfile B = new SyncProfile("b", "B", "", Collections.emptyList());
+
+    @TempDir
+    Path tmp;
+
+    private GatedEngine engine;
+    private SyncScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        engine = new GatedEngine(new SyncIndex(tmp.toFile()));
+        scheduler = new SyncScheduler(engine, () -> Arrays.asList(A, B), new NoListener());
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+        engine.shutdown();
+    }
+
+    @Test
+    void profileRequeuedWhileItsBatchRunsNeverRunsTwice() throws InterruptedException {
+        scheduler.resume(Arrays.asList(A, B));
+        await(() -> engine.active("a") == 1);
+
+        // A is done, B keeps the first batch going while A runs again
+        engine.release("a");
+        await(() -> engine.active("b") == 1);
+        scheduler.resume(Collections.singletonList(A));
+        await(() -> engine.active("a") == 1 && engine.runs("a") == 2);
+
+        // The end of the first batch must not free A, which is still running
+        engine.release("b");
+        await(() -> engine.runs("b") == 1 && engine.active("b") == 0);
+        scheduler.resume(Collections.singletonList(A));
+        Thread.sleep(300);
+        assertEquals(2, engine.runs("a"));
+
+        engine.release("a");
+        await(() -> engine.runs("a") == 3);
+        engine.release("a");
+        await(() -> !scheduler.isRunning());
+        assertEquals(1, engine.maxActive("a"));
+    }
+
+    @Test
+    void waitingRunsOfAProfileAreCoalesced() throws InterruptedException {
+        assertTrue(scheduler.resume(Collections.singletonList(A)));
+        await(() -> engine.active("a") == 1);
+        // Runs once more after the current run, however often it is asked for
+        assertTrue(scheduler.resume(Collections.singletonList(A)));
+        assertFalse(scheduler.resume(Collections.singletonList(A)));
+        assertFalse(scheduler.resume(Arrays.asList(A, A)));
+
+        engine.release("a");
+        await(() -> engine.runs("a") == 2);
+        engine.release("a");
+        await(() -> !scheduler.isRunning());
+        Thread.sleep(300);
+        assertEquals(2, engine.runs("a"));
+    }
+
+    @Test
+    void higherPriorityRunsFirst() throws InterruptedException {
+        SyncProfile low = new SyncProfile("low", "Low", "", Collections.emptyList(), RateLimit.NONE,
+                Collections.emptyMap(), Schedule.DEFAULT, -1);
+        SyncProfile high = new SyncProfile("high", "High", "", Collections.emptyList(), RateLimit.NONE,
+                Collections.emptyMap(), Schedule.DEFAULT, 5);
+        scheduler.resume(Arrays.asList(A, low, high));
+        engine.release("high");
+        engine.release("a");
+        engine.release("low");
+        await(() -> !scheduler.isRunning());
+        assertEquals(Arrays.asList("high", "a", "low"), engine.order);
+    }
+
+    @Test
+    void timerReadsProfilesOnlyWhileStartedAndAfterChanges() throws InterruptedException {
+        SyncProfile onChange = new SyncProfile("c", "C", "", Collections.emptyList(), RateLimit.NONE,
+                Collections.emptyMap(), Schedule.parse("change"), 0);
+        AtomicInteger reads = new AtomicInteger();
+        SyncScheduler timed = new SyncScheduler(engine, () -> {
+            reads.incrementAndGet();
+            return Collections.singletonList(onChange);
+        }, new NoListener());
+        try {
+            Thread.sleep(600);
+            assertEquals(0, reads.get());
+
+            timed.start(60000);
+            await(() -> reads.get() == 1);
+            Thread.sleep(600);
+            assertEquals(1, reads.get());
+
+            timed.profilesChanged();
+            await(() -> reads.get() == 2);
+            Thread.sleep(600);
+            assertEquals(2, reads.get());
+        } finally {
+            timed.shutdown();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < end, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Runs the profiles of a batch one after the other, each until the test
+     * releases it.
+     */
+    private static class GatedEngine extends CopyEngine {
+        private final Map<String, Semaphore> gates = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> active = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> maxActive = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> runs = new ConcurrentHashMap<>();
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        GatedEngine(SyncIndex index) {
+            super(index, 1, 1);
+        }
+
+        @Override
+        public Map<SyncProfile, SyncResult> syncAll(List<SyncProfile> profiles, boolean incremental,
+                BiConsumer<SyncProfile, SyncResult> onProfileDone) {
+            Map<SyncProfile, SyncResult> results = new LinkedHashMap<>();
+            for (SyncProfile p : new ArrayList<>(profiles)) {
+                String id = p.getId();
+                order.add(id);
+                counter(runs, id).incrementAndGet();
+                int now = counter(active, id).incrementAndGet();
+                counter(maxActive, id).accumulateAndGet(now, Math::max);
+                try {
+                    if (!gates.computeIfAbsent(id, k -> new Semaphore(0)).tryAcquire(10, TimeUnit.SECONDS))
+                        throw new IllegalStateException("never released: " + id);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                counter(active, id).decrementAndGet();
+                SyncResult result = new SyncResult();
+                results.put(p, result);
+                onProfileDone.accept(p, result);
+            }
+            return results;
+        }
+
+        void release(String id) {
+            gates.computeIfAbsent(id, k -> new Semaphore(0)).release();
+        }
+
+        int active(String id) {
+            return counter(active, id).get();
+        }
+
+        int maxActive(String id) {
+            return counter(maxActive, id).get();
+        }
+
+        int runs(String id) {
+            return counter(runs, id).get();
+        }
+
+        private static AtomicInteger counter(Map<String, AtomicInteger> map, String id) {
+            return map.computeIfAbsent(id, k -> new AtomicInteger());
+        }
+    }
+
+    private static class NoListener implements SyncScheduler.Listener {
+        @Override
+        public void syncStarted(List<SyncProfile> profiles) {
+        }
+
+        @Override
+        public void profileFinished(SyncProfile profile, SyncResult result) {
+        }
+
+        @Override
+        public void syncFinished(Map<SyncProfile, SyncResult> results, long millis) {
+        }
+
+        @Override
+        public void syncDropped() {
+        }
+    }
+}